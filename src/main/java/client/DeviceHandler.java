@@ -1,8 +1,11 @@
 package client;
 
 import client.security.SecurityUtils;
+import common.CoalescingOutputStream;
 import common.Codes;
+import common.FileTransfer;
 import common.Message;
+import common.TemperatureColumns;
 import common.security.CommonUtils;
 
 import javax.crypto.SecretKey;
@@ -11,11 +14,19 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.CodeSource;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignedObject;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -35,11 +46,18 @@ public class DeviceHandler {
      */
     private static final String CLIENT = "client/";
 
+    /**
+     * Asks for the temperatures of the command RT in the binary format,
+     * not understood by older servers
+     */
+    private static final boolean RT_COLUMNS = Boolean.getBoolean("iot.rt.binary");
+
     /**
      * Communication channels
      */
     private ObjectOutputStream output;
     private ObjectInputStream input;
+    private CoalescingOutputStream socketOutput;   // the stream under output
 
     /**
      * DeviceHandler attributes
@@ -47,6 +65,7 @@ public class DeviceHandler {
     private final String address;       // the ip address of the client
     private final int port;             // the server port
     private SSLSocket socket;              // the client socket
+    private long lastRequest;              // time of the last request sent
 
     private String userId;
 
@@ -70,8 +89,10 @@ public class DeviceHandler {
         try {
             SocketFactory sf = SSLSocketFactory.getDefault();
             socket = (SSLSocket) sf.createSocket(address, port);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
+            socketOutput = new CoalescingOutputStream(socket.getOutputStream(), FileTransfer.CHUNK_SIZE);
+            output = new ObjectOutputStream(socketOutput);
+            input = new ObjectInputStream(new BufferedInputStream(
+                    socket.getInputStream(), FileTransfer.CHUNK_SIZE));
 
             System.out.println("Requesting authentication for " + userId);
             String res = sendReceive(userId);
@@ -174,8 +195,31 @@ public class DeviceHandler {
         }
     }
 
+    /**
+     * Starts sending heartbeats to the {@code IoTServer} while this device is
+     * idle, so that the server does not close the connection. Heartbeats are
+     * only sent between commands, which must be handled while holding the
+     * lock of this handler.
+     *
+     * @param interval the time in seconds without requests before a heartbeat
+     */
+    protected void startHeartbeat(int interval) {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(() -> {
+            synchronized (this) {
+                if (System.currentTimeMillis() - lastRequest >= interval * 1000L) sendReceive("PING");
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
     /**
      * Send a request to the {@code IoTServer} and returns the corresponding response.
+     * A request refused for exceeding the quota of the user or device is sent
+     * again after the time given by the server.
      *
      * @param msg the request to the {@code IoTServer}
      * @return server response or null if an error occurred
@@ -183,9 +227,17 @@ public class DeviceHandler {
      */
     protected String sendReceive(String msg) {
         try {
-            this.output.writeObject(msg);
-
-            return (String) this.input.readObject();
+            while (true) {
+                this.output.writeObject(msg);
+                lastRequest = System.currentTimeMillis();
+
+                String res = (String) this.input.readObject();
+                if (!res.equals(Codes.THROTTLED.toString())) return res;
+                // Over the quota, wait as long as the server asks and try again
+                long retryAfter = this.input.readLong();
+                System.out.println("Throttled by the server, retrying in " + retryAfter + " ms");
+                Thread.sleep(retryAfter);
+            }
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -419,32 +471,64 @@ public class DeviceHandler {
             args[0] = !args[0].contains("/") ? args[0]
                     : args[0].split("/")[args[0].split("/").length - 1];
 
+            // The image is encrypted once, with a random key that is then
+            // encrypted with the key of each domain. If a previous upload of
+            // the same image was interrupted, the same encrypted image is sent
+            File outputFolder = new File(CLIENT);
+            if (!outputFolder.isDirectory()) outputFolder.mkdir();
+            File imageEnc = new File(CLIENT + args[0] + ".cif");
+            File uploadFile = new File(CLIENT + args[0] + ".upload");
             String[] domains = res.split(";");
+            String imageHash = CommonUtils.calculateFileHash(image);
+            PendingUpload upload = PendingUpload.load(uploadFile);
+            boolean resume = upload != null && imageEnc.exists() && upload.matches(imageHash, domains);
+            SecretKey contentKey = null;
+            if (!resume) {
+                upload = new PendingUpload(imageHash);
+                contentKey = SecurityUtils.generateContentKey();
+            }
+
             output.writeObject(Codes.OK.toString());
             for (String domain : domains) {
                 String temp = domain + ".key.cif.temp";
                 receiveFile(temp, input.readInt()); // Receive the domain key
 
                 File encryptedKey = new File(temp);
-                SecretKey key = (SecretKey) SecurityUtils.decryptKeyWithRSA(
-                        encryptedKey, SecurityUtils.getPrivateKey(userId));
-
-                File imageEnc = new File(args[0] + ".cif");
-                SecurityUtils.encryptFile(image, imageEnc, key);
-
-                int size = (int) imageEnc.length();
-                output.writeInt(size);
-                sendFile(imageEnc.getPath(), size); // Send the encrypted image
+                if (!resume) {
+                    SecretKey key = (SecretKey) SecurityUtils.decryptKeyWithRSA(
+                            encryptedKey, SecurityUtils.getPrivateKey(userId));
+                    upload.putKey(domain, SecurityUtils.wrapKey(contentKey, key));
+                }
+                encryptedKey.delete(); // Delete the temporary key file
 
+                output.writeObject(upload.getKey(domain)); // Send the wrapped key
                 input.readObject(); // Receive confirmation
-                new File(temp).delete(); // Delete the temporary key file
-                imageEnc.delete(); // Delete the encrypted image
             }
+
+            if (!resume) {
+                SecurityUtils.encryptFile(image, imageEnc, contentKey);
+                upload.setUploadId(CommonUtils.calculateFileHash(imageEnc));
+                upload.save(uploadFile);
+            }
+            long size = imageEnc.length();
+            output.writeObject(upload.getUploadId());
+            output.writeLong(size);
+            output.flush();
+            long offset = input.readLong(); // Bytes the server already has
+            if (offset > 0) System.out.println("Resuming upload at byte " + offset);
+            try (FileChannel channel = FileChannel.open(imageEnc.toPath())) {
+                FileTransfer.send(channel, offset, size, output, socketOutput); // Send the encrypted image
+            }
+
             output.writeObject(Codes.OK.toString());
             String finalRes = (String) input.readObject();
             if (finalRes.equals(Codes.OK.toString())) {
+                imageEnc.delete(); // Delete the encrypted image
+                uploadFile.delete();
                 System.out.println("Response: OK # Image sent successfully");
             } else {
+                imageEnc.delete(); // Start again on the next attempt
+                uploadFile.delete();
                 System.out.println("Response: NOK # Error sending image");
             }
         } catch (Exception e) {
@@ -466,6 +550,7 @@ public class DeviceHandler {
             return;
         }
         String msg = parseCommandToSend(command, args);
+        if (RT_COLUMNS) msg += ";" + TemperatureColumns.FORMAT;
         String res = this.sendReceive(msg);
         String outputPath = CLIENT + args[0] + ".txt";
         if (res.equals(Codes.OK.toString())) {
@@ -484,7 +569,8 @@ public class DeviceHandler {
 
                 encryptedKey.delete();// Delete temp key file
                 File outputFile = new File(outputPath); // Decrypt the temperatures
-                int received = SecurityUtils.decryptTemperatures(outputFile, key);
+                int received = RT_COLUMNS ? SecurityUtils.decryptTemperatureColumns(outputFile, key)
+                        : SecurityUtils.decryptTemperatures(outputFile, key);
                 if (received > 0) {
                     System.out.println("Response: OK, " + received + " (long), " +
                             "followed by " + outputFile.length() + " bytes of data");
@@ -514,17 +600,24 @@ public class DeviceHandler {
      * @requires {@code args != null && command != null}
      */
     protected void sendReceiveRI(String[] args, String command) {
-        if (args.length != 1 || !args[0].contains(":")) {
-            System.out.println("Usage: RI <user-id>:<dev_id>");
+        if (args.length < 1 || args.length > 2 || !args[0].contains(":")) {
+            System.out.println("Usage: RI <user-id>:<dev_id> [yyyy-MM-ddTHH:mm]");
             return;
         }
+        String[] request = args;
         try {
             Integer.parseInt(args[0].split(":")[1]);
-        } catch (NumberFormatException e) {
-            System.out.println("Usage: RI <user-id>:<dev_id>");
+            if (args.length == 2) {
+                // Send the time of the requested image in milliseconds
+                long time = LocalDateTime.parse(args[1]).atZone(ZoneId.systemDefault())
+                        .toInstant().toEpochMilli();
+                request = new String[] {args[0], String.valueOf(time)};
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            System.out.println("Usage: RI <user-id>:<dev_id> [yyyy-MM-ddTHH:mm]");
             return;
         }
-        String msg = parseCommandToSend(command, args);
+        String msg = parseCommandToSend(command, request);
         String res = this.sendReceive(msg);
         String[] temp = args[0].split(":");
         if (res.equals(Codes.OK.toString())) {
@@ -538,9 +631,31 @@ public class DeviceHandler {
                 receiveFile(domainKeyENc.getPath(), domainKeyEncSize);
                 output.writeObject(Codes.OK.toString());
 
-                // Receive the encrypted image
-                int imageEncSize = input.readInt();
-                receiveFile(imageEnc.getPath(), imageEncSize);
+                // Receive the key of the image, null if encrypted with the domain key
+                byte[] wrappedKey = (byte[]) input.readObject();
+
+                // Receive the encrypted image, resuming a previous download
+                // if it was interrupted and the image did not change
+                String version = (String) input.readObject();
+                long imageEncSize = input.readLong();
+                File versionFile = new File(imageEnc.getPath() + ".version");
+                long offset = 0;
+                if (versionFile.exists() && version.equals(readVersion(versionFile))) {
+                    offset = FileTransfer.resumeOffset(imageEnc, imageEncSize);
+                } else {
+                    try (FileWriter fw = new FileWriter(versionFile)) {
+                        fw.write(version);
+                    }
+                }
+                if (offset > 0) System.out.println("Resuming download at byte " + offset);
+                output.writeLong(offset);
+                output.flush();
+                try (FileChannel channel = FileChannel.open(imageEnc.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    channel.truncate(offset);
+                    FileTransfer.receive(input, channel, offset, imageEncSize);
+                }
+                versionFile.delete();
                 output.writeObject(Codes.OK.toString());
 
                 String finalRes = (String) input.readObject();
@@ -552,6 +667,7 @@ public class DeviceHandler {
                 // Decrypt the domain key and the image
                 SecretKey key = (SecretKey) SecurityUtils.decryptKeyWithRSA(
                         domainKeyENc, SecurityUtils.getPrivateKey(userId));
+                if (wrappedKey != null) key = SecurityUtils.unwrapKey(wrappedKey, key);
                 File image = new File(CLIENT + temp[0] + "_" + temp[1] + ".jpg");
                 int received = SecurityUtils.decryptFile(imageEnc, image, key);
                 domainKeyENc.delete(); // Delete the key
@@ -582,25 +698,13 @@ public class DeviceHandler {
      *
      * @param filePath the path of the file to be sent
      * @param size the size of the file to send
+     * @throws IOException if the file could not be sent
      * @requires {@code filePath != null}
+     * @see FileTransfer
      */
-    private void sendFile(String filePath, int size) {
-        try {
-            File file = new File(filePath);
-            FileInputStream in = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(in);
-            byte[] buffer = new byte[8192];
-            int bytesLeft = size;
-            while (bytesLeft > 0) {
-                int bytesRead = bis.read(buffer);
-                output.write(buffer, 0, bytesRead);
-                bytesLeft -= bytesRead;
-            }
-            output.flush();
-            bis.close();
-            in.close();
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+    private void sendFile(String filePath, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(filePath).toPath())) {
+            FileTransfer.send(channel, 0, size, output, socketOutput);
         }
     }
 
@@ -610,26 +714,30 @@ public class DeviceHandler {
      *
      * @param filePath the path where the file will be saved
      * @param size     the size of the file to receive
+     * @throws IOException if the file could not be received
      * @requires {@code filePath != null}
+     * @see FileTransfer
      */
-    private void receiveFile(String filePath, int size) {
+    private void receiveFile(String filePath, int size) throws IOException {
         File outputFolder = new File(CLIENT);
         if (!outputFolder.isDirectory()) outputFolder.mkdir();
-        try {
-            FileOutputStream out = new FileOutputStream(filePath);
-            BufferedOutputStream bos = new BufferedOutputStream(out);
-            byte[] buffer = new byte[8192];
-            int bytesLeft = size;
-            while (bytesLeft > 0) {
-                int bytes = input.read(buffer);
-                bos.write(buffer, 0, bytes);
-                bytesLeft -= bytes;
-            }
-            bos.flush();
-            bos.close();
-            out.close();
+        try (FileChannel channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileTransfer.receive(input, channel, 0, size);
+        }
+    }
+
+    /**
+     * Reads the version of an image partially received
+     *
+     * @param versionFile the file with the version
+     * @return the version, or null if it could not be read
+     */
+    private String readVersion(File versionFile) {
+        try (BufferedReader br = new BufferedReader(new FileReader(versionFile))) {
+            return br.readLine();
         } catch (IOException e) {
-            System.out.println(e.getMessage());
+            return null;
         }
     }
 
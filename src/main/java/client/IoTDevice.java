@@ -62,6 +62,8 @@ public class IoTDevice {
         try {
             client.connect(userId);
             client.deviceValidation(devId);
+            int heartbeat = Integer.getInteger("iot.heartbeat", 60);
+            if (heartbeat > 0) client.startHeartbeat(heartbeat);
             printMenu();
 
             Scanner scanner = new Scanner(System.in);
@@ -131,7 +133,7 @@ public class IoTDevice {
                 ET <float>
                 EI <filename.jpg>
                 RT <dm>
-                RI <user-id>:<dev_id>
+                RI <user-id>:<dev_id> [yyyy-MM-ddTHH:mm]
                 \s""");
     }
 
@@ -146,16 +148,18 @@ public class IoTDevice {
         String command = parsedCommand[0];
         String[] args = Arrays.copyOfRange(parsedCommand, 1, parsedCommand.length);
 
-        switch (command) {
-            case "CREATE" -> handler.sendReceiveCREATE(args, command);
-            case "ADD" -> handler.sendReceiveADD(args, command);
-            case "RD" -> handler.sendReceiveRD(args, command);
-            case "MYDOMAINS" -> handler.sendReceiveMYDOMAINS(args, command);
-            case "ET" -> handler.sendReceiveET(args, command);
-            case "EI" -> handler.sendReceiveEI(args, command);
-            case "RT" -> handler.sendReceiveRT(args, command);
-            case "RI" -> handler.sendReceiveRI(args, command);
-            default -> System.out.println("Response: NOK # Invalid command");
+        synchronized (handler) { // No heartbeats in the middle of a command
+            switch (command) {
+                case "CREATE" -> handler.sendReceiveCREATE(args, command);
+                case "ADD" -> handler.sendReceiveADD(args, command);
+                case "RD" -> handler.sendReceiveRD(args, command);
+                case "MYDOMAINS" -> handler.sendReceiveMYDOMAINS(args, command);
+                case "ET" -> handler.sendReceiveET(args, command);
+                case "EI" -> handler.sendReceiveEI(args, command);
+                case "RT" -> handler.sendReceiveRT(args, command);
+                case "RI" -> handler.sendReceiveRI(args, command);
+                default -> System.out.println("Response: NOK # Invalid command");
+            }
         }
     }
 
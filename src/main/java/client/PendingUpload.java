@@ -0,0 +1,142 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An image being sent to the {@code IoTServer} with the command EI.
+ * It is saved to a file while the upload is not confirmed, so that if
+ * the connection is lost, the next EI of the same image sends the same
+ * encrypted image and the server resumes the upload instead of starting
+ * it again.
+ *
+ * <p>Format of the file:
+ * <pre>
+ * hash of the image
+ * upload id (hash of the encrypted image)
+ * { domain,wrapped key in base64 }
+ * </pre>
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see DeviceHandler
+ */
+class PendingUpload {
+
+    /**
+     * PendingUpload attributes
+     */
+    private final String imageHash;             // hash of the image
+    private final Map<String, byte[]> keys;     // key of the image wrapped with each domain key
+    private String uploadId;                    // hash of the encrypted image
+
+    /**
+     * Constructs a new {@code PendingUpload}
+     *
+     * @param imageHash the hash of the image
+     */
+    PendingUpload(String imageHash) {
+        this.imageHash = imageHash;
+        this.keys = new LinkedHashMap<>();
+    }
+
+    /**
+     * Loads a pending upload from a file
+     *
+     * @param file the file
+     * @return the pending upload, or null if the file does not exist or is invalid
+     */
+    static PendingUpload load(File file) {
+        if (!file.exists()) return null;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            PendingUpload upload = new PendingUpload(in.readLine());
+            upload.uploadId = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] entry = line.split(",");
+                upload.keys.put(entry[0], Base64.getDecoder().decode(entry[1]));
+            }
+            return upload.uploadId == null ? null : upload;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves this pending upload to a file
+     *
+     * @param file the file
+     * @throws IOException if the file could not be written
+     */
+    void save(File file) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            out.write(imageHash + "\n" + uploadId + "\n");
+            for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+                out.write(entry.getKey() + "," + Base64.getEncoder().encodeToString(entry.getValue()) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Verifies if this upload is of the given image, to the given domains
+     *
+     * @param imageHash the hash of the image
+     * @param domains the domains of the device
+     * @return true if the upload can be resumed, false otherwise
+     */
+    boolean matches(String imageHash, String[] domains) {
+        if (!this.imageHash.equals(imageHash) || keys.size() != domains.length) return false;
+        for (String domain : domains) {
+            if (!keys.containsKey(domain)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key of the image wrapped with the key of a domain
+     *
+     * @param domain the domain
+     * @return the wrapped key
+     */
+    byte[] getKey(String domain) {
+        return keys.get(domain);
+    }
+
+    /**
+     * Sets the key of the image wrapped with the key of a domain
+     *
+     * @param domain the domain
+     * @param key the wrapped key
+     */
+    void putKey(String domain, byte[] key) {
+        keys.put(domain, key);
+    }
+
+    /**
+     * Returns the id of this upload
+     *
+     * @return the hash of the encrypted image
+     */
+    String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Sets the id of this upload
+     *
+     * @param uploadId the hash of the encrypted image
+     */
+    void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+}
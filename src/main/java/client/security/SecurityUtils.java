@@ -1,17 +1,37 @@
 package client.security;
 
+import common.TemperatureColumns;
+
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
 
 /**
  * Utility class with security
@@ -39,6 +59,41 @@ public class SecurityUtils {
 
     private static final int KEY_LENGTH = 128;
 
+    /**
+     * Parameters of the decryption of temperatures: temperatures in each
+     * parallel task, and tasks kept in memory at once
+     */
+    private static final int DECRYPT_CHUNK = 1024;
+    private static final int DECRYPT_WINDOW = 2 * ForkJoinPool.getCommonPoolParallelism();
+
+    /**
+     * Maximum number of decrypted domain keys kept
+     */
+    private static final int MAX_DOMAIN_KEYS = 64;
+
+    /**
+     * Data structures, loaded once and reused by every command
+     */
+    private static final Map<String, KeyStore> keyStores = new ConcurrentHashMap<>();       // by path
+    private static final Map<String, PrivateKey> privateKeys = new ConcurrentHashMap<>();   // by alias
+    private static final Map<WrappedKey, Key> domainKeys = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<WrappedKey, Key> eldest) {
+                    return size() > MAX_DOMAIN_KEYS;
+                }
+            });
+
+    /**
+     * The ciphers of each thread, by transformation, initialised again on each use
+     */
+    private static final ThreadLocal<Map<String, Cipher>> ciphers = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * A domain key encrypted with a private key
+     */
+    private record WrappedKey(PrivateKey privateKey, ByteBuffer wrappedKey) {}
+
     /**
      * Generates a symmetric key given a cipher-password.
      *
@@ -58,6 +113,58 @@ public class SecurityUtils {
         }
     }
 
+    /**
+     * Generates a random symmetric key, used to encrypt
+     * a single image (content key)
+     *
+     * @return the generated key, or null in case of error
+     */
+    public static SecretKey generateContentKey() {
+        try {
+            KeyGenerator kg = KeyGenerator.getInstance("AES");
+            kg.init(KEY_LENGTH);
+            return kg.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Encrypts a content key with the key of a domain
+     *
+     * @param key the content key to be encrypted
+     * @param domainKey the key of the domain
+     * @return the encrypted key, or null in case of error
+     */
+    public static byte[] wrapKey(SecretKey key, SecretKey domainKey) {
+        try {
+            Cipher cipher = cipher("AES");
+            cipher.init(Cipher.WRAP_MODE, domainKey);
+            return cipher.wrap(key);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts a content key with the key of a domain
+     *
+     * @param wrappedKey the encrypted content key
+     * @param domainKey the key of the domain
+     * @return the content key, or null in case of error
+     */
+    public static SecretKey unwrapKey(byte[] wrappedKey, SecretKey domainKey) {
+        try {
+            Cipher cipher = cipher("AES");
+            cipher.init(Cipher.UNWRAP_MODE, domainKey);
+            return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * Encrypts a {@code SecretKey} with the given {@code PublicKey}
      * and saves it to a file
@@ -68,7 +175,7 @@ public class SecurityUtils {
      */
     public static void encryptKeyWithRSA(SecretKey key, PublicKey pubKey, String filenameToSave) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA");
+            Cipher cipher = cipher("RSA");
             cipher.init(Cipher.WRAP_MODE, pubKey);
 
             byte[] wrappedKey = cipher.wrap(key);
@@ -82,7 +189,8 @@ public class SecurityUtils {
     }
 
     /**
-     * Decrypts a key stored in a file using a {@code PrivateKey}
+     * Decrypts a key stored in a file using a {@code PrivateKey}. The keys
+     * decrypted are kept, so that the key of a domain is only decrypted once.
      *
      * @param keyFile the file holding the encrypted key
      * @param privateKey the private key used for decryption
@@ -90,15 +198,16 @@ public class SecurityUtils {
      */
     public static Key decryptKeyWithRSA(File keyFile, PrivateKey privateKey) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.UNWRAP_MODE, privateKey);
-
-            byte[] wrappedKey = new byte[(int) keyFile.length()];
-            try (FileInputStream fis = new FileInputStream(keyFile)) {
-                fis.read(wrappedKey);
+            byte[] wrappedKey = Files.readAllBytes(keyFile.toPath());
+            WrappedKey wrapped = new WrappedKey(privateKey, ByteBuffer.wrap(wrappedKey));
+            Key key = domainKeys.get(wrapped);
+            if (key == null) {
+                Cipher cipher = cipher("RSA");
+                cipher.init(Cipher.UNWRAP_MODE, privateKey);
+                key = cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+                domainKeys.put(wrapped, key);
             }
-
-            return cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+            return key;
         } catch (Exception e) {
             System.out.println(e.getMessage());
             return null;
@@ -113,13 +222,8 @@ public class SecurityUtils {
      */
     public static Certificate getCertificate(String alias) {
         try {
-            KeyStore ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream(
-                    System.getProperty("javax.net.ssl.keyStore")),
-                    System.getProperty("javax.net.ssl.keyStorePassword")
-                            .toCharArray());
-
-            return ks.getCertificate(alias);
+            return keyStore("javax.net.ssl.keyStore", "javax.net.ssl.keyStorePassword")
+                    .getCertificate(alias);
         } catch (Exception e) {
             System.out.println(e.getMessage());
             return null;
@@ -134,41 +238,58 @@ public class SecurityUtils {
      */
     public static PublicKey findPublicKeyOnTrustStore(String alias) {
         try {
-            KeyStore ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream(
-                    System.getProperty("javax.net.ssl.trustStore")),
-                    System.getProperty("javax.net.ssl.trustStorePassword")
-                            .toCharArray());
-
-            return ks.getCertificate(alias).getPublicKey();
+            return keyStore("javax.net.ssl.trustStore", "javax.net.ssl.trustStorePassword")
+                    .getCertificate(alias).getPublicKey();
         } catch (Exception e) {
             return null;
         }
     }
 
     /**
-     * Returns the {@code PrivateKey} of a given alias
+     * Returns the {@code PrivateKey} of a given alias, loaded
+     * from the keystore once
      *
      * @param alias the alias used to search
      * @return the private key if found, null otherwise
      */
     public static PrivateKey getPrivateKey(String alias) {
         try {
-            KeyStore ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream(
-                    System.getProperty("javax.net.ssl.keyStore")),
-                    System.getProperty("javax.net.ssl.keyStorePassword")
-                            .toCharArray());
-
-            return (PrivateKey) ks.getKey(alias,
-                    System.getProperty("javax.net.ssl.keyStorePassword")
-                            .toCharArray());
+            PrivateKey key = privateKeys.get(alias);
+            if (key == null) {
+                key = (PrivateKey) keyStore("javax.net.ssl.keyStore", "javax.net.ssl.keyStorePassword")
+                        .getKey(alias, System.getProperty("javax.net.ssl.keyStorePassword").toCharArray());
+                if (key != null) privateKeys.put(alias, key);
+            }
+            return key;
         } catch (Exception e) {
             System.out.println(e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Returns a keystore, loaded from its file the first time
+     *
+     * @param pathProperty the system property with the path of the keystore
+     * @param passwordProperty the system property with the password of the keystore
+     * @return the keystore
+     * @throws GeneralSecurityException if the keystore could not be loaded
+     * @throws IOException if the file of the keystore could not be read
+     */
+    private static KeyStore keyStore(String pathProperty, String passwordProperty)
+            throws GeneralSecurityException, IOException {
+        String path = System.getProperty(pathProperty);
+        KeyStore ks = keyStores.get(path);
+        if (ks == null) {
+            ks = KeyStore.getInstance("JKS");
+            try (FileInputStream fis = new FileInputStream(path)) {
+                ks.load(fis, System.getProperty(passwordProperty).toCharArray());
+            }
+            keyStores.put(path, ks);
+        }
+        return ks;
+    }
+
     /**
      * Encrypts the content of a file to another file
      *
@@ -178,8 +299,7 @@ public class SecurityUtils {
      */
     public static void encryptFile(File fileToEncrypt, File encryptedFile, SecretKey key) {
         try {
-
-            Cipher cipher = Cipher.getInstance("AES");
+            Cipher cipher = cipher("AES");
             cipher.init(Cipher.ENCRYPT_MODE, key);
 
             try (FileInputStream fis = new FileInputStream(fileToEncrypt);
@@ -207,7 +327,7 @@ public class SecurityUtils {
      */
     public static int decryptFile(File encryptedFile, File decryptedFile, SecretKey key) {
         try {
-            Cipher cipher = Cipher.getInstance("AES");
+            Cipher cipher = cipher("AES");
             cipher.init(Cipher.DECRYPT_MODE, key);
             try (FileInputStream fis = new FileInputStream(encryptedFile);
                  FileOutputStream fos = new FileOutputStream(decryptedFile);
@@ -233,7 +353,7 @@ public class SecurityUtils {
      */
     public static String encryptTemperature(String temperature, SecretKey key) {
         try {
-            Cipher cipher = Cipher.getInstance("AES");
+            Cipher cipher = cipher("AES");
             cipher.init(Cipher.ENCRYPT_MODE, key);
             byte[] encrypted = cipher.doFinal(temperature.getBytes());
             return Base64.getEncoder().encodeToString(encrypted);
@@ -243,49 +363,145 @@ public class SecurityUtils {
     }
 
     /**
-     * Decrypts the file with the saved temperatures
+     * Decrypts the file with the saved temperatures, one line
+     * {@code user:id,temperature} per device, into lines {@code user:id->temperature}.
+     * The lines are read and written as a stream, and decrypted in parallel
+     * in chunks.
      *
      * @param temperaturesFile the encrypted file
      * @param key the secret key used for decryption
      * @return the length of the decrypted file or -1 in case of error
+     * @see #decryptInParallel(Iterator, Function, File)
      */
     public static int decryptTemperatures(File temperaturesFile, SecretKey key) {
+        try (BufferedReader br = Files.newBufferedReader(temperaturesFile.toPath())) {
+            return decryptInParallel(br.lines().iterator(), lines -> {
+                Cipher cipher = decryptCipher(key);
+                StringBuilder sb = new StringBuilder();
+                for (String line : lines) {
+                    int comma = line.indexOf(',');
+                    String device = comma < 0 ? line : line.substring(0, comma);
+                    String temperature = comma < 0 ? null
+                            : decryptTemperature(cipher, Base64.getDecoder()::decode, line.substring(comma + 1));
+                    sb.append(device).append("->").append(temperature).append("\n");
+                }
+                return sb.toString();
+            }, temperaturesFile);
+        } catch (IOException | UncheckedIOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decrypts the file with the saved temperatures, received in the
+     * binary format of {@link TemperatureColumns}, into the same lines
+     * as {@link #decryptTemperatures(File, SecretKey)}
+     *
+     * @param temperaturesFile the encrypted file
+     * @param key the secret key used for decryption
+     * @return the length of the decrypted file or -1 in case of error
+     */
+    public static int decryptTemperatureColumns(File temperaturesFile, SecretKey key) {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(temperaturesFile));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] content = line.split(",");
-                String temperature = decryptTemperature(content[1], key);
-                sb.append(content[0]).append("->")
-                        .append(temperature).append("\n");
-            }
-            br.close();
-            BufferedWriter bw = new BufferedWriter(new FileWriter(temperaturesFile));
-            bw.write(sb.toString());
-            bw.close();
-            return (int) temperaturesFile.length();
+            ByteBuffer payload = ByteBuffer.wrap(Files.readAllBytes(temperaturesFile.toPath()));
+            return decryptInParallel(TemperatureColumns.decode(payload).iterator(), readings -> {
+                Cipher cipher = decryptCipher(key);
+                StringBuilder sb = new StringBuilder();
+                for (TemperatureColumns.Reading reading : readings) {
+                    sb.append(reading.device()).append("->")
+                            .append(decryptTemperature(cipher, b -> b, reading.ciphertext())).append("\n");
+                }
+                return sb.toString();
+            }, temperaturesFile);
         } catch (IOException e) {
             return -1;
         }
     }
 
+    /**
+     * Decrypts temperatures in chunks of {@value #DECRYPT_CHUNK}, each one a
+     * task of the common {@code ForkJoinPool}, and writes the decrypted
+     * chunks in order as they are done. At most {@link #DECRYPT_WINDOW}
+     * chunks are kept in memory. The file is replaced once all are written.
+     *
+     * @param items the encrypted temperatures, read as they are needed
+     * @param decrypt decrypts a chunk into the lines to write
+     * @param temperaturesFile the file to replace with the decrypted lines
+     * @return the length of the decrypted file or -1 in case of error
+     * @throws IOException if the decrypted file could not be written
+     */
+    private static <T> int decryptInParallel(Iterator<T> items, Function<List<T>, String> decrypt,
+                                             File temperaturesFile) throws IOException {
+        Path decrypted = Path.of(temperaturesFile.getPath() + ".temp");
+        Deque<ForkJoinTask<String>> pending = new ArrayDeque<>();
+        try (BufferedWriter bw = Files.newBufferedWriter(decrypted)) {
+            List<T> chunk = new ArrayList<>(DECRYPT_CHUNK);
+            while (items.hasNext()) {
+                chunk.add(items.next());
+                if (chunk.size() == DECRYPT_CHUNK || !items.hasNext()) {
+                    List<T> toDecrypt = chunk;
+                    pending.add(ForkJoinPool.commonPool().submit(() -> decrypt.apply(toDecrypt)));
+                    chunk = new ArrayList<>(DECRYPT_CHUNK);
+                    if (pending.size() == DECRYPT_WINDOW) bw.write(pending.poll().join());
+                }
+            }
+            while (!pending.isEmpty()) bw.write(pending.poll().join());
+        } catch (IOException | RuntimeException e) {
+            pending.forEach(task -> task.cancel(false));
+            Files.deleteIfExists(decrypted);
+            return -1;
+        }
+        Files.move(decrypted, temperaturesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return (int) temperaturesFile.length();
+    }
+
+    /**
+     * Returns the cipher of this thread, ready to decrypt with the given key
+     *
+     * @param key the secret key used for decryption
+     * @return the cipher, or null in case of error
+     */
+    private static Cipher decryptCipher(SecretKey key) {
+        Cipher cipher = cipher("AES");
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return cipher;
+        } catch (InvalidKeyException e) {
+            return null;
+        }
+    }
+
     /**
      * Decrypts a temperature value
      *
+     * @param cipher the cipher used for decryption
+     * @param decoder decodes the temperature into the encrypted bytes
      * @param temperature the temperature value to be decrypted
-     * @param key the secret key used for decryption
      * @return the decrypted temperature or null in case of error
      */
-    private static String decryptTemperature(String temperature, SecretKey key) {
+    private static <T> String decryptTemperature(Cipher cipher, Function<T, byte[]> decoder, T temperature) {
+        if (cipher == null) return null;
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            byte[] plainText = cipher.doFinal(Base64.getDecoder()
-                    .decode(temperature));
-            return new String(plainText);
+            return new String(cipher.doFinal(decoder.apply(temperature)));
         } catch (Exception e) {
             return null;
         }
     }
+
+    /**
+     * Returns the cipher of this thread with the given transformation,
+     * to be initialised before it is used
+     *
+     * @param transformation the transformation of the cipher
+     * @return the cipher
+     */
+    private static Cipher cipher(String transformation) {
+        return ciphers.get().computeIfAbsent(transformation, t -> {
+            try {
+                return Cipher.getInstance(t);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
 }
@@ -0,0 +1,153 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton pool of the buffers used to read, write and transfer files.
+ * Buffers are grouped in size classes, powers of two between
+ * {@link #MIN_SIZE} and {@link #MAX_SIZE}, and a request gets a buffer of
+ * the smallest class that fits it, so small files do not hold large
+ * buffers. Each class keeps a bounded number of free buffers; a buffer
+ * released when its class is full is left to the garbage collector.
+ *
+ * <p>The counters of the pool show if the transfers are reusing buffers:
+ * once the pool is warm, {@code allocated} should stop growing.
+ *
+ * <p>The maximum number of free buffers per class is read from the system
+ * property {@code iot.buffers.max}.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see FileTransfer
+ */
+public class BufferPool {
+
+    /**
+     * Sizes of the buffers
+     */
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    /**
+     * The instance of {@code BufferPool}
+     */
+    private static final BufferPool instance =
+            new BufferPool(Integer.getInteger("iot.buffers.max", 64));
+
+    /**
+     * Data structures
+     */
+    private final List<BlockingQueue<ByteBuffer>> classes;     // free buffers of each size class
+
+    /**
+     * Counters
+     */
+    private final LongAdder acquired;       // buffers requested
+    private final LongAdder allocated;      // buffers created
+    private final LongAdder discarded;      // buffers released when the pool was full
+
+    /**
+     * Constructs a new {@code BufferPool}
+     *
+     * @param maxFree the maximum number of free buffers of each size class
+     */
+    private BufferPool(int maxFree) {
+        int count = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+        classes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            classes.add(new ArrayBlockingQueue<>(Math.max(1, maxFree)));
+        }
+        acquired = new LongAdder();
+        allocated = new LongAdder();
+        discarded = new LongAdder();
+    }
+
+    /**
+     * Returns the instance of {@code BufferPool}
+     *
+     * @return the instance of {@code BufferPool}
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given size,
+     * up to {@link #MAX_SIZE}. The buffer must be released after use.
+     *
+     * @param size the number of bytes needed
+     * @return a heap buffer
+     * @see #release(ByteBuffer)
+     */
+    public ByteBuffer acquire(long size) {
+        acquired.increment();
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = classes.get(sizeClass).poll();
+        if (buffer == null) {
+            allocated.increment();
+            return ByteBuffer.allocate(MIN_SIZE << sizeClass);
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer to this pool
+     *
+     * @param buffer the buffer, acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if ((MIN_SIZE << sizeClass) != capacity || !classes.get(sizeClass).offer(buffer)) {
+            discarded.increment();
+        }
+    }
+
+    /**
+     * Returns the counters of this pool
+     *
+     * @return the counters
+     */
+    public Stats getStats() {
+        int free = 0;
+        for (BlockingQueue<ByteBuffer> sizeClass : classes) free += sizeClass.size();
+        return new Stats(acquired.sum(), allocated.sum(), discarded.sum(), free);
+    }
+
+    /**
+     * Returns the smallest size class with buffers of at least the given size
+     *
+     * @param size the size
+     * @return the index of the size class
+     */
+    private int sizeClass(long size) {
+        int sizeClass = 0;
+        while (sizeClass < classes.size() - 1 && (MIN_SIZE << sizeClass) < size) sizeClass++;
+        return sizeClass;
+    }
+
+    /**
+     * The counters of a {@code BufferPool}
+     *
+     * @param acquired the number of buffers requested
+     * @param allocated the number of buffers created
+     * @param discarded the number of buffers released when the pool was full
+     * @param free the number of buffers in the pool
+     */
+    public record Stats(long acquired, long allocated, long discarded, int free) {
+
+        @Override
+        public String toString() {
+            return acquired + " acquired, " + allocated + " allocated, "
+                    + discarded + " discarded, " + free + " free";
+        }
+    }
+
+}
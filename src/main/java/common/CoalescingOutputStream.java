@@ -0,0 +1,100 @@
+package common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream placed between an {@code ObjectOutputStream} and a
+ * socket. By default every write goes straight to the socket, so messages
+ * are delivered as soon as they are written. While coalescing, writes are
+ * gathered in a buffer and only sent when it is full or flushed.
+ *
+ * <p>An {@code ObjectOutputStream} writes raw bytes as blocks of at most
+ * 1 KB, each one preceded by a small header, and every write to an
+ * {@code SSLSocket} becomes a TLS record. Coalescing the blocks of a file
+ * transfer lets each record carry as much data as the TLS layer allows.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see FileTransfer
+ */
+public class CoalescingOutputStream extends FilterOutputStream {
+
+    /**
+     * Data structures
+     */
+    private final byte[] buffer;
+    private int count;                  // bytes in the buffer
+    private boolean coalescing;         // true if writes are being buffered
+
+    /**
+     * Constructs a new {@code CoalescingOutputStream}
+     *
+     * @param out the stream of the socket
+     * @param size the size of the buffer
+     */
+    public CoalescingOutputStream(OutputStream out, int size) {
+        super(out);
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Starts or stops coalescing writes. When stopped,
+     * the buffered bytes are sent.
+     *
+     * @param coalescing true to buffer the writes, false to send them directly
+     * @throws IOException if the buffered bytes could not be sent
+     */
+    public void setCoalescing(boolean coalescing) throws IOException {
+        if (!coalescing) flush();
+        this.coalescing = coalescing;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!coalescing) {
+            out.write(b);
+            return;
+        }
+        if (count == buffer.length) flushBuffer();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!coalescing) {
+            out.write(b, off, len);
+            return;
+        }
+        if (len >= buffer.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) flushBuffer();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Sends the buffered bytes
+     *
+     * @throws IOException if the bytes could not be sent
+     */
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+}
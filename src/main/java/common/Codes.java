@@ -26,7 +26,8 @@ public enum Codes {
     OKTESTED("OK-TESTED"),
     NOKDEVID("NOK-DEVID"),
     NOKTESTED("NOK-TESTED"),
-    CRR("CRR");
+    CRR("CRR"),
+    THROTTLED("THROTTLED");
 
     private final String name;
 
@@ -0,0 +1,247 @@
+package common;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Utility class used by the client and the server to transfer files.
+ * A file is sent as a sequence of chunks of at most {@link #CHUNK_SIZE}
+ * bytes, each one followed by its CRC32C checksum:
+ * <pre>
+ * { int length, byte[length] data, long crc32c }
+ * </pre>
+ * The receiver writes each chunk as soon as its checksum is verified, so an
+ * interrupted transfer leaves a valid prefix of the file, which allows the
+ * transfer to be resumed from the last complete chunk.
+ *
+ * <p>Files are read with a {@code FileChannel}, or from a memory-mapped
+ * buffer, into buffers of the {@link BufferPool}, sized to the file, and
+ * the blocks written by the {@code ObjectOutputStream} are
+ * coalesced before reaching the socket. The bytes still have to be copied
+ * to the TLS layer, so {@code FileChannel.transferTo} can not be used.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class FileTransfer {
+
+    /**
+     * Maximum size of a chunk
+     */
+    public static final int CHUNK_SIZE = BufferPool.MAX_SIZE;
+
+    /**
+     * Limits the rate of a transfer, called before each chunk
+     */
+    @FunctionalInterface
+    public interface Throttle {
+
+        /**
+         * A throttle that never waits
+         */
+        Throttle NONE = bytes -> {};
+
+        /**
+         * Waits until the given number of bytes can be transferred
+         *
+         * @param bytes the size of the next chunk
+         * @throws IOException if interrupted while waiting
+         */
+        void acquire(int bytes) throws IOException;
+    }
+
+    /**
+     * Utility class not meant to be constructed
+     */
+    private FileTransfer() {}
+
+    /**
+     * Sends the bytes of a file between {@code offset} and {@code size}
+     *
+     * @param file the file to send
+     * @param offset the position of the first byte to send
+     * @param size the size of the file
+     * @param out the stream to send the file to
+     * @param socket the stream of the socket under {@code out}
+     * @throws IOException if the file could not be read or sent
+     */
+    public static void send(FileChannel file, long offset, long size, ObjectOutputStream out,
+                            CoalescingOutputStream socket) throws IOException {
+        socket.setCoalescing(true);
+        try {
+            send(file, offset, size, out);
+        } finally {
+            socket.setCoalescing(false);
+        }
+    }
+
+    /**
+     * Sends the bytes of a buffer, such as a memory-mapped file, from
+     * {@code offset} to its limit
+     *
+     * @param data the content to send, between its position and its limit
+     * @param offset the position of the first byte to send, relative to the position of {@code data}
+     * @param out the stream to send the content to
+     * @param socket the stream of the socket under {@code out}
+     * @throws IOException if the content could not be sent
+     */
+    public static void send(ByteBuffer data, long offset, ObjectOutputStream out,
+                            CoalescingOutputStream socket) throws IOException {
+        send(data, offset, out, socket, Throttle.NONE);
+    }
+
+    /**
+     * Sends the bytes of a buffer, such as a memory-mapped file, from
+     * {@code offset} to its limit, limiting the rate of the transfer
+     *
+     * @param data the content to send, between its position and its limit
+     * @param offset the position of the first byte to send, relative to the position of {@code data}
+     * @param out the stream to send the content to
+     * @param socket the stream of the socket under {@code out}
+     * @param throttle the limit of the rate
+     * @throws IOException if the content could not be sent
+     */
+    public static void send(ByteBuffer data, long offset, ObjectOutputStream out,
+                            CoalescingOutputStream socket, Throttle throttle) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquire(data.remaining() - offset);
+        socket.setCoalescing(true);
+        try {
+            CRC32C crc = new CRC32C();
+            int position = data.position() + (int) offset;
+            while (position < data.limit()) {
+                int length = Math.min(buffer.capacity(), data.limit() - position);
+                throttle.acquire(length);
+                data.get(position, buffer.array(), 0, length);
+                crc.reset();
+                crc.update(buffer.array(), 0, length);
+                out.writeInt(length);
+                out.write(buffer.array(), 0, length);
+                out.writeLong(crc.getValue());
+                position += length;
+            }
+            out.flush();
+        } finally {
+            socket.setCoalescing(false);
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends the bytes of a file between {@code offset} and {@code size}
+     *
+     * @param file the file to send
+     * @param offset the position of the first byte to send
+     * @param size the size of the file
+     * @param out the stream to send the file to
+     * @throws IOException if the file could not be read or sent
+     */
+    private static void send(FileChannel file, long offset, long size, ObjectOutputStream out)
+            throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquire(size - offset);
+        try {
+            CRC32C crc = new CRC32C();
+            long position = offset;
+            while (position < size) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position()) == -1) {
+                        throw new EOFException("File is shorter than expected");
+                    }
+                }
+                int length = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), 0, length);
+                out.writeInt(length);
+                out.write(buffer.array(), 0, length);
+                out.writeLong(crc.getValue());
+                position += length;
+            }
+            out.flush();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Receives the bytes of a file between {@code offset} and {@code size},
+     * writing each chunk to the file after verifying its checksum
+     *
+     * @param in the stream to receive the file from
+     * @param file the file to write to
+     * @param offset the position of the first byte to receive
+     * @param size the size of the file
+     * @throws IOException if the connection ended before the whole file was
+     *         received, a chunk is invalid or the file could not be written
+     */
+    public static void receive(ObjectInputStream in, FileChannel file, long offset, long size)
+            throws IOException {
+        receive(in, file, offset, size, Throttle.NONE);
+    }
+
+    /**
+     * Receives the bytes of a file between {@code offset} and {@code size},
+     * writing each chunk to the file after verifying its checksum, and
+     * limiting the rate of the transfer
+     *
+     * @param in the stream to receive the file from
+     * @param file the file to write to
+     * @param offset the position of the first byte to receive
+     * @param size the size of the file
+     * @param throttle the limit of the rate
+     * @throws IOException if the connection ended before the whole file was
+     *         received, a chunk is invalid or the file could not be written
+     */
+    public static void receive(ObjectInputStream in, FileChannel file, long offset, long size,
+                               Throttle throttle) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquire(size - offset);
+        try {
+            CRC32C crc = new CRC32C();
+            long position = offset;
+            while (position < size) {
+                int length = in.readInt();
+                if (length <= 0 || length > buffer.capacity() || length > size - position) {
+                    throw new IOException("Invalid chunk length " + length);
+                }
+                throttle.acquire(length);
+                in.readFully(buffer.array(), 0, length);
+                crc.reset();
+                crc.update(buffer.array(), 0, length);
+                if (crc.getValue() != in.readLong()) {
+                    throw new IOException("Checksum mismatch at byte " + position);
+                }
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    file.write(buffer, position + buffer.position());
+                }
+                position += length;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns the position from where an interrupted transfer to the given
+     * file can be resumed, which is the end of its last complete chunk
+     *
+     * @param file the partially received file
+     * @param size the size of the complete file
+     * @return the number of bytes already received
+     */
+    public static long resumeOffset(File file, long size) {
+        if (!file.exists()) return 0;
+        long received = Math.min(file.length(), size);
+        return received == size ? size : received - received % CHUNK_SIZE;
+    }
+
+}
@@ -0,0 +1,239 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary format of the temperatures of a domain sent by the command RT,
+ * asked for by appending {@value #FORMAT} to the request. Instead of a text
+ * line {@code user:id,<Base64 ciphertext>} per device, the users, the ids,
+ * the times of the temperatures and the raw ciphertexts are sent in separate
+ * columns, each one prefixed by its length in bytes, so that the payload is
+ * smaller and is decoded without parsing text. Each user is sent once, and
+ * the devices refer to it by its position; numbers are sent as varints, and
+ * each time as the difference to the time of the previous device.
+ *
+ * <p>Format (big-endian ints, unsigned LEB128 varints, zigzag for signed):
+ * <pre>
+ * int magic, int count,
+ * int length, { varint length, byte[length] user } * users,
+ * int length, { varint user } * count,
+ * int length, { zigzag varint id } * count,
+ * int length, { zigzag varint time - previous time, in milliseconds } * count,
+ * int length, { varint length, byte[length] ciphertext } * count
+ * </pre>
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class TemperatureColumns {
+
+    /**
+     * The argument of the command RT that asks for this format
+     */
+    public static final String FORMAT = "BIN";
+
+    /**
+     * Format of the payload
+     */
+    private static final int MAGIC = 0x52544232;     // "RTB2"
+
+    /**
+     * The temperature of a device, as decoded from the payload
+     *
+     * @param device the device, {@code user:id}
+     * @param time the time of the temperature in milliseconds, 0 if unknown
+     * @param ciphertext the encrypted temperature
+     */
+    public record Reading(String device, long time, byte[] ciphertext) {}
+
+    /**
+     * The columns of the payload being built
+     */
+    private final ByteArrayOutputStream users;
+    private final ByteArrayOutputStream userIndexes;
+    private final ByteArrayOutputStream ids;
+    private final ByteArrayOutputStream times;
+    private final ByteArrayOutputStream ciphertexts;
+
+    /**
+     * Data structures
+     */
+    private final Map<String, Integer> userIndex;       // position of each user sent
+    private long lastTime;
+    private int count;
+
+    /**
+     * Constructs a new empty {@code TemperatureColumns}
+     */
+    public TemperatureColumns() {
+        this.users = new ByteArrayOutputStream();
+        this.userIndexes = new ByteArrayOutputStream();
+        this.ids = new ByteArrayOutputStream();
+        this.times = new ByteArrayOutputStream();
+        this.ciphertexts = new ByteArrayOutputStream();
+        this.userIndex = new HashMap<>();
+    }
+
+    /**
+     * Adds the temperature of a device
+     *
+     * @param device the device, {@code user:id}
+     * @param time the time of the temperature in milliseconds, 0 if unknown
+     * @param temperature the encrypted temperature, in Base64
+     * @return true if the temperature was added, false if the device is not {@code user:id}
+     */
+    public boolean add(String device, long time, String temperature) {
+        return add(device.getBytes(StandardCharsets.UTF_8), time, temperature.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Adds the temperature of a device
+     *
+     * @param device the device, {@code user:id}, in UTF-8
+     * @param time the time of the temperature in milliseconds, 0 if unknown
+     * @param temperature the encrypted temperature, in Base64
+     * @return true if the temperature was added, false if the device is not {@code user:id}
+     */
+    public boolean add(byte[] device, long time, byte[] temperature) {
+        int colon = device.length - 1;
+        while (colon >= 0 && device[colon] != ':') colon--;
+        int id;
+        try {
+            id = Integer.parseInt(new String(device, colon + 1, device.length - colon - 1, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (colon < 1) return false;
+        byte[] ciphertext;
+        try {
+            ciphertext = Base64.getDecoder().decode(temperature);
+        } catch (IllegalArgumentException e) {
+            ciphertext = new byte[0]; // Not sent by a device, can't be decrypted
+        }
+        String user = new String(device, 0, colon, StandardCharsets.UTF_8);
+        Integer index = userIndex.get(user);
+        if (index == null) {
+            index = userIndex.size();
+            userIndex.put(user, index);
+            writeVarint(users, colon);
+            users.write(device, 0, colon);
+        }
+        writeVarint(userIndexes, index);
+        writeVarint(ids, zigzag(id));
+        writeVarint(times, zigzag(time - lastTime));
+        writeVarint(ciphertexts, ciphertext.length);
+        ciphertexts.write(ciphertext, 0, ciphertext.length);
+        lastTime = time;
+        count++;
+        return true;
+    }
+
+    /**
+     * Returns the number of temperatures added
+     *
+     * @return the number of temperatures
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the payload with the temperatures added
+     *
+     * @return a read-only buffer with the payload
+     */
+    public ByteBuffer toBuffer() {
+        ByteArrayOutputStream[] columns = { users, userIndexes, ids, times, ciphertexts };
+        int size = 8;
+        for (ByteArrayOutputStream column : columns) size += 4 + column.size();
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putInt(MAGIC).putInt(count);
+        for (ByteArrayOutputStream column : columns) payload.putInt(column.size()).put(column.toByteArray());
+        return payload.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Decodes a payload
+     *
+     * @param payload the payload
+     * @return the temperatures, in the order they were added
+     * @throws IOException if the payload has a bad format
+     */
+    public static List<Reading> decode(ByteBuffer payload) throws IOException {
+        try {
+            if (payload.getInt() != MAGIC) throw new IOException("Bad temperatures format");
+            int count = payload.getInt();
+            ByteBuffer users = column(payload);
+            ByteBuffer userIndexes = column(payload);
+            ByteBuffer ids = column(payload);
+            ByteBuffer times = column(payload);
+            ByteBuffer ciphertexts = column(payload);
+            List<String> userNames = new ArrayList<>();
+            while (users.hasRemaining()) {
+                byte[] user = new byte[(int) readVarint(users)];
+                users.get(user);
+                userNames.add(new String(user, StandardCharsets.UTF_8));
+            }
+            List<Reading> readings = new ArrayList<>(count);
+            long time = 0;
+            for (int i = 0; i < count; i++) {
+                String user = userNames.get((int) readVarint(userIndexes));
+                long id = unzigzag(readVarint(ids));
+                time += unzigzag(readVarint(times));
+                byte[] ciphertext = new byte[(int) readVarint(ciphertexts)];
+                ciphertexts.get(ciphertext);
+                readings.add(new Reading(user + ":" + id, time, ciphertext));
+            }
+            return readings;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Truncated temperatures");
+        }
+    }
+
+    /**
+     * Returns the next column of a payload, skipping it
+     */
+    private static ByteBuffer column(ByteBuffer payload) {
+        int length = payload.getInt();
+        ByteBuffer column = payload.slice(payload.position(), length);
+        payload.position(payload.position() + length);
+        return column;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IndexOutOfBoundsException("Varint too long");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
@@ -1,8 +1,11 @@
 package common.security;
 
+import common.BufferPool;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -41,6 +44,33 @@ public class CommonUtils {
         }
     }
 
+    /**
+     * Calculates the hash of a file
+     *
+     * @param file the file
+     * @return the hash as an hexadecimal string, or null in case of error
+     */
+    public static String calculateFileHash(File file) {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buffer = pool.acquire(file.length());
+        try (FileInputStream in = new FileInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+            int read;
+            while ((read = in.read(buffer.array())) != -1) {
+                md.update(buffer.array(), 0, read);
+            }
+            StringBuilder hexString = new StringBuilder();
+            for (byte b : md.digest()) {
+                hexString.append(String.format("%02x", b));
+            }
+            return hexString.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return null;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
     /**
      * Compares the hash sent from the client
      * with the hash of the server
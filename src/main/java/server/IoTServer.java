@@ -1,15 +1,23 @@
 package server;
 
+import common.BufferPool;
+import common.CoalescingOutputStream;
+import common.FileTransfer;
 import server.communication.Connection;
+import server.communication.QuotaManager;
+import server.communication.SessionRegistry;
 import server.persistence.Storage;
 
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main class of the {@code IoTServer}.This class represents a multithreaded server.
@@ -25,7 +33,11 @@ import java.net.Socket;
  */
 public class IoTServer {
 
-    private static int counter;     // Connections counter
+    /**
+     * Maximum time in seconds the requests being handled can take to finish
+     * when the server shuts down
+     */
+    private static final long SHUTDOWN_DEADLINE = ServerConfig.getLong("iot.shutdown.deadline", 30);
 
     /**
      * This class is not meant to be constructed
@@ -85,12 +97,14 @@ public class IoTServer {
             ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
             srvSocket = (SSLServerSocket) ssf.createServerSocket(port);
             Storage srvStorage = new Storage(passwordCipher);
+            ServerSocket listener = srvSocket;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(listener, srvStorage)));
             ServerLogger.logInfo("Waiting for clients...");
-            while (true) {
+            while (!srvSocket.isClosed()) {
                 new ServerThread(srvSocket.accept(), srvStorage, apiKey).start();
             }
         } catch (Exception e) {
-            System.out.println(e.getMessage());
+            if (!SessionRegistry.getInstance().isDraining()) System.out.println(e.getMessage());
         }
         finally {
             if (srvSocket != null) {
@@ -103,6 +117,28 @@ public class IoTServer {
         }
     }
 
+    /**
+     * Shuts down this IoTServer: stops accepting connections, lets the
+     * requests being handled finish until the deadline, closing the
+     * connections, and closes the storage, writing its pending changes
+     *
+     * @param srvSocket the socket accepting connections
+     * @param srvStorage the {@code Storage} of this IoTServer
+     */
+    private static void shutdown(ServerSocket srvSocket, Storage srvStorage) {
+        ServerLogger.logInfo("Shutting down, " + SessionRegistry.getInstance().size() + " active connections");
+        try {
+            srvSocket.close();
+            SessionRegistry.getInstance().drain(TimeUnit.SECONDS.toMillis(SHUTDOWN_DEADLINE));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        srvStorage.close();
+        ServerLogger.logInfo("Server stopped");
+    }
+
     /**
      * Private class representing a {@link Thread} of this IoTServer.
      */
@@ -134,11 +170,17 @@ public class IoTServer {
          */
         public void run() {
             try {
-                ObjectInputStream input = new ObjectInputStream(cliSocket.getInputStream());
-                ObjectOutputStream output = new ObjectOutputStream(cliSocket.getOutputStream());
+                // Also bounds the handshake and authentication of a device that disappears
+                SessionRegistry sessions = SessionRegistry.getInstance();
+                cliSocket.setSoTimeout(sessions.getReadTimeout());
+                ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(
+                        cliSocket.getInputStream(), FileTransfer.CHUNK_SIZE));
+                CoalescingOutputStream socketOutput = new CoalescingOutputStream(
+                        cliSocket.getOutputStream(), FileTransfer.CHUNK_SIZE);
+                ObjectOutputStream output = new ObjectOutputStream(socketOutput);
 
                 String deviceIP = cliSocket.getInetAddress().getHostAddress();
-                Connection connection = new Connection(input, output, srvStorage);
+                Connection connection = new Connection(cliSocket, input, output, socketOutput, srvStorage);
                 ServerLogger.logInfo("Connection request from " + deviceIP);
 
                 boolean auth = connection.userAuthentication(apiKey);
@@ -155,10 +197,15 @@ public class IoTServer {
                 if (isValid) {
                     ServerLogger.logInfo("Device from " + deviceIP + " validated!");
                     ServerLogger.logInfo("Device connected " + connection.getDevice());
-                    ServerLogger.logInfo("Active connections: " + ++counter);
+                    ServerLogger.logInfo("Active connections: " + sessions.size());
                     connection.handleRequests();
-                    ServerLogger.logInfo("Device disconnected " + connection.getDevice());
-                    ServerLogger.logInfo("Active connections: " + --counter);
+                    ServerLogger.logInfo("Device disconnected " + connection.getSession());
+                    ServerLogger.logInfo("Active connections: " + sessions.size());
+                    ServerLogger.logInfo("Transfer buffers: " + BufferPool.getInstance().getStats());
+                    ServerLogger.logInfo("File cache: " + srvStorage.getCacheStats());
+                    ServerLogger.logInfo("Persistence: " + srvStorage.getWriterStats());
+                    ServerLogger.logInfo("Usage of " + connection.getDevice() + ": "
+                            + QuotaManager.getInstance().getUsage(connection.getDevice()));
                 } else {
                     ServerLogger.logWarning("Device from " + deviceIP + " not validated!");
                 }
@@ -168,6 +215,13 @@ public class IoTServer {
                 cliSocket.close();
             } catch (Exception e) {
                 System.out.println(e.getMessage());
+            } finally {
+                // The socket may be left open if the device failed in the middle of a message
+                try {
+                    cliSocket.close();
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
             }
         }
     }
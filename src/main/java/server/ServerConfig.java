@@ -0,0 +1,80 @@
+package server;
+
+/**
+ * Utility class that gives access to the tunable parameters of the
+ * {@code IoTServer}. Parameters are read from system properties given
+ * when executed (e.g. {@code -Diot.snapshot.interval=60}), falling back
+ * to a default value when a property is not set or is invalid.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class ServerConfig {
+
+    /**
+     * Utility class not meant to be constructed
+     */
+    private ServerConfig() {}
+
+    /**
+     * Returns the value of an integer parameter
+     *
+     * @param name the name of the parameter
+     * @param def the default value
+     * @return the value of the parameter, or {@code def} if not set or invalid
+     */
+    public static int getInt(String name, int def) {
+        String value = System.getProperty(name);
+        if (value == null) return def;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ServerLogger.logWarning("Invalid value for " + name + ", using " + def);
+            return def;
+        }
+    }
+
+    /**
+     * Returns the value of a long parameter
+     *
+     * @param name the name of the parameter
+     * @param def the default value
+     * @return the value of the parameter, or {@code def} if not set or invalid
+     */
+    public static long getLong(String name, long def) {
+        String value = System.getProperty(name);
+        if (value == null) return def;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            ServerLogger.logWarning("Invalid value for " + name + ", using " + def);
+            return def;
+        }
+    }
+
+    /**
+     * Returns the value of a boolean parameter
+     *
+     * @param name the name of the parameter
+     * @param def the default value
+     * @return the value of the parameter, or {@code def} if not set
+     */
+    public static boolean getBoolean(String name, boolean def) {
+        String value = System.getProperty(name);
+        return value == null ? def : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Returns the value of a string parameter
+     *
+     * @param name the name of the parameter
+     * @param def the default value
+     * @return the value of the parameter, or {@code def} if not set
+     */
+    public static String getString(String name, String def) {
+        String value = System.getProperty(name);
+        return value == null ? def : value.trim();
+    }
+
+}
@@ -1,19 +1,29 @@
 package server.communication;
 
+import common.CoalescingOutputStream;
 import common.Codes;
+import common.FileTransfer;
 import common.Message;
+import common.TemperatureColumns;
 import common.security.CommonUtils;
 import server.ServerLogger;
 import server.components.Device;
 import server.components.Domain;
 import server.components.User;
 import server.persistence.Storage;
+import server.persistence.managers.ImageManager.StoredImage;
 import server.security.SecurityUtils;
 
 import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a {@code IoTDevice} connection to the {@code IoTServer}.
@@ -36,29 +46,52 @@ public class Connection {
      */
     private final Storage srvStorage;
 
+    /**
+     * Lanes shared by all connections, that limit the requests of each class,
+     * and quotas of the requests and bytes of each user and device
+     */
+    private final RequestLanes lanes;
+    private final QuotaManager quotas;
+
+    /**
+     * Sessions of the connected devices
+     */
+    private final SessionRegistry sessions;
+
     /**
      * Communication channels
      */
     private final ObjectInputStream input;
     private final ObjectOutputStream output;
+    private final CoalescingOutputStream socketOutput;     // the stream under output
+    private final Socket socket;
 
     /**
      * Connection attributes
      */
     private User devUser;           //The user of this connection
     private Device device;          //The device of this connection
+    private SessionRegistry.Session session;
 
     /**
      * Constructs a new {@code Connection}.
      *
+     * @param socket the {@link Socket} of this connection
      * @param input the {@link ObjectInputStream} for this connection
      * @param output the {@link ObjectOutputStream} for this connection
+     * @param socketOutput the stream of the socket under {@code output}
      * @param srvStorage the {@code Storage}
      */
-    public Connection(ObjectInputStream input, ObjectOutputStream output, Storage srvStorage) {
+    public Connection(Socket socket, ObjectInputStream input, ObjectOutputStream output,
+                      CoalescingOutputStream socketOutput, Storage srvStorage) {
         this.srvStorage = srvStorage;
+        this.lanes = RequestLanes.getInstance();
+        this.quotas = QuotaManager.getInstance();
+        this.sessions = SessionRegistry.getInstance();
+        this.socket = socket;
         this.input = input;
         this.output = output;
+        this.socketOutput = socketOutput;
         this.devUser = null;
         this.device = null;
     }
@@ -79,7 +112,12 @@ public class Connection {
             long received = Long.parseLong((String) msg.getSignedObject().getObject());
             PublicKey pubKey = user == null ?
                     msg.getCertificate().getPublicKey()
-                    : SecurityUtils.getUserPubKey(new File(user.certificate()));
+                    : srvStorage.getUserPubKey(user);
+            if (pubKey == null) {
+                ServerLogger.logError("Unable to load the public key of " + userId);
+                output.writeObject(Codes.NOK.toString());
+                return false;
+            }
 
             boolean verified = SecurityUtils.verifySignature(pubKey, msg.getSignedObject());
             if (generated == received && verified) {
@@ -89,8 +127,13 @@ public class Connection {
                     String keyPath = "server/users_pub_keys/" + userId + ".cer";
                     File pubKeyFile = new File(keyPath);
                     SecurityUtils.savePublicKeyToFile(msg.getCertificate().getPublicKey(), pubKeyFile);
+                    srvStorage.trackFile(keyPath);
                     devUser = new User(userId, keyPath);
-                    srvStorage.saveUser(this.devUser);
+                    if (!srvStorage.saveUser(this.devUser).equals(Codes.OK.toString())) {
+                        ServerLogger.logError("Unable to save user " + userId);
+                        devUser = null;
+                        return false;
+                    }
                 } else {
                     output.writeObject(Codes.OKUSER.toString());
                     if (!authentication2FA(apiKey, userId)) return false;
@@ -157,11 +200,13 @@ public class Connection {
         try {
             int devId = Integer.parseInt((String) input.readObject());
             this.device = new Device(devUser.name(), devId);
-            Device exists = srvStorage.getDevice(this.device);
-            if (exists != null && exists.isConnected()) {
+            this.session = sessions.claim(this.device, socket);
+            if (this.session == null) { // Device already connected
                 output.writeObject(Codes.NOKDEVID.toString());
                 return false;
-            } else if (exists == null) {
+            }
+            Device exists = srvStorage.getDevice(this.device);
+            if (exists == null) {
                 srvStorage.saveDevice(this.device);
             } else {
                 this.device = exists;
@@ -176,7 +221,6 @@ public class Connection {
             String name = (String) input.readObject();
             byte[] client = (byte[]) input.readObject();
             if(name.equals(copyInfo[0]) && CommonUtils.compareHashes(client, server)) {
-                this.device.setConnected(true);
                 output.writeObject(Codes.OKTESTED.toString());
                 return true;
             } else {
@@ -185,6 +229,7 @@ public class Connection {
         } catch (Exception e) {
             ServerLogger.logError("Error during device validation");
         }
+        if (this.session != null) sessions.unregister(this.session);
         return false;
     }
 
@@ -195,27 +240,53 @@ public class Connection {
      */
     public void handleRequests() {
         try {
-            while (true) {
+            while (!sessions.isDraining()) { // End after the current request when shutting down
+                socket.setSoTimeout(sessions.getIdleTimeout()); // Wait for the next request
                 String msg = (String) input.readObject();
+                socket.setSoTimeout(sessions.getReadTimeout());
                 String[] parsedMsg = msg.split(";");
 
                 String command = parsedMsg[0];
+                session.command(command);
+                if (command.equals("PING")) { // Heartbeat of an idle device
+                    output.writeObject(Codes.OK.toString());
+                    session.finished();
+                    continue;
+                }
                 System.out.println("Received " + command + " request from " + device);
-                switch (command) {
-                    case "CREATE" -> handleCREATE(parsedMsg[1]);
-                    case "ADD" -> handleADD(parsedMsg[1], parsedMsg[2]);
-                    case "RD" -> handleRD(parsedMsg[1]);
-                    case "MYDOMAINS" -> handleMYDOMAINS();
-                    case "ET" -> handleET();
-                    case "EI" -> handleEI();
-                    case "RT" -> handleRT(parsedMsg[1]);
-                    case "RI" -> handleRI(parsedMsg[1]);
-                    default -> output.writeObject(Codes.NOK.toString());
+                long retryAfter = quotas.admit(devUser, device);
+                if (retryAfter > 0) { // Over the quota of the user or device
+                    output.writeObject(Codes.THROTTLED.toString());
+                    output.writeLong(retryAfter);
+                    output.flush();
+                    session.finished();
+                    continue;
+                }
+                RequestLanes.Lane lane = RequestLanes.laneOf(command);
+                lanes.enter(lane); // Wait for a turn in the lane of the command
+                try {
+                    switch (command) {
+                        case "CREATE" -> handleCREATE(parsedMsg[1]);
+                        case "ADD" -> handleADD(parsedMsg[1], parsedMsg[2]);
+                        case "RD" -> handleRD(parsedMsg[1]);
+                        case "MYDOMAINS" -> handleMYDOMAINS();
+                        case "ET" -> handleET();
+                        case "EI" -> handleEI();
+                        case "RT" -> handleRT(parsedMsg[1],
+                                parsedMsg.length > 2 && parsedMsg[2].equals(TemperatureColumns.FORMAT));
+                        case "RI" -> handleRI(parsedMsg[1],
+                                parsedMsg.length > 2 ? Long.parseLong(parsedMsg[2]) : Long.MAX_VALUE);
+                        default -> output.writeObject(Codes.NOK.toString());
+                    }
+                } finally {
+                    lanes.exit(lane);
+                    session.finished();
                 }
             }
         } catch (Exception e) {
             // Terminate this connection
-            this.device.setConnected(false);
+        } finally {
+            sessions.unregister(session);
         }
     }
 
@@ -265,6 +336,7 @@ public class Connection {
                 String path = parent + "/" + u + ".key.cif";
                 if (receiveFile(path, size)) {
                     ServerLogger.logInfo("User key received");
+                    srvStorage.trackFile(path);
                     res = srvStorage.addUserToDomain(user, domain);
                     output.writeObject(res);
                 } else {
@@ -345,16 +417,13 @@ public class Connection {
             input.readObject(); // Receive confirmation of receiving the domains
 
             for (Domain d : domains) {
-                String keyPath = "server/domain_keys/" + d.getName()
-                        + "/" + devUser.name() + ".key.cif";
-                File keyFile = new File(keyPath);
-                if (!keyFile.exists()) {
+                ByteBuffer key = readDomainKey(d);
+                if (key == null) {
                     ServerLogger.logError("Key not found");
                     output.writeObject(Codes.NOK.toString());
                     return;
                 }
-                output.writeInt((int) keyFile.length()); // Send key size
-                sendFile(keyPath, (int) keyFile.length()); // Send key
+                sendContent(key); // Send key size and key
 
                 // Receive and save encrypted temperature
                 String encTemp = (String) this.input.readObject();
@@ -402,33 +471,56 @@ public class Connection {
             output.writeObject(sb.toString()); // Send domains
             input.readObject(); // Receive confirmation of receiving the domains
 
-            for (Domain d : domains) { // Receive one image per domain
-                String keyPath = "server/domain_keys/" + d.getName()
-                        + "/" + devUser.name() + ".key.cif";
-                File keyFile = new File(keyPath);
-                if (!keyFile.exists()) {
+            // Receive the key of the image wrapped with each domain key
+            Map<Domain, byte[]> wrappedKeys = new LinkedHashMap<>();
+            for (Domain d : domains) {
+                ByteBuffer key = readDomainKey(d);
+                if (key == null) {
                     ServerLogger.logError("Key not found");
                     output.writeObject(Codes.NOK.toString());
                     return;
                 }
-                output.writeInt((int) keyFile.length()); // Send key size
-                sendFile(keyPath, (int) keyFile.length()); // Send key
+                sendContent(key); // Send key size and key
 
-                int size = input.readInt(); // Receive image size
-                String imagePath = "server/images/" + device.getUser()
-                        + "_" + device.getId() + "_" + d.getName() + ".jpg.cif";
-                receiveFile(imagePath, size); // Receive image
+                wrappedKeys.put(d, (byte[]) input.readObject()); // Receive wrapped key
                 output.writeObject(Codes.OK.toString()); // Send confirmation
             }
+
+            // Receive the image, encrypted only once. The upload id is the hash
+            // of the encrypted image, and an interrupted upload with the same id
+            // is resumed from the last chunk received
+            String uploadId = (String) input.readObject();
+            long size = input.readLong();
+            if (!uploadId.matches("[0-9a-f]{64}")) throw new IOException("Invalid upload id");
+            String uploadPath = srvStorage.getImageUploadPath(device, uploadId);
+            File upload = new File(uploadPath);
+            long offset = FileTransfer.resumeOffset(upload, size);
+            if (offset > 0) ServerLogger.logInfo("Resuming upload of " + device + " at byte " + offset);
+            output.writeLong(offset); // Send the bytes already received
+            output.flush();
+            try (FileChannel channel = FileChannel.open(upload.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+                FileTransfer.receive(input, channel, offset, size, bytes -> throttleBulk(bytes, true));
+            }
+
             // Receive final confirmation
             String res = (String) input.readObject();
+            if (!res.equals(Codes.OK.toString())) {
+                res = Codes.NOK.toString();
+            } else if (!uploadId.equals(CommonUtils.calculateFileHash(upload))) {
+                ServerLogger.logWarning("Image received does not match its upload id");
+                upload.delete();
+                res = Codes.NOK.toString();
+            } else {
+                res = srvStorage.saveImage(device, uploadPath, wrappedKeys);
+            }
             if (res.equals(Codes.OK.toString())) {
                 ServerLogger.logInfo("Image received");
-                output.writeObject(Codes.OK.toString());
             } else {
                 ServerLogger.logWarning("Unable to receive image");
-                output.writeObject(Codes.NOK.toString());
             }
+            output.writeObject(res);
         } catch (Exception e) {
             ServerLogger.logError("Error when trying to receive image");
             output.writeObject(Codes.NOK.toString());
@@ -439,12 +531,14 @@ public class Connection {
      * Handles the command RT
      *
      * @param d the name of the {@code Domain}
+     * @param columns true to send the temperatures in the binary format
+     *                of {@code TemperatureColumns}, false to send text lines
      * @throws IOException if an error occurred when sending the file,
      *         or during the communication between client and server
-     * @see #sendFile(String, int)
+     * @see #sendContent(ByteBuffer)
      * @see Codes
      */
-    private void handleRT(String d) throws IOException {
+    private void handleRT(String d, boolean columns) throws IOException {
         Domain domain = srvStorage.getDomain(d);
         if (domain == null) {
             ServerLogger.logWarning("Domain " + d + " does not exist");
@@ -453,24 +547,19 @@ public class Connection {
             ServerLogger.logWarning("User does not have permission");
             output.writeObject(Codes.NOPERM.toString());
         } else {
-            String path = srvStorage.getDomainTemperatures(domain);
-            if (path != null) {
-                String keyPath = "server/domain_keys/" + domain.getName()
-                        + "/" + devUser.name() + ".key.cif";
-                File keyFile = new File(keyPath);
-                if (!keyFile.exists()) { // Find domain key
+            ByteBuffer temperatures = columns ? srvStorage.getDomainTemperatureColumns(domain)
+                    : srvStorage.getDomainTemperatures(domain);
+            if (temperatures != null) {
+                ByteBuffer key = readDomainKey(domain);
+                if (key == null) { // Find domain key
                     ServerLogger.logError("Key not found");
                     output.writeObject(Codes.NOK.toString());
                     return;
                 }
                 output.writeObject(Codes.OK.toString());
 
-                output.writeInt((int) keyFile.length()); // Send the key size
-                sendFile(keyPath, (int) keyFile.length()); // Send the key
-
-                int size = (int) new File(path).length();
-                output.writeInt(size);
-                if (sendFile(path, size)) { // Send the temperatures file
+                sendContent(key); // Send the key size and the key
+                if (sendContent(temperatures)) { // Send the temperatures file
                     ServerLogger.logInfo("Temperatures from domain " + d + " sent successfully");
                 } else {
                     ServerLogger.logWarning("Failed to send temperatures from domain " + d);
@@ -487,12 +576,14 @@ public class Connection {
      * Handles the command RI
      *
      * @param dev the {@code Device}
+     * @param time the time of the requested image in milliseconds,
+     *             {@code Long.MAX_VALUE} for the current image
      * @throws IOException if an error occurred when sending the image,
      *         or during the communication between client and server
-     * @see #sendFile(String, int)
+     * @see #sendContent(ByteBuffer)
      * @see Codes
      */
-    private void handleRI(String dev) throws IOException {
+    private void handleRI(String dev, long time) throws IOException {
         try {
             String user = dev.split(":")[0];
             int id = Integer.parseInt(dev.split(":")[1]);
@@ -507,29 +598,29 @@ public class Connection {
                 List<Domain> domains = srvStorage.getDeviceDomains(device);
                 for (Domain d : domains) {
                     if (d.getUsers().contains(devUser)) {
-                        File domainKeyEnc = new File("server/domain_keys/"
-                                + d.getName() + "/" + devUser.name() + ".key.cif");
-                        if (domainKeyEnc.exists()) { // Domain key
-                            File imageEnc = new File("server/images/"
-                                    + device.getUser() + "_" + device.getId()
-                                    + "_" + d.getName() + ".jpg.cif");
-                            if (imageEnc.exists()) { // Image encrypted
-                                output.writeObject(Codes.OK.toString());
-
-                                output.writeObject(d.getName());
-                                output.writeInt((int) domainKeyEnc.length());
-                                sendFile(domainKeyEnc.getPath(), (int) domainKeyEnc.length());
-
-                                input.readObject(); // Receive confirmation
-                                output.writeInt((int) imageEnc.length());
-                                sendFile(imageEnc.getPath(), (int) imageEnc.length());
-
-                                input.readObject(); // Receive confirmation
-                                output.writeObject(Codes.OK.toString());
-                                ServerLogger.logInfo("Image from " + device + " sent successfully");
-                                return;
-                            }
-                        }
+                        ByteBuffer key = readDomainKey(d);
+                        if (key == null) continue; // Domain key
+                        StoredImage image = srvStorage.openImage(device, d, time);
+                        if (image == null) continue; // Image encrypted
+                        output.writeObject(Codes.OK.toString());
+
+                        output.writeObject(d.getName());
+                        sendContent(key);
+
+                        input.readObject(); // Receive confirmation
+                        output.writeObject(image.wrappedKey()); // Null if encrypted with the domain key
+                        output.writeObject(image.version());
+                        output.writeLong(image.size());
+                        output.flush();
+                        long offset = input.readLong(); // Bytes the device already has
+                        if (offset < 0 || offset > image.size()) throw new IOException("Invalid offset");
+                        FileTransfer.send(image.content(), offset, output, socketOutput,
+                                bytes -> throttleBulk(bytes, false));
+
+                        input.readObject(); // Receive confirmation
+                        output.writeObject(Codes.OK.toString());
+                        ServerLogger.logInfo("Image from " + device + " sent successfully");
+                        return;
                     }
                 }
                 ServerLogger.logWarning("No data found for " + device);
@@ -546,56 +637,75 @@ public class Connection {
      *
      * @param size the size in bytes of the file to receive
      * @param path the path to store the file
-     *
+     * @return true if the whole file was received, false otherwise
+     * @see FileTransfer
      */
     private boolean receiveFile(String path, int size) {
-        File file = new File(path);
-        try {
-            FileOutputStream out = new FileOutputStream(file);
-            BufferedOutputStream bos = new BufferedOutputStream(out);
-            byte[] buffer = new byte[8192];
-            int bytesLeft = size;
-            while (bytesLeft > 0) {
-                int bytesRead = input.read(buffer);
-                bos.write(buffer, 0, bytesRead);
-                bytesLeft -= bytesRead;
-            }
-            bos.flush();
-            bos.close();
-            out.close();
-        } catch (Exception e) {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileTransfer.receive(input, channel, 0, size);
+        } catch (IOException e) {
             return false;
         }
         return true;
     }
 
     /**
-     * Sends a file to the {@code IoTDevice}.
+     * Sends the content of a file to the {@code IoTDevice},
+     * preceded by its size.
      *
-     * @param path the path of the file to send
-     * @param size the size in bytes of the file to send
+     * @param content the content of the file to send
+     * @return true if the whole file was sent, false otherwise
+     * @see FileTransfer
      */
-    private boolean sendFile(String path, int size) {
-        File file = new File(path);
+    private boolean sendContent(ByteBuffer content) {
         try {
-            FileInputStream in = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(in);
-            byte[] buffer = new byte[8192];
-            int bytesLeft = size;
-            while (bytesLeft > 0) {
-                int bytesRead = bis.read(buffer);
-                output.write(buffer, 0, bytesRead);
-                bytesLeft -= bytesRead;
-            }
-            output.flush();
-            bis.close();
-            in.close();
+            output.writeInt(content.remaining());
+            FileTransfer.send(content, 0, output, socketOutput, bytes -> chargeBytes(bytes, false));
         } catch (IOException e) {
             return false;
         }
         return true;
     }
 
+    /**
+     * Limits the rate of an image transfer, by the bulk lane
+     * and by the quota of the user and device
+     *
+     * @param bytes the size of the next chunk
+     * @param received true if received from the device, false if sent to it
+     * @throws IOException if interrupted while waiting
+     */
+    private void throttleBulk(int bytes, boolean received) throws IOException {
+        lanes.throttleBulk(bytes);
+        chargeBytes(bytes, received);
+    }
+
+    /**
+     * Counts the bytes of a transfer in the quota of the user
+     * and device, and in the counters of the session
+     *
+     * @param bytes the size of the next chunk
+     * @param received true if received from the device, false if sent to it
+     */
+    private void chargeBytes(int bytes, boolean received) {
+        quotas.charge(devUser, device, bytes);
+        session.transferred(bytes, received);
+    }
+
+    /**
+     * Returns the key of a {@code Domain} encrypted
+     * for the user of this {@code Connection}
+     *
+     * @param domain the {@code Domain}
+     * @return the encrypted key, or null if the user has no key
+     * @throws IOException if the key could not be read
+     */
+    private ByteBuffer readDomainKey(Domain domain) throws IOException {
+        return srvStorage.readFile("server/domain_keys/" + domain.getName()
+                + "/" + devUser.name() + ".key.cif");
+    }
+
     /**
      * Returns the {@code Device} of this {@code Connection}
      *
@@ -605,4 +715,13 @@ public class Connection {
         return device;
     }
 
+    /**
+     * Returns the session of the {@code Device} of this {@code Connection}
+     *
+     * @return the session, or null if the device was not validated
+     */
+    public SessionRegistry.Session getSession() {
+        return session;
+    }
+
 }
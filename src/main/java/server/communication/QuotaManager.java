@@ -0,0 +1,261 @@
+package server.communication;
+
+import server.ServerConfig;
+import server.components.Device;
+import server.components.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton class that limits the requests and the bytes transferred by
+ * each user and by each device, so that a single device can not saturate
+ * the server. Each user and each device has a {@link TokenBucket} of
+ * requests per second and one of bytes per second. A request is refused
+ * while any of its buckets is empty, and the device is told how long to
+ * wait; bytes are counted as they are transferred, and a transfer that
+ * exceeds the quota delays the next requests.
+ *
+ * <p>The quotas are read from the system properties {@code iot.quota.device.requests},
+ * {@code iot.quota.user.requests}, {@code iot.quota.device.bytes} and
+ * {@code iot.quota.user.bytes}, 0 meaning unlimited.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Connection
+ */
+public class QuotaManager {
+
+    /**
+     * Seconds of quota that can be used in a burst
+     */
+    private static final int BURST_SECONDS = 2;
+
+    /**
+     * The instance of {@code QuotaManager}
+     */
+    private static final QuotaManager instance = new QuotaManager(
+            ServerConfig.getLong("iot.quota.device.requests", 10),
+            ServerConfig.getLong("iot.quota.user.requests", 50),
+            ServerConfig.getLong("iot.quota.device.bytes", 0) * 1024 * 1024,
+            ServerConfig.getLong("iot.quota.user.bytes", 0) * 1024 * 1024);
+
+    /**
+     * Quotas per second, 0 if unlimited
+     */
+    private final long deviceRequests;
+    private final long userRequests;
+    private final long deviceBytes;
+    private final long userBytes;
+
+    /**
+     * Data structures
+     */
+    private final Map<String, Quota> quotas;    // quota of each user and device
+
+    /**
+     * Constructs a new {@code QuotaManager}
+     *
+     * @param deviceRequests the requests per second of a device
+     * @param userRequests the requests per second of a user
+     * @param deviceBytes the bytes per second of a device
+     * @param userBytes the bytes per second of a user
+     */
+    private QuotaManager(long deviceRequests, long userRequests, long deviceBytes, long userBytes) {
+        this.deviceRequests = deviceRequests;
+        this.userRequests = userRequests;
+        this.deviceBytes = deviceBytes;
+        this.userBytes = userBytes;
+        this.quotas = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the instance of {@code QuotaManager}
+     *
+     * @return the instance of {@code QuotaManager}
+     */
+    public static QuotaManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Checks if a request of a {@code Device} is within the
+     * quotas of the device and of its {@code User}
+     *
+     * @param user the {@code User}
+     * @param device the {@code Device}
+     * @return 0 if the request is accepted, otherwise the time in
+     *         milliseconds the device should wait before trying again
+     */
+    public long admit(User user, Device device) {
+        Quota userQuota = userQuota(user);
+        Quota deviceQuota = deviceQuota(device);
+        long wait = Math.max(deviceQuota.waitTime(), userQuota.waitTime());
+        if (wait == 0) {
+            wait = deviceQuota.takeRequest();
+            if (wait == 0) {
+                wait = userQuota.takeRequest();
+                // The request is refused, so the device does not pay for it
+                if (wait > 0) deviceQuota.refundRequest();
+            }
+        }
+        if (wait == 0) {
+            deviceQuota.accepted.increment();
+            userQuota.accepted.increment();
+        } else {
+            deviceQuota.throttled.increment();
+            userQuota.throttled.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Counts bytes transferred by a {@code Device}
+     *
+     * @param user the {@code User}
+     * @param device the {@code Device}
+     * @param bytes the number of bytes
+     */
+    public void charge(User user, Device device, long bytes) {
+        userQuota(user).takeBytes(bytes);
+        deviceQuota(device).takeBytes(bytes);
+    }
+
+    /**
+     * Returns the usage of a {@code User}
+     *
+     * @param user the {@code User}
+     * @return the usage of the user
+     */
+    public Usage getUsage(User user) {
+        return userQuota(user).usage();
+    }
+
+    /**
+     * Returns the usage of a {@code Device}
+     *
+     * @param device the {@code Device}
+     * @return the usage of the device
+     */
+    public Usage getUsage(Device device) {
+        return deviceQuota(device).usage();
+    }
+
+    /**
+     * Returns the quota of a {@code User}, creating it on first use
+     *
+     * @param user the {@code User}
+     * @return the quota of the user
+     */
+    private Quota userQuota(User user) {
+        return quotas.computeIfAbsent("user:" + user.name(),
+                k -> new Quota(userRequests, userBytes));
+    }
+
+    /**
+     * Returns the quota of a {@code Device}, creating it on first use
+     *
+     * @param device the {@code Device}
+     * @return the quota of the device
+     */
+    private Quota deviceQuota(Device device) {
+        return quotas.computeIfAbsent("device:" + device,
+                k -> new Quota(deviceRequests, deviceBytes));
+    }
+
+    /**
+     * The quota of a user or device
+     */
+    private static class Quota {
+
+        /**
+         * Buckets, null if unlimited
+         */
+        private final TokenBucket requests;
+        private final TokenBucket bytes;
+
+        /**
+         * Counters
+         */
+        private final LongAdder accepted;
+        private final LongAdder throttled;
+        private final LongAdder transferred;
+
+        /**
+         * Constructs a new {@code Quota}
+         *
+         * @param requests the requests per second, 0 if unlimited
+         * @param bytes the bytes per second, 0 if unlimited
+         */
+        private Quota(long requests, long bytes) {
+            this.requests = requests > 0 ? new TokenBucket(requests, requests * BURST_SECONDS) : null;
+            this.bytes = bytes > 0 ? new TokenBucket(bytes, bytes * BURST_SECONDS) : null;
+            this.accepted = new LongAdder();
+            this.throttled = new LongAdder();
+            this.transferred = new LongAdder();
+        }
+
+        /**
+         * Returns the time until the bytes already transferred are within the quota
+         *
+         * @return the time in milliseconds, 0 if within the quota
+         */
+        private long waitTime() {
+            return bytes == null ? 0 : bytes.tryAcquire(0);
+        }
+
+        /**
+         * Takes a request from the quota
+         *
+         * @return 0 if taken, otherwise the time in milliseconds until it can be taken
+         */
+        private long takeRequest() {
+            return requests == null ? 0 : requests.tryAcquire(1);
+        }
+
+        /**
+         * Gives back a request taken from the quota that was not accepted
+         */
+        private void refundRequest() {
+            if (requests != null) requests.refund(1);
+        }
+
+        /**
+         * Takes bytes from the quota, possibly exceeding it
+         *
+         * @param count the number of bytes
+         */
+        private void takeBytes(long count) {
+            transferred.add(count);
+            if (bytes != null) bytes.take(count);
+        }
+
+        /**
+         * Returns the counters of this quota
+         *
+         * @return the usage
+         */
+        private Usage usage() {
+            return new Usage(accepted.sum(), throttled.sum(), transferred.sum());
+        }
+    }
+
+    /**
+     * The usage of a user or device since the server started
+     *
+     * @param requests the number of requests accepted
+     * @param throttled the number of requests refused for exceeding the quota
+     * @param bytes the number of bytes transferred
+     */
+    public record Usage(long requests, long throttled, long bytes) {
+
+        @Override
+        public String toString() {
+            return requests + " requests, " + throttled + " throttled, " + bytes + " bytes";
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package server.communication;
+
+import server.ServerConfig;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Singleton class that separates the requests of the devices in lanes,
+ * so that bulk transfers can not starve the other requests:
+ * <ul>
+ *     <li>{@link Lane#CONTROL} - CREATE, ADD, RD and MYDOMAINS;</li>
+ *     <li>{@link Lane#TELEMETRY} - ET and RT;</li>
+ *     <li>{@link Lane#BULK} - EI and RI.</li>
+ * </ul>
+ * Each lane has a maximum number of requests handled at the same time,
+ * over all connections; further requests wait for their turn. The bytes
+ * of the bulk transfers are also limited by a rate, which is halved while
+ * there are telemetry requests being handled, so that bulk transfers are
+ * throttled before telemetry is.
+ *
+ * <p>The parameters are read from the system properties {@code iot.lanes.control},
+ * {@code iot.lanes.telemetry}, {@code iot.lanes.bulk} and {@code iot.lanes.bulk.rate}.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Connection
+ */
+public class RequestLanes {
+
+    /**
+     * The classes of requests
+     */
+    public enum Lane { CONTROL, TELEMETRY, BULK }
+
+    /**
+     * The instance of {@code RequestLanes}
+     */
+    private static final RequestLanes instance = new RequestLanes(
+            ServerConfig.getInt("iot.lanes.control", 16),
+            ServerConfig.getInt("iot.lanes.telemetry", 64),
+            ServerConfig.getInt("iot.lanes.bulk", 8),
+            ServerConfig.getLong("iot.lanes.bulk.rate", 0) * 1024 * 1024);
+
+    /**
+     * Data structures
+     */
+    private final Semaphore[] permits;          // requests each lane can still start
+    private final AtomicInteger telemetry;      // telemetry requests being handled
+    private final TokenBucket bulkBytes;        // null if unlimited
+
+    /**
+     * Constructs a new {@code RequestLanes}
+     *
+     * @param control the maximum control requests at the same time
+     * @param telemetry the maximum telemetry requests at the same time
+     * @param bulk the maximum bulk transfers at the same time
+     * @param bulkRate the maximum bytes per second of all bulk transfers, 0 if unlimited
+     */
+    private RequestLanes(int control, int telemetry, int bulk, long bulkRate) {
+        this.permits = new Semaphore[] {
+                new Semaphore(Math.max(1, control), true),
+                new Semaphore(Math.max(1, telemetry), true),
+                new Semaphore(Math.max(1, bulk), true)
+        };
+        this.telemetry = new AtomicInteger();
+        this.bulkBytes = bulkRate > 0 ? new TokenBucket(bulkRate, bulkRate) : null;
+    }
+
+    /**
+     * Returns the instance of {@code RequestLanes}
+     *
+     * @return the instance of {@code RequestLanes}
+     */
+    public static RequestLanes getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the lane of a command
+     *
+     * @param command the command
+     * @return the lane of the command
+     */
+    public static Lane laneOf(String command) {
+        return switch (command) {
+            case "ET", "RT" -> Lane.TELEMETRY;
+            case "EI", "RI" -> Lane.BULK;
+            default -> Lane.CONTROL;
+        };
+    }
+
+    /**
+     * Waits for a turn to handle a request in the given lane.
+     * Must be followed by {@link #exit(Lane)}.
+     *
+     * @param lane the lane of the request
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void enter(Lane lane) throws InterruptedException {
+        permits[lane.ordinal()].acquire();
+        if (lane == Lane.TELEMETRY) telemetry.incrementAndGet();
+    }
+
+    /**
+     * Ends the handling of a request in the given lane
+     *
+     * @param lane the lane of the request
+     */
+    public void exit(Lane lane) {
+        if (lane == Lane.TELEMETRY) telemetry.decrementAndGet();
+        permits[lane.ordinal()].release();
+    }
+
+    /**
+     * Waits until a bulk transfer can read or write the given number of bytes.
+     * Bytes cost twice as much while there are telemetry requests.
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void throttleBulk(int bytes) throws InterruptedIOException {
+        if (bulkBytes == null) return;
+        bulkBytes.acquire(telemetry.get() > 0 ? 2L * bytes : bytes);
+    }
+
+}
@@ -0,0 +1,375 @@
+package server.communication;
+
+import server.ServerConfig;
+import server.ServerLogger;
+import server.components.Device;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton class that keeps the sessions of the devices connected to the
+ * {@code IoTServer}, and reaps the sessions that are no longer alive.
+ * Each device has at most one session, claimed atomically when it
+ * connects, so two connections of the same device can not both succeed.
+ * The sessions are kept in a concurrent map, so finding, counting and
+ * listing them does not lock the whole registry.
+ *
+ * <p>A session is alive while its device sends requests or heartbeats.
+ * The socket of each session has a read timeout, so a thread waiting for
+ * a device that disappeared ends by itself; a background task also closes
+ * the sockets of the sessions without activity for longer than the idle
+ * timeout, which ends the threads blocked writing to them. A device that
+ * reconnects while its previous session was not yet reaped takes its place
+ * if that session is stale.
+ *
+ * <p>When the server shuts down, the registry is drained: idle sessions are
+ * closed at once, and sessions in the middle of a request are closed when
+ * it ends, or when the deadline of the shutdown is reached.
+ *
+ * <p>The timeouts are read from the system properties {@code iot.session.read},
+ * {@code iot.session.idle} and {@code iot.session.stale}, in seconds.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Connection
+ */
+public class SessionRegistry {
+
+    /**
+     * The instance of {@code SessionRegistry}
+     */
+    private static final SessionRegistry instance = new SessionRegistry(
+            TimeUnit.SECONDS.toMillis(ServerConfig.getLong("iot.session.read", 120)),
+            TimeUnit.SECONDS.toMillis(ServerConfig.getLong("iot.session.idle", 600)),
+            TimeUnit.SECONDS.toMillis(ServerConfig.getLong("iot.session.stale", 120)));
+
+    /**
+     * Timeouts in milliseconds
+     */
+    private final long readTimeout;     // maximum wait for a message in the middle of a request
+    private final long idleTimeout;     // maximum wait for the next request
+    private final long staleTimeout;    // inactivity after which a session can be replaced
+
+    /**
+     * Data structures
+     */
+    private final Map<Device, Session> sessions;
+    private volatile boolean draining;              // true once the server is shutting down
+
+    /**
+     * Constructs a new {@code SessionRegistry}
+     *
+     * @param readTimeout the maximum wait in milliseconds for a message in the middle of a request
+     * @param idleTimeout the maximum wait in milliseconds for the next request
+     * @param staleTimeout the inactivity in milliseconds after which a session can be replaced
+     */
+    private SessionRegistry(long readTimeout, long idleTimeout, long staleTimeout) {
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+        this.staleTimeout = staleTimeout;
+        this.sessions = new ConcurrentHashMap<>();
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(idleTimeout, staleTimeout) / 4);
+        reaper.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the instance of {@code SessionRegistry}
+     *
+     * @return the instance of {@code SessionRegistry}
+     */
+    public static SessionRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the maximum wait for a message in the middle of a request
+     *
+     * @return the timeout in milliseconds
+     */
+    public int getReadTimeout() {
+        return (int) readTimeout;
+    }
+
+    /**
+     * Returns the maximum wait for the next request of a device
+     *
+     * @return the timeout in milliseconds
+     */
+    public int getIdleTimeout() {
+        return (int) idleTimeout;
+    }
+
+    /**
+     * Claims the session of a {@code Device}. Fails if the device already
+     * has a session that is alive; a stale session is closed and replaced.
+     *
+     * @param device the {@code Device}
+     * @param socket the socket of the new session
+     * @return the new session, or null if the device already has a session
+     */
+    public Session claim(Device device, Socket socket) {
+        if (draining) return null;
+        Session session = new Session(device, socket);
+        Session[] replaced = new Session[1];
+        Session current = sessions.compute(device, (key, previous) -> {
+            if (previous != null && previous.idleTime() < staleTimeout) return previous;
+            replaced[0] = previous;
+            return session;
+        });
+        if (replaced[0] != null) {
+            ServerLogger.logWarning("Replacing stale session of " + device);
+            replaced[0].close();
+        }
+        return current == session ? session : null;
+    }
+
+    /**
+     * Returns the session of a {@code Device}
+     *
+     * @param device the {@code Device}
+     * @return the session, or null if the device is not connected
+     */
+    public Session get(Device device) {
+        return sessions.get(device);
+    }
+
+    /**
+     * Returns the number of sessions
+     *
+     * @return the number of connected devices
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the sessions, without locking the registry. Sessions
+     * started or ended meanwhile may or may not be included.
+     *
+     * @return a list of the sessions
+     */
+    public List<Session> list() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Removes a session that ended
+     *
+     * @param session the session
+     * @return true if the session was still the one of its device,
+     *         false if it was replaced by a new session
+     */
+    public boolean unregister(Session session) {
+        return sessions.remove(session.device, session);
+    }
+
+    /**
+     * Verifies if the server is shutting down, in which case sessions
+     * must end after their current request
+     *
+     * @return true if draining, false otherwise
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Ends all sessions, letting the requests being handled finish
+     * until the given timeout. No new sessions can be claimed.
+     *
+     * @param timeout the maximum time in milliseconds to wait for the requests
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void drain(long timeout) throws InterruptedException {
+        draining = true;
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!sessions.isEmpty() && System.currentTimeMillis() < deadline) {
+            for (Session session : sessions.values()) {
+                if (!session.busy && sessions.remove(session.device, session)) session.close();
+            }
+            Thread.sleep(100);
+        }
+        for (Session session : sessions.values()) {
+            ServerLogger.logWarning("Closing session of " + session.device
+                    + " in the middle of " + session.lastCommand);
+            sessions.remove(session.device, session);
+            session.close();
+        }
+    }
+
+    /**
+     * Closes the sessions without activity for longer than the idle timeout
+     */
+    private void reap() {
+        for (Session session : sessions.values()) {
+            if (session.idleTime() > idleTimeout + readTimeout) {
+                ServerLogger.logWarning("Reaping idle session of " + session.device);
+                sessions.remove(session.device, session);
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * The session of a connected device
+     */
+    public static class Session {
+
+        /**
+         * Session attributes
+         */
+        private final Device device;
+        private final Socket socket;
+        private final long startTime;
+        private volatile long lastActivity;     // time of the last message or transfer
+        private volatile String lastCommand;
+        private volatile boolean busy;          // true while handling a request
+
+        /**
+         * Counters
+         */
+        private final LongAdder bytesIn;        // bytes of files received
+        private final LongAdder bytesOut;       // bytes of files sent
+
+        /**
+         * Constructs a new {@code Session}
+         *
+         * @param device the {@code Device}
+         * @param socket the socket of the session
+         */
+        private Session(Device device, Socket socket) {
+            this.device = device;
+            this.socket = socket;
+            this.startTime = System.currentTimeMillis();
+            this.lastActivity = startTime;
+            this.bytesIn = new LongAdder();
+            this.bytesOut = new LongAdder();
+        }
+
+        /**
+         * Records activity of this session
+         */
+        public void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Records a command received in this session
+         *
+         * @param command the command
+         */
+        public void command(String command) {
+            lastCommand = command;
+            busy = true;
+            touch();
+        }
+
+        /**
+         * Records the end of the command being handled in this session
+         */
+        public void finished() {
+            busy = false;
+            touch();
+        }
+
+        /**
+         * Records bytes of a file transferred in this session
+         *
+         * @param bytes the number of bytes
+         * @param received true if received from the device, false if sent to it
+         */
+        public void transferred(int bytes, boolean received) {
+            (received ? bytesIn : bytesOut).add(bytes);
+            touch();
+        }
+
+        /**
+         * Returns the {@code Device} of this session
+         *
+         * @return the {@code Device}
+         */
+        public Device getDevice() {
+            return device;
+        }
+
+        /**
+         * Returns the time this session started
+         *
+         * @return the time in milliseconds
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Returns the last command received in this session
+         *
+         * @return the command, or null if none was received
+         */
+        public String getLastCommand() {
+            return lastCommand;
+        }
+
+        /**
+         * Returns the bytes of files received from the device
+         *
+         * @return the number of bytes
+         */
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        /**
+         * Returns the bytes of files sent to the device
+         *
+         * @return the number of bytes
+         */
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        /**
+         * Returns the time since the last activity of this session
+         *
+         * @return the time in milliseconds
+         */
+        private long idleTime() {
+            return System.currentTimeMillis() - lastActivity;
+        }
+
+        /**
+         * Closes the socket of this session, ending the thread that serves it
+         */
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ServerLogger.logWarning("Unable to close session of " + device);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return device + " for " + (System.currentTimeMillis() - startTime) / 1000 + " s, "
+                    + getBytesIn() + " bytes in, " + getBytesOut() + " bytes out, last command "
+                    + lastCommand;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package server.communication;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket, used to limit the rate of requests or bytes. Tokens are
+ * added at a constant rate, up to the capacity of the bucket, and each
+ * request or byte takes one token, so short bursts are allowed while the
+ * average rate stays under the limit.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class TokenBucket {
+
+    /**
+     * Bucket parameters
+     */
+    private final double rate;          // tokens added per second
+    private final double capacity;      // maximum tokens
+
+    /**
+     * Bucket state
+     */
+    private double tokens;
+    private long lastRefill;            // in nanoseconds
+
+    /**
+     * Constructs a new full {@code TokenBucket}
+     *
+     * @param rate the tokens added per second
+     * @param capacity the maximum tokens, the size of the largest burst
+     */
+    public TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens if there are enough
+     *
+     * @param count the number of tokens
+     * @return 0 if the tokens were taken, otherwise the time
+     *         in milliseconds until there are enough tokens
+     */
+    public synchronized long tryAcquire(long count) {
+        refill();
+        if (tokens >= count) {
+            tokens -= count;
+            return 0;
+        }
+        return (long) Math.ceil((Math.min(count, capacity) - tokens) * 1000 / rate);
+    }
+
+    /**
+     * Takes tokens without waiting, leaving the bucket in debt if there
+     * are not enough; the debt is paid by the tokens added afterwards
+     *
+     * @param count the number of tokens
+     */
+    public synchronized void take(long count) {
+        refill();
+        tokens -= count;
+    }
+
+    /**
+     * Gives back tokens taken by a request that was not served,
+     * up to the capacity of the bucket
+     *
+     * @param count the number of tokens
+     */
+    public synchronized void refund(long count) {
+        refill();
+        tokens = Math.min(capacity, tokens + count);
+    }
+
+    /**
+     * Takes tokens, waiting until they are available. Counts larger than
+     * the capacity are allowed, and are paid by waiting longer.
+     *
+     * @param count the number of tokens
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(long count) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            refill();
+            tokens -= count;
+            wait = tokens < 0 ? (long) Math.ceil(-tokens * 1000 / rate) : 0;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * Adds the tokens for the time since the last refill
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+}
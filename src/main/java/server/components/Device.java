@@ -19,7 +19,6 @@ public class Device {
      */
     private final String user;      // user of the device
     private final int id;           // id of the device
-    private boolean isConnected;    // connection status
 
     /**
      * Constructs a new {@code Device} with a user and an id.
@@ -31,7 +30,6 @@ public class Device {
     public Device(String user, int id) {
         this.user = user;
         this.id = id;
-        isConnected = false;
     }
 
     /**
@@ -52,24 +50,6 @@ public class Device {
         return id;
     }
 
-    /**
-     * Returns the connection status of this device.
-     *
-     * @return true if this device is connected, false otherwise
-     */
-    public boolean isConnected() {
-        return isConnected;
-    }
-
-    /**
-     * Sets the connection status of the device.
-     *
-     * @param connected true to connect, false to disconnect
-     */
-    public void setConnected(boolean connected) {
-        isConnected = connected;
-    }
-
     /**
      * Compares if this device is equal to the {@link Object} given.
      *
@@ -88,6 +68,16 @@ public class Device {
                 && Objects.equals(id, device.id);
     }
 
+    /**
+     * Returns a hash code for this device, consistent with {@link #equals(Object)}
+     *
+     * @return a hash code for this device
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(user, id);
+    }
+
     /**
      * Returns a string representation of this device
      *
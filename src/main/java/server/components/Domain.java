@@ -66,8 +66,8 @@ public class Domain {
             for (String device : devices) {
                 String[] deviceParts = device.split(":");
                 Device newDev = new Device(deviceParts[0], Integer.parseInt(deviceParts[1]));
-                srvStorage.getDevices().put(newDev, new ArrayList<>());
-                this.devices.add(newDev);
+                srvStorage.saveDevice(newDev);
+                this.devices.add(srvStorage.getDevice(newDev));
             }
         }
     }
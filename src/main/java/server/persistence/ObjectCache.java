@@ -0,0 +1,219 @@
+package server.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of the files read by the requests of the devices,
+ * such as domain keys and images, bounded by the total
+ * size of its objects.
+ *
+ * <p>The cache is a segmented LRU: a new object enters the probation
+ * segment, and is moved to the protected segment, which takes most of
+ * the capacity, when it is read again. Objects are evicted from the least
+ * recently used end of the probation segment, so a burst of objects read
+ * only once can not evict the popular ones. Objects larger than a fraction
+ * of the capacity are not admitted.
+ *
+ * <p>Writers invalidate the objects they change. A reader that loads an
+ * object takes a {@link #stamp()} before reading it, and the object is
+ * only cached if no object was invalidated meanwhile, so a value read
+ * before a write is never cached after it.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class ObjectCache {
+
+    /**
+     * Fraction of the capacity of the protected segment,
+     * and of the largest object admitted
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int MAX_OBJECT_RATIO = 8;
+
+    /**
+     * Cache parameters
+     */
+    private final long capacity;            // maximum bytes of all objects
+    private final long protectedCapacity;   // maximum bytes of the protected segment
+
+    /**
+     * Data structures
+     */
+    private final LinkedHashMap<String, ByteBuffer> probation;      // least recently used first
+    private final LinkedHashMap<String, ByteBuffer> protectedSegment;
+    private long probationBytes;
+    private long protectedBytes;
+    private long invalidations;
+
+    /**
+     * Counters
+     */
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object cacheLock;
+
+    /**
+     * Constructs a new {@code ObjectCache}
+     *
+     * @param capacity the maximum size in bytes of all objects, 0 to disable the cache
+     */
+    public ObjectCache(long capacity) {
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        this.probation = new LinkedHashMap<>(16, 0.75f, true);
+        this.protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        this.cacheLock = new Object();
+    }
+
+    /**
+     * Returns a cached object
+     *
+     * @param key the key of the object
+     * @return a read-only view of the object, or null if it is not cached
+     */
+    public ByteBuffer get(String key) {
+        synchronized (cacheLock) {
+            ByteBuffer value = protectedSegment.get(key);
+            if (value == null) {
+                value = probation.remove(key);
+                if (value == null) {
+                    misses++;
+                    return null;
+                }
+                probationBytes -= value.remaining();
+                protectedSegment.put(key, value);
+                protectedBytes += value.remaining();
+                demote();
+            }
+            hits++;
+            return value.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Returns the current stamp of this cache, to be taken
+     * before reading an object that will be cached
+     *
+     * @return the number of invalidations so far
+     * @see #put(String, ByteBuffer, long)
+     */
+    public long stamp() {
+        synchronized (cacheLock) {
+            return invalidations;
+        }
+    }
+
+    /**
+     * Caches an object, unless an object was invalidated since the given
+     * stamp was taken or the object is too large
+     *
+     * @param key the key of the object
+     * @param value the object, which must not be changed afterwards
+     * @param stamp the stamp taken before the object was read
+     */
+    public void put(String key, ByteBuffer value, long stamp) {
+        long size = value.remaining();
+        if (size > capacity / MAX_OBJECT_RATIO) return;
+        synchronized (cacheLock) {
+            if (stamp != invalidations || protectedSegment.containsKey(key)) return;
+            ByteBuffer previous = probation.put(key, value);
+            if (previous != null) probationBytes -= previous.remaining();
+            probationBytes += size;
+            evict();
+        }
+    }
+
+    /**
+     * Removes an object that was changed or deleted
+     *
+     * @param key the key of the object
+     */
+    public void invalidate(String key) {
+        synchronized (cacheLock) {
+            invalidations++;
+            ByteBuffer value = probation.remove(key);
+            if (value != null) probationBytes -= value.remaining();
+            value = protectedSegment.remove(key);
+            if (value != null) protectedBytes -= value.remaining();
+        }
+    }
+
+    /**
+     * Returns the counters of this cache
+     *
+     * @return the counters
+     */
+    public Stats getStats() {
+        synchronized (cacheLock) {
+            return new Stats(hits, misses, evictions, probationBytes + protectedBytes,
+                    probation.size() + protectedSegment.size());
+        }
+    }
+
+    /**
+     * Moves the least recently used objects of the protected segment
+     * to the probation segment while it is over its capacity
+     */
+    private void demote() {
+        Iterator<Map.Entry<String, ByteBuffer>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = it.next();
+            it.remove();
+            protectedBytes -= entry.getValue().remaining();
+            probation.put(entry.getKey(), entry.getValue());
+            probationBytes += entry.getValue().remaining();
+        }
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used objects of the probation
+     * segment while the cache is over its capacity
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, ByteBuffer>> it = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+            probationBytes -= it.next().getValue().remaining();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * The counters of an {@code ObjectCache}
+     *
+     * @param hits the number of objects found
+     * @param misses the number of objects not found
+     * @param evictions the number of objects evicted to make room for others
+     * @param bytes the size of the cached objects
+     * @param objects the number of cached objects
+     */
+    public record Stats(long hits, long misses, long evictions, long bytes, int objects) {
+
+        /**
+         * Returns the fraction of requests that found the object
+         *
+         * @return the hit ratio, between 0 and 1
+         */
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f%% hits, %d objects, %d bytes, %d evictions",
+                    hitRatio() * 100, objects, bytes, evictions);
+        }
+    }
+
+}
@@ -0,0 +1,802 @@
+package server.persistence;
+
+import server.ServerLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32C;
+
+/**
+ * The pipeline of the writes to the persistence files of the server. The
+ * requests of all connections queue their writes, and a single thread
+ * applies them in group commits: the writes queued while the previous
+ * commit was running are applied together, each file is written once
+ * with all its changes, and the files are synced to the disk at once.
+ *
+ * <p>Each write returns a {@link CompletableFuture}, completed when the
+ * write reaches the durability of this writer, so that the request that
+ * made it can only answer the device afterwards:
+ * <ul>
+ *     <li>{@link Durability#NONE} - once written, leaving the sync to the system;</li>
+ *     <li>{@link Durability#PERIODIC} - once written, the files being synced
+ *     periodically, so at most the last interval is lost in a crash;</li>
+ *     <li>{@link Durability#COMMIT} - once synced, after each commit.</li>
+ * </ul>
+ *
+ * <p>A file is never rewritten in place: its new content is written to a
+ * temporary file, which then replaces it with an atomic rename, so a crash
+ * leaves either the old or the new content. Unless the durability is none,
+ * the temporary files are synced and the changes of each commit recorded
+ * in a recovery journal before any file is changed; when the server
+ * starts, a commit interrupted by a crash is finished or rolled back, so
+ * that the files are consistent. With periodic durability, the appends
+ * of a commit are synced before the journal record of the next commit
+ * replaces theirs, so that a torn append can always be cut.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Storage
+ */
+public class PersistenceWriter {
+
+    /**
+     * When a write is considered complete
+     */
+    public enum Durability {
+        NONE, PERIODIC, COMMIT;
+
+        /**
+         * Returns the durability with the given name, ignoring case
+         *
+         * @param name the name of the durability
+         * @param def the durability returned if the name is not valid
+         * @return the durability
+         */
+        public static Durability parse(String name, Durability def) {
+            for (Durability durability : values()) {
+                if (durability.name().equalsIgnoreCase(name)) return durability;
+            }
+            ServerLogger.logWarning("Invalid durability " + name + ", using " + def);
+            return def;
+        }
+    }
+
+    /**
+     * Types of the changes in the recovery journal
+     */
+    private static final byte FLUSH = 0;
+    private static final byte APPEND = 1;
+    private static final byte REPLACE = 2;
+
+    /**
+     * Recovery journal format
+     */
+    private static final int JOURNAL_MAGIC = 0x524A4E4C;     // "RJNL"
+    private static final String TEMP = ".tmp";
+
+    /**
+     * Writer parameters
+     */
+    private final Durability durability;
+    private final long syncInterval;        // in milliseconds, for periodic durability
+    private final int maxBatch;             // maximum writes in a commit
+
+    /**
+     * Data structures
+     */
+    private final LinkedBlockingQueue<Write> queue;
+    private final Set<Path> unsynced;       // files written since the last periodic sync
+    private final Set<Path> appended;       // files appended to by the commit in the journal, not yet synced
+    private final Path journalPath;
+    private FileChannel journal;            // open recovery journal, null if not yet written
+    private final Thread thread;
+    private volatile boolean closed;
+    private long lastSync;
+
+    /**
+     * Counters
+     */
+    private final LongAdder commits;
+    private final LongAdder writes;
+    private final LongAdder syncs;
+    private final LongAdder latency;        // total time in nanoseconds from queued to complete
+
+    /**
+     * Constructs and starts a new {@code PersistenceWriter}, first
+     * recovering the commit interrupted when the server last stopped
+     *
+     * @param journalPath the path of the recovery journal
+     * @param durability when a write is considered complete
+     * @param syncInterval the interval in milliseconds between periodic syncs
+     * @param maxBatch the maximum number of writes in a commit
+     */
+    public PersistenceWriter(String journalPath, Durability durability, long syncInterval, int maxBatch) {
+        this.journalPath = Path.of(journalPath);
+        this.durability = durability;
+        this.syncInterval = Math.max(1, syncInterval);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.queue = new LinkedBlockingQueue<>();
+        this.unsynced = new HashSet<>();
+        this.appended = new HashSet<>();
+        this.commits = new LongAdder();
+        this.writes = new LongAdder();
+        this.syncs = new LongAdder();
+        this.latency = new LongAdder();
+        this.lastSync = System.currentTimeMillis();
+        recover();
+        this.thread = new Thread(this::run, "persistence-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Replaces the content of a file
+     *
+     * @param path the path of the file
+     * @param content the new content
+     * @return a future completed with true when the write is
+     *         durable, or with false if it failed
+     */
+    public CompletableFuture<Boolean> write(String path, byte[] content) {
+        return submit(new Write(Path.of(path), content, null));
+    }
+
+    /**
+     * Replaces the content of several files in the same commit, so that
+     * after a crash either all or none of them have the new content
+     *
+     * @param contents the new content of each file, by path
+     * @return a future completed with true when all writes are
+     *         durable, or with false if any failed
+     */
+    public CompletableFuture<Boolean> writeAll(Map<String, byte[]> contents) {
+        List<Write> group = new ArrayList<>();
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            group.add(new Write(Path.of(content.getKey()), content.getValue(), null));
+        }
+        for (int i = 0; i < group.size() - 1; i++) group.get(i).linked = true;
+        synchronized (queue) {
+            if (!closed) {
+                queue.addAll(group);
+            } else {
+                ServerLogger.logError("Write after the storage was closed");
+                for (Write write : group) write.done.complete(false);
+            }
+        }
+        CompletableFuture<?>[] futures = group.stream().map(write -> write.done).toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures)
+                .thenApply(v -> group.stream().allMatch(write -> write.done.join()));
+    }
+
+    /**
+     * Appends content to the end of a file, creating it if it does not exist
+     *
+     * @param path the path of the file
+     * @param content the content to append
+     * @return a future completed with true when the write is
+     *         durable, or with false if it failed
+     */
+    public CompletableFuture<Boolean> append(String path, byte[] content) {
+        return submit(new Write(Path.of(path), content, null).asAppend());
+    }
+
+    /**
+     * Changes the content of a file. The change is applied by the writer,
+     * after the writes queued before it, so a read-modify-write of the
+     * file does not need to hold a lock while waiting for the commit.
+     *
+     * @param path the path of the file
+     * @param change receives the current content, null if the file does
+     *               not exist, and returns the new content
+     * @return a future completed with true when the write is durable,
+     *         or with false if it failed or the change threw an exception
+     */
+    public CompletableFuture<Boolean> update(String path, UnaryOperator<byte[]> change) {
+        return submit(new Write(Path.of(path), null, change));
+    }
+
+    /**
+     * Makes a file written by other means as durable as the writes of this
+     * writer, syncing it with the next commit when the durability requires
+     *
+     * @param path the path of the file
+     * @return a future completed with true when the file is durable
+     */
+    public CompletableFuture<Boolean> flush(String path) {
+        return submit(new Write(Path.of(path), null, null));
+    }
+
+    /**
+     * Returns the durability of this writer
+     *
+     * @return the durability
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the counters of this writer
+     *
+     * @return the counters
+     */
+    public Stats getStats() {
+        return new Stats(commits.sum(), writes.sum(), syncs.sum(), latency.sum());
+    }
+
+    /**
+     * Applies the writes still queued, syncs all files written, deletes
+     * the recovery journal and stops this writer. Later writes fail.
+     */
+    public void close() {
+        synchronized (queue) {
+            closed = true;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (journal != null) journal.close();
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            ServerLogger.logWarning("Unable to delete the recovery journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues a write
+     *
+     * @param write the write
+     * @return the future of the write
+     */
+    private CompletableFuture<Boolean> submit(Write write) {
+        synchronized (queue) {
+            if (!closed) {
+                queue.add(write);
+                return write.done;
+            }
+        }
+        ServerLogger.logError("Write to " + write.path + " after the storage was closed");
+        write.done.complete(false);
+        return write.done;
+    }
+
+    /**
+     * Applies the queued writes in commits until this writer is closed
+     */
+    private void run() {
+        List<Write> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(Math.min(syncInterval, 100), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                    // Writes of the same group are never split between commits
+                    while (batch.get(batch.size() - 1).linked) batch.add(queue.take());
+                    commit(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (durability == Durability.PERIODIC
+                    && System.currentTimeMillis() - lastSync >= syncInterval) {
+                syncUnsynced();
+            }
+        }
+        syncUnsynced();
+    }
+
+    /**
+     * Applies a batch of writes. The writes to each file are applied in
+     * order to its content, and each file is changed once: appends are
+     * written in place, other changes to a temporary file that replaces
+     * it. Unless the durability is none, the temporary files are synced
+     * and the changes recorded in the recovery journal before any file is
+     * changed. The files are synced if the durability requires it, and
+     * the futures completed.
+     *
+     * @param batch the writes
+     */
+    private void commit(List<Write> batch) {
+        Map<Path, List<Write>> byFile = new LinkedHashMap<>();
+        for (Write write : batch) {
+            byFile.computeIfAbsent(write.path, k -> new ArrayList<>()).add(write);
+        }
+        Map<Write, Boolean> results = new LinkedHashMap<>();
+        List<Change> changes = new ArrayList<>();
+        for (Map.Entry<Path, List<Write>> file : byFile.entrySet()) {
+            try {
+                Change change = prepare(file.getKey(), file.getValue(), results);
+                if (change != null) changes.add(change);
+            } catch (IOException e) {
+                ServerLogger.logError("Unable to write " + file.getKey() + ": " + e.getMessage());
+                fail(file.getValue(), results);
+            }
+        }
+
+        boolean journaled = true;
+        if (durability != Durability.NONE && changes.stream().anyMatch(change -> change.type != FLUSH)) {
+            try {
+                // The journal is the only record of where to cut a torn append
+                syncAppended();
+                writeJournal(changes);
+            } catch (IOException e) {
+                ServerLogger.logError("Unable to write the recovery journal: " + e.getMessage());
+                journaled = false;
+            }
+        }
+        Set<Path> folders = new HashSet<>();
+        for (Change change : changes) {
+            try {
+                if (!journaled && change.type != FLUSH) throw new IOException("Not journaled");
+                change.apply(durability == Durability.COMMIT);
+                if (change.type == REPLACE) folders.add(change.path.toAbsolutePath().getParent());
+                if (durability == Durability.COMMIT) syncs.increment();
+                if (durability == Durability.PERIODIC && change.type != REPLACE) unsynced.add(change.path);
+                if (durability == Durability.PERIODIC && change.type == APPEND) appended.add(change.path);
+            } catch (IOException e) {
+                ServerLogger.logError("Unable to write " + change.path + ": " + e.getMessage());
+                change.discard();
+                fail(change.writes, results);
+            }
+        }
+        if (durability != Durability.NONE) {
+            for (Path folder : folders) syncFolder(folder);
+        }
+
+        commits.increment();
+        long now = System.nanoTime();
+        for (Map.Entry<Write, Boolean> result : results.entrySet()) {
+            writes.increment();
+            latency.add(now - result.getKey().queued);
+            result.getKey().done.complete(result.getValue());
+        }
+    }
+
+    /**
+     * Applies the writes of a batch to the content of a file, writing
+     * the new content to a temporary file unless the writes only append
+     *
+     * @param path the path of the file
+     * @param batch the writes to the file, in order
+     * @param results where the result of each write is put
+     * @return the change to the file, or null if there is nothing to change
+     * @throws IOException if the file could not be read or the temporary file written
+     */
+    private Change prepare(Path path, List<Write> batch, Map<Write, Boolean> results) throws IOException {
+        boolean onlyAppends = true;
+        boolean changed = false;
+        for (Write write : batch) {
+            onlyAppends &= write.append || write.isFlush();
+            changed |= !write.isFlush();
+        }
+        if (!changed) {
+            for (Write write : batch) results.put(write, true);
+            return Files.exists(path) ? new Change(path, batch, FLUSH, null) : null;
+        }
+
+        if (onlyAppends) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (Write write : batch) {
+                if (write.append) content.write(write.content);
+                results.put(write, true);
+            }
+            Change change = new Change(path, batch, APPEND, content.toByteArray());
+            change.originalSize = Files.exists(path) ? Files.size(path) : 0;
+            return change;
+        }
+
+        byte[] current;
+        try {
+            current = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            current = null;
+        }
+        for (Write write : batch) {
+            try {
+                current = write.applyTo(current);
+                results.put(write, true);
+            } catch (RuntimeException e) {
+                ServerLogger.logError("Unable to change " + path + ": " + e.getMessage());
+                results.put(write, false);
+            }
+        }
+        Change change = new Change(path, batch, REPLACE, current == null ? new byte[0] : current);
+        try (FileChannel channel = FileChannel.open(change.temp(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = ByteBuffer.wrap(change.data);
+            while (content.hasRemaining()) channel.write(content);
+            if (durability != Durability.NONE) channel.force(false);
+        }
+        return change;
+    }
+
+    /**
+     * Marks the writes as failed
+     *
+     * @param batch the writes
+     * @param results where the result of each write is put
+     */
+    private static void fail(List<Write> batch, Map<Write, Boolean> results) {
+        for (Write write : batch) results.put(write, false);
+    }
+
+    /**
+     * Records the changes of a commit in the recovery journal, replacing
+     * the changes of the previous commit, and syncs it
+     *
+     * @param changes the changes
+     * @throws IOException if the journal could not be written
+     */
+    private void writeJournal(List<Change> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(JOURNAL_MAGIC);
+        List<Change> recorded = changes.stream().filter(change -> change.type != FLUSH).toList();
+        out.writeInt(recorded.size());
+        for (Change change : recorded) {
+            out.writeByte(change.type);
+            out.writeUTF(change.path.toString());
+            out.writeLong(change.originalSize);
+            out.writeLong(change.data.length);
+            out.writeInt(crc(change.data, 0, change.data.length));
+        }
+        out.writeInt(crc(bytes.toByteArray(), 0, bytes.size()));
+
+        if (journal == null) {
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        while (record.hasRemaining()) journal.write(record, record.position());
+        journal.truncate(record.limit());
+        journal.force(false);
+    }
+
+    /**
+     * Finishes or rolls back the changes of the commit recorded in the
+     * recovery journal, which may have been interrupted by a crash. A
+     * replaced file whose temporary file is complete is replaced, and an
+     * incomplete temporary file is deleted; an incomplete append is cut.
+     * Changes already completed are left as they are.
+     */
+    private void recover() {
+        byte[] record;
+        try {
+            record = Files.readAllBytes(journalPath);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to read the recovery journal: " + e.getMessage());
+            return;
+        }
+        int finished = 0;
+        int rolledBack = 0;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(record);
+            if (record.length < 12 || in.getInt() != JOURNAL_MAGIC
+                    || crc(record, 0, record.length - 4) != in.getInt(record.length - 4)) {
+                // Interrupted before any file was changed
+                Files.delete(journalPath);
+                return;
+            }
+            DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record, 4, record.length - 8));
+            int count = fields.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = fields.readByte();
+                Path path = Path.of(fields.readUTF());
+                long originalSize = fields.readLong();
+                long length = fields.readLong();
+                int crc = fields.readInt();
+                if (type == REPLACE) {
+                    Path temp = Path.of(path + TEMP);
+                    if (!Files.exists(temp)) continue;
+                    byte[] content = Files.readAllBytes(temp);
+                    if (content.length == length && crc(content, 0, content.length) == crc) {
+                        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        finished++;
+                    } else {
+                        Files.delete(temp);
+                        rolledBack++;
+                    }
+                } else if (type == APPEND && Files.exists(path) && Files.size(path) > originalSize) {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE)) {
+                        if (channel.size() == originalSize + length) {
+                            ByteBuffer appended = ByteBuffer.allocate((int) length);
+                            while (appended.hasRemaining()
+                                    && channel.read(appended, originalSize + appended.position()) >= 0) {
+                                // Reads the appended bytes
+                            }
+                            if (crc(appended.array(), 0, appended.position()) == crc) continue;
+                        }
+                        channel.truncate(originalSize);
+                        channel.force(true);
+                        rolledBack++;
+                    }
+                }
+            }
+            Files.delete(journalPath);
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to recover the interrupted writes: " + e.getMessage());
+            return;
+        }
+        if (finished + rolledBack > 0) {
+            ServerLogger.logWarning("Recovered interrupted writes: " + finished + " finished, "
+                    + rolledBack + " rolled back");
+        }
+    }
+
+    /**
+     * Syncs a folder, so that the files renamed in it are durable
+     *
+     * @param folder the folder
+     */
+    private static void syncFolder(Path folder) {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported by every system, the rename is still atomic
+        }
+    }
+
+    /**
+     * Calculates the CRC32C of bytes
+     *
+     * @param bytes the bytes
+     * @param offset the position of the first byte
+     * @param length the number of bytes
+     * @return the CRC32C
+     */
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Syncs the files written since the last periodic sync
+     */
+    private void syncUnsynced() {
+        for (Path path : unsynced) sync(path);
+        unsynced.clear();
+        appended.clear();
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Syncs the files appended to by the commit recorded in the recovery
+     * journal. With periodic durability their appends are not yet synced,
+     * so after a crash they may end in a torn or zero-filled tail, which
+     * recovery can only cut while the journal still records the appends.
+     * Called before the journal is replaced by the record of a new commit.
+     */
+    private void syncAppended() {
+        for (Path path : appended) {
+            sync(path);
+            unsynced.remove(path);
+        }
+        appended.clear();
+    }
+
+    /**
+     * Syncs a file
+     *
+     * @param path the path of the file
+     */
+    private void sync(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(false);
+            syncs.increment();
+        } catch (NoSuchFileException e) {
+            // Deleted since it was written, nothing left to sync
+        } catch (IOException e) {
+            ServerLogger.logWarning("Unable to sync " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A write queued in a {@code PersistenceWriter}
+     */
+    private static class Write {
+
+        /**
+         * Write attributes
+         */
+        private final Path path;
+        private final byte[] content;               // new content, or content to append
+        private final UnaryOperator<byte[]> change; // null unless an update
+        private final long queued;                  // in nanoseconds
+        private final CompletableFuture<Boolean> done;
+        private boolean append;
+        private boolean linked;                     // the next write must be in the same commit
+
+        /**
+         * Constructs a new {@code Write}, which is a flush if
+         * it has neither content nor a change
+         *
+         * @param path the path of the file
+         * @param content the new content of the file
+         * @param change the change to the content of the file
+         */
+        private Write(Path path, byte[] content, UnaryOperator<byte[]> change) {
+            this.path = path;
+            this.content = content;
+            this.change = change;
+            this.queued = System.nanoTime();
+            this.done = new CompletableFuture<>();
+        }
+
+        /**
+         * Makes this write append its content
+         *
+         * @return this write
+         */
+        private Write asAppend() {
+            append = true;
+            return this;
+        }
+
+        /**
+         * Verifies if this write only syncs the file
+         *
+         * @return true if a flush, false otherwise
+         */
+        private boolean isFlush() {
+            return content == null && change == null;
+        }
+
+        /**
+         * Applies this write to the content of the file
+         *
+         * @param current the current content, null if the file does not exist
+         * @return the new content
+         */
+        private byte[] applyTo(byte[] current) {
+            if (change != null) return change.apply(current);
+            if (content == null) return current;
+            if (!append || current == null) return content;
+            byte[] result = new byte[current.length + content.length];
+            System.arraycopy(current, 0, result, 0, current.length);
+            System.arraycopy(content, 0, result, current.length, content.length);
+            return result;
+        }
+    }
+
+    /**
+     * The change to a file in a commit
+     */
+    private static class Change {
+
+        /**
+         * Change attributes
+         */
+        private final Path path;
+        private final List<Write> writes;   // writes applied by this change
+        private final byte type;
+        private final byte[] data;          // new content, or content to append
+        private long originalSize = -1;     // size of the file before an append
+
+        /**
+         * Constructs a new {@code Change}
+         *
+         * @param path the path of the file
+         * @param writes the writes applied by this change
+         * @param type the type of the change
+         * @param data the new content, or the content to append
+         */
+        private Change(Path path, List<Write> writes, byte type, byte[] data) {
+            this.path = path;
+            this.writes = writes;
+            this.type = type;
+            this.data = data;
+        }
+
+        /**
+         * Returns the path of the temporary file of a replacement
+         *
+         * @return the path of the temporary file
+         */
+        private Path temp() {
+            return Path.of(path + TEMP);
+        }
+
+        /**
+         * Changes the file
+         *
+         * @param sync true if the file must be synced
+         * @throws IOException if the file could not be changed
+         */
+        private void apply(boolean sync) throws IOException {
+            if (type == REPLACE) {
+                Files.move(temp(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+            try (FileChannel channel = type == APPEND
+                    ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)
+                    : FileChannel.open(path, StandardOpenOption.WRITE)) {
+                if (type == APPEND) {
+                    ByteBuffer content = ByteBuffer.wrap(data);
+                    while (content.hasRemaining()) channel.write(content);
+                }
+                if (sync) channel.force(false);
+            }
+        }
+
+        /**
+         * Deletes the temporary file of a replacement that failed
+         */
+        private void discard() {
+            try {
+                if (type == REPLACE) Files.deleteIfExists(temp());
+            } catch (IOException e) {
+                ServerLogger.logWarning("Unable to delete " + temp());
+            }
+        }
+    }
+
+    /**
+     * The counters of a {@code PersistenceWriter}
+     *
+     * @param commits the number of commits
+     * @param writes the number of writes
+     * @param syncs the number of files synced
+     * @param latency the total time in nanoseconds the writes took to complete
+     */
+    public record Stats(long commits, long writes, long syncs, long latency) {
+
+        /**
+         * Returns the average number of writes of a commit
+         *
+         * @return the average writes per commit
+         */
+        public double averageBatch() {
+            return commits == 0 ? 0 : (double) writes / commits;
+        }
+
+        /**
+         * Returns the average time a write took to complete
+         *
+         * @return the average latency in milliseconds
+         */
+        public double averageLatency() {
+            return writes == 0 ? 0 : latency / 1e6 / writes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d writes in %d commits (%.1f per commit), %d syncs, %.2f ms average latency",
+                    writes, commits, averageBatch(), syncs, averageLatency());
+        }
+    }
+
+}
@@ -0,0 +1,758 @@
+package server.persistence;
+
+import server.ServerLogger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A store of binary objects packed into large segment files, instead of
+ * one file per object. Objects are appended to the active segment, and a
+ * new segment is started when it reaches its maximum size. An in-memory
+ * index maps the key of each object to its last record, and is rebuilt
+ * when the store is opened by scanning the segments. Objects are read by
+ * memory-mapping their record. Replaced and deleted objects leave dead
+ * records behind, which are reclaimed by {@link #compact(double)}.
+ *
+ * <p>Format of a record (big-endian):
+ * <pre>
+ * int magic, int header length,
+ * header: { string key, long data length (-1 if deleted), byte[32] data HMAC,
+ *           int attributes, { string name, int length, byte[length] value } }
+ * int header CRC32C, byte[32] header HMAC, byte[data length] data
+ * </pre>
+ * where each string is an {@code int} length followed by UTF-8 bytes.
+ * A record partially written at the end of the last segment is discarded
+ * when the store is opened. The HMACs, with the secret of the server, bind
+ * each object to its key and attributes: a record whose header was changed
+ * is ignored when the segments are scanned, and an object whose content was
+ * changed is not returned by {@link #read(Entry)}.
+ *
+ * <p>The records of older versions, with a CRC32C of the data instead of
+ * the HMACs, are rewritten once when the store is opened, as long as its
+ * oldest segment is one of those versions; afterwards they are ignored.
+ *
+ * <p>When the store is closed, its index is written to a file next to the
+ * segments, with an HMAC, which marks a clean shutdown. The next
+ * {@link #open()} loads it instead of scanning the segments, if the
+ * segments still have the recorded sizes, and deletes it, so that after
+ * a crash they are scanned.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class SegmentStore {
+
+    /**
+     * Record format
+     */
+    private static final int MAGIC = 0x53454732;        // "SEG2"
+    private static final int LEGACY_MAGIC = 0x53454731; // "SEG1", without HMACs
+    private static final int MAX_HEADER = 1024 * 1024;
+    private static final String EXTENSION = ".seg";
+    private static final int INDEX_MAGIC = 0x53494432;  // "SID2"
+    private static final String INDEX_FILE = "index.dat";
+
+    /**
+     * Algorithm for HMAC calculation
+     */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * Store parameters
+     */
+    private final File folder;
+    private final long segmentSize;
+    private final SecretKey secret;         // key of the HMACs
+
+    /**
+     * Data structures
+     */
+    private final Map<String, Entry> index;                 // last record of each object
+    private final Map<String, Integer> tombstones;          // segment of each deletion record
+    private final TreeMap<Integer, FileChannel> segments;   // open segments by id
+    private final Map<Integer, long[]> usage;               // total and live bytes of each segment
+    private int active;                                     // id of the segment being written
+    private long activeSize;
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object storeLock;
+
+    /**
+     * Constructs a new {@code SegmentStore}
+     *
+     * @param folder the folder of the segment files
+     * @param segmentSize the maximum size in bytes of a segment
+     * @param secret the key of the HMACs of the records
+     */
+    public SegmentStore(String folder, long segmentSize, SecretKey secret) {
+        this.folder = new File(folder);
+        this.segmentSize = segmentSize;
+        this.secret = secret;
+        this.index = new HashMap<>();
+        this.tombstones = new HashMap<>();
+        this.segments = new TreeMap<>();
+        this.usage = new HashMap<>();
+        this.storeLock = new Object();
+    }
+
+    /**
+     * Opens the segments of this store and builds its index
+     *
+     * @throws IOException if the segments could not be read
+     */
+    public void open() throws IOException {
+        synchronized (storeLock) {
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Unable to create " + folder);
+            }
+            File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+            List<Integer> ids = new ArrayList<>();
+            if (files != null) {
+                for (File file : files) {
+                    ids.add(Integer.parseInt(file.getName().replace(EXTENSION, "")));
+                }
+            }
+            Collections.sort(ids);
+            for (int id : ids) {
+                segments.put(id, FileChannel.open(segmentPath(id),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+            boolean legacy = !ids.isEmpty() && isLegacy(segments.get(ids.get(0)));
+            if (!legacy && loadIndex()) {
+                ServerLogger.logInfo("Loaded index of " + index.size() + " objects from " + folder);
+            } else {
+                index.clear();
+                tombstones.clear();
+                usage.clear();
+                for (int id : ids) {
+                    FileChannel channel = segments.get(id);
+                    usage.put(id, new long[2]);
+                    long end = scan(id, channel, legacy);
+                    if (end < channel.size()) {
+                        ServerLogger.logWarning("Discarding " + (channel.size() - end)
+                                + " invalid bytes at the end of segment " + id);
+                        channel.truncate(end);
+                    }
+                }
+                ServerLogger.logInfo("Scanned " + ids.size() + " segments of " + folder);
+            }
+            Files.deleteIfExists(indexPath());
+            if (ids.isEmpty() || legacy) {
+                startSegment(ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1);
+            } else {
+                active = ids.get(ids.size() - 1);
+                activeSize = segments.get(active).size();
+            }
+            if (legacy) migrate();
+        }
+    }
+
+    /**
+     * Rewrites the records of older versions with HMACs, and deletes
+     * the segments of older versions, left without live records
+     *
+     * @throws IOException if a record could not be rewritten
+     */
+    private void migrate() throws IOException {
+        int migrated = 0;
+        for (Map.Entry<String, Entry> object : new ArrayList<>(index.entrySet())) {
+            Entry entry = object.getValue();
+            if (entry.mac() != null) continue;
+            ByteBuffer data = segments.get(entry.segment())
+                    .map(FileChannel.MapMode.READ_ONLY, entry.offset(), entry.length());
+            replace(object.getKey(), append(object.getKey(), entry.attributes(), data));
+            migrated++;
+        }
+        segments.get(active).force(true);
+        compact(1.0);
+        ServerLogger.logInfo("Added HMACs to " + migrated + " objects of " + folder);
+    }
+
+    /**
+     * Returns whether a segment starts with a record of an older version
+     *
+     * @param channel the segment
+     * @return true if the first record of the segment has no HMACs
+     * @throws IOException if the segment could not be read
+     */
+    private static boolean isLegacy(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            // Read the magic of the first record
+        }
+        return !magic.hasRemaining() && magic.getInt(0) == LEGACY_MAGIC;
+    }
+
+    /**
+     * Closes the segments of this store and writes its index
+     */
+    public void close() {
+        synchronized (storeLock) {
+            boolean clean = !segments.isEmpty();
+            for (FileChannel channel : segments.values()) {
+                try {
+                    channel.force(true);
+                } catch (IOException e) {
+                    ServerLogger.logWarning("Unable to close segment: " + e.getMessage());
+                    clean = false;
+                }
+            }
+            if (clean) {
+                try {
+                    saveIndex();
+                } catch (IOException e) {
+                    ServerLogger.logWarning("Unable to save the index of " + folder + ": " + e.getMessage());
+                }
+            }
+            for (FileChannel channel : segments.values()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    ServerLogger.logWarning("Unable to close segment: " + e.getMessage());
+                }
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * Saves an object, replacing the previous object with the same key
+     *
+     * @param key the key of the object
+     * @param attributes small values saved with the object
+     * @param data the content of the object
+     * @return the record of the object
+     * @throws IOException if the object could not be written
+     */
+    public Entry put(String key, Map<String, byte[]> attributes, ByteBuffer data) throws IOException {
+        synchronized (storeLock) {
+            Entry entry = append(key, attributes, data);
+            replace(key, entry);
+            tombstones.remove(key);
+            return entry;
+        }
+    }
+
+    /**
+     * Deletes an object
+     *
+     * @param key the key of the object
+     * @return true if the object existed, false otherwise
+     * @throws IOException if the deletion could not be written
+     */
+    public boolean delete(String key) throws IOException {
+        synchronized (storeLock) {
+            if (!index.containsKey(key)) return false;
+            Entry entry = append(key, Map.of(), null);
+            usage.get(entry.segment())[1] -= entry.recordLength();
+            replace(key, null);
+            tombstones.put(key, entry.segment());
+            return true;
+        }
+    }
+
+    /**
+     * Returns the record of an object
+     *
+     * @param key the key of the object
+     * @return the record, or null if there is no object with the key
+     */
+    public Entry get(String key) {
+        synchronized (storeLock) {
+            return index.get(key);
+        }
+    }
+
+    /**
+     * Returns the keys of the objects of this store
+     *
+     * @return a copy of the keys
+     */
+    public List<String> keys() {
+        synchronized (storeLock) {
+            return new ArrayList<>(index.keySet());
+        }
+    }
+
+    /**
+     * Reads the content of an object, memory-mapping its record. The
+     * returned buffer remains valid after the record is compacted.
+     *
+     * @param entry the record of the object
+     * @return a read-only buffer with the content
+     * @throws IOException if the record no longer exists or is corrupted
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        ByteBuffer data;
+        synchronized (storeLock) {
+            FileChannel channel = segments.get(entry.segment());
+            if (channel == null) throw new IOException("Segment " + entry.segment() + " was compacted");
+            data = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset(), entry.length());
+        }
+        Mac mac = newMac();
+        mac.update(data.duplicate());
+        if (entry.mac() == null || !MessageDigest.isEqual(mac.doFinal(), entry.mac())) {
+            throw new IOException("Corrupted record in segment " + entry.segment());
+        }
+        return data;
+    }
+
+    /**
+     * Rewrites the live records of the segments, other than the active one,
+     * whose fraction of live bytes is below the given ratio, and deletes them
+     * once the rewritten records are synced to the disk
+     *
+     * @param minLiveRatio the minimum fraction of live bytes of a segment
+     * @return the number of bytes reclaimed
+     * @throws IOException if a segment could not be compacted
+     */
+    public long compact(double minLiveRatio) throws IOException {
+        List<Integer> candidates = new ArrayList<>();
+        synchronized (storeLock) {
+            for (Map.Entry<Integer, long[]> segment : usage.entrySet()) {
+                long[] bytes = segment.getValue();
+                if (segment.getKey() != active && bytes[0] > 0 && bytes[1] < bytes[0] * minLiveRatio) {
+                    candidates.add(segment.getKey());
+                }
+            }
+        }
+        Collections.sort(candidates);
+        long reclaimed = 0;
+        for (int id : candidates) {
+            synchronized (storeLock) {
+                FileChannel channel = segments.get(id);
+                if (channel == null) continue; // Closed meanwhile
+                for (Map.Entry<String, Entry> object : new ArrayList<>(index.entrySet())) {
+                    Entry entry = object.getValue();
+                    if (entry.segment() != id) continue;
+                    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset(), entry.length());
+                    replace(object.getKey(), append(object.getKey(), entry.attributes(), data));
+                }
+                // Deletions are only needed while an older segment may hold the object
+                boolean older = segments.firstKey() < id;
+                for (Map.Entry<String, Integer> tombstone : new ArrayList<>(tombstones.entrySet())) {
+                    if (tombstone.getValue() != id) continue;
+                    if (older) {
+                        Entry entry = append(tombstone.getKey(), Map.of(), null);
+                        usage.get(entry.segment())[1] -= entry.recordLength();
+                        tombstones.put(tombstone.getKey(), entry.segment());
+                    } else {
+                        tombstones.remove(tombstone.getKey());
+                    }
+                }
+                // The copies must be durable before their only other copy is deleted
+                segments.get(active).force(true);
+                reclaimed += usage.get(id)[0] - usage.get(id)[1];
+                channel.close();
+                segments.remove(id);
+                usage.remove(id);
+                Files.delete(segmentPath(id));
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Returns the path of the segment of a record
+     *
+     * @param entry the record
+     * @return the path of the segment file
+     */
+    public Path getSegmentPath(Entry entry) {
+        return segmentPath(entry.segment());
+    }
+
+    /**
+     * Returns the number of bytes used by this store and by its live records
+     *
+     * @return an array with the total bytes and the live bytes
+     */
+    public long[] getUsage() {
+        synchronized (storeLock) {
+            long[] total = new long[2];
+            for (long[] bytes : usage.values()) {
+                total[0] += bytes[0];
+                total[1] += bytes[1];
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if full.
+     * The data is written before the header, so that a record interrupted
+     * by a crash is never valid.
+     *
+     * @param key the key of the object
+     * @param attributes the attributes of the object
+     * @param data the content of the object, or null for a deletion
+     * @return the new record
+     * @throws IOException if the record could not be written
+     */
+    private Entry append(String key, Map<String, byte[]> attributes, ByteBuffer data) throws IOException {
+        if (activeSize >= segmentSize) {
+            segments.get(active).force(true);
+            startSegment(active + 1);
+        }
+        long length = data == null ? -1 : data.remaining();
+        Mac mac = newMac();
+        if (data != null) mac.update(data.duplicate());
+        byte[] dataMac = mac.doFinal();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, key);
+        out.writeLong(length);
+        out.write(dataMac);
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+            writeString(out, attribute.getKey());
+            out.writeInt(attribute.getValue().length);
+            out.write(attribute.getValue());
+        }
+        byte[] header = bytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(header);
+
+        FileChannel channel = segments.get(active);
+        long start = activeSize;
+        long dataOffset = start + 12 + header.length + MAC_LENGTH;
+        if (data != null) {
+            ByteBuffer content = data.duplicate();
+            while (content.hasRemaining()) {
+                channel.write(content, dataOffset + content.position() - data.position());
+            }
+        }
+        ByteBuffer head = ByteBuffer.allocate(12 + header.length + MAC_LENGTH);
+        head.putInt(MAGIC).putInt(header.length).put(header).putInt((int) crc.getValue())
+                .put(mac.doFinal(header)).flip();
+        while (head.hasRemaining()) channel.write(head, start + head.position());
+
+        long recordLength = dataOffset - start + Math.max(0, length);
+        activeSize += recordLength;
+        long[] bytesUsed = usage.get(active);
+        bytesUsed[0] += recordLength;
+        bytesUsed[1] += recordLength;
+        return new Entry(active, dataOffset, Math.max(0, length), length < 0 ? null : dataMac,
+                recordLength, attributes);
+    }
+
+    /**
+     * Replaces the record of an object in the index, updating
+     * the live bytes of the segments
+     *
+     * @param key the key of the object
+     * @param entry the new record, or null if the object was deleted
+     */
+    private void replace(String key, Entry entry) {
+        Entry previous = entry == null ? index.remove(key) : index.put(key, entry);
+        if (previous != null) {
+            long[] bytes = usage.get(previous.segment());
+            if (bytes != null) bytes[1] -= previous.recordLength();
+        }
+    }
+
+    /**
+     * Reads the records of a segment into the index. A record whose header
+     * does not match its HMAC is skipped, and so is a record of an older
+     * version, unless the store is being migrated and its data matches its CRC.
+     *
+     * @param id the id of the segment
+     * @param channel the segment
+     * @param legacy true to accept the records of older versions
+     * @return the position after the last valid record
+     * @throws IOException if the segment could not be read
+     */
+    private long scan(int id, FileChannel channel, boolean legacy) throws IOException {
+        long size = channel.size();
+        if (size == 0) return 0;
+        ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        Mac mac = newMac();
+        long position = 0;
+        while (position + 12 <= size) {
+            in.position((int) position);
+            int magic = in.getInt();
+            int headerLength = in.getInt();
+            boolean current = magic == MAGIC;
+            int macLength = current ? MAC_LENGTH : 0;
+            if ((!current && magic != LEGACY_MAGIC) || headerLength < 0 || headerLength > MAX_HEADER
+                    || position + 12 + headerLength + macLength > size) break;
+            byte[] header = new byte[headerLength];
+            in.get(header);
+            CRC32C crc = new CRC32C();
+            crc.update(header);
+            if ((int) crc.getValue() != in.getInt()) break;
+            boolean trusted = legacy;
+            if (current) {
+                byte[] headerMac = new byte[MAC_LENGTH];
+                in.get(headerMac);
+                trusted = MessageDigest.isEqual(mac.doFinal(header), headerMac);
+            }
+
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            String key = readString(fields);
+            long length = fields.getLong();
+            byte[] dataMac = null;
+            int dataCrc = 0;
+            if (current) {
+                dataMac = new byte[MAC_LENGTH];
+                fields.get(dataMac);
+            } else {
+                dataCrc = fields.getInt();
+            }
+            int count = fields.getInt();
+            Map<String, byte[]> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = readString(fields);
+                byte[] value = new byte[fields.getInt()];
+                fields.get(value);
+                attributes.put(name, value);
+            }
+            long dataOffset = position + 12 + headerLength + macLength;
+            if (dataOffset + Math.max(0, length) > size) break;
+            if (trusted && !current && length > 0) {
+                crc.reset();
+                crc.update(in.slice((int) dataOffset, (int) length));
+                trusted = (int) crc.getValue() == dataCrc;
+            }
+
+            long recordLength = dataOffset - position + Math.max(0, length);
+            usage.get(id)[0] += recordLength;
+            if (!trusted) {
+                ServerLogger.logError("Ignoring a forged or corrupted record of " + key + " in segment " + id);
+            } else if (length < 0) {
+                replace(key, null);
+                tombstones.put(key, id);
+            } else {
+                usage.get(id)[1] += recordLength;
+                replace(key, new Entry(id, dataOffset, length, dataMac, recordLength, attributes));
+                tombstones.remove(key);
+            }
+            position = dataOffset + Math.max(0, length);
+        }
+        return position;
+    }
+
+    /**
+     * Writes the index of this store, with the sizes of the segments it
+     * describes, to a temporary file that then replaces the index file
+     *
+     * @throws IOException if the index could not be written
+     */
+    private void saveIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(segments.size());
+        for (Map.Entry<Integer, FileChannel> segment : segments.entrySet()) {
+            long[] used = usage.get(segment.getKey());
+            out.writeInt(segment.getKey());
+            out.writeLong(segment.getValue().size());
+            out.writeLong(used[0]);
+            out.writeLong(used[1]);
+        }
+        out.writeInt(index.size());
+        for (Map.Entry<String, Entry> object : index.entrySet()) {
+            Entry entry = object.getValue();
+            writeString(out, object.getKey());
+            out.writeInt(entry.segment());
+            out.writeLong(entry.offset());
+            out.writeLong(entry.length());
+            out.write(entry.mac() == null ? new byte[MAC_LENGTH] : entry.mac());
+            out.writeLong(entry.recordLength());
+            out.writeInt(entry.attributes().size());
+            for (Map.Entry<String, byte[]> attribute : entry.attributes().entrySet()) {
+                writeString(out, attribute.getKey());
+                out.writeInt(attribute.getValue().length);
+                out.write(attribute.getValue());
+            }
+        }
+        out.writeInt(tombstones.size());
+        for (Map.Entry<String, Integer> tombstone : tombstones.entrySet()) {
+            writeString(out, tombstone.getKey());
+            out.writeInt(tombstone.getValue());
+        }
+        out.write(newMac().doFinal(bytes.toByteArray()));
+
+        Path temp = new File(folder, INDEX_FILE + ".tmp").toPath();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.wrap(bytes.toByteArray());
+            while (content.hasRemaining()) channel.write(content);
+            channel.force(true);
+        }
+        Files.move(temp, indexPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the index written when this store was last closed, if it
+     * exists, matches its HMAC and describes the open segments
+     *
+     * @return true if the index was loaded, false if the segments must be scanned
+     */
+    private boolean loadIndex() {
+        Path path = indexPath();
+        if (!Files.exists(path)) return false;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.remaining() < 8 + MAC_LENGTH) return false;
+            Mac mac = newMac();
+            mac.update(in.array(), 0, in.limit() - MAC_LENGTH);
+            byte[] saved = Arrays.copyOfRange(in.array(), in.limit() - MAC_LENGTH, in.limit());
+            if (!MessageDigest.isEqual(mac.doFinal(), saved) || in.getInt() != INDEX_MAGIC) {
+                ServerLogger.logWarning("Ignoring invalid index of " + folder);
+                return false;
+            }
+            int count = in.getInt();
+            if (count != segments.size()) return false;
+            for (int i = 0; i < count; i++) {
+                int id = in.getInt();
+                FileChannel channel = segments.get(id);
+                if (channel == null || channel.size() != in.getLong()) return false;
+                usage.put(id, new long[] {in.getLong(), in.getLong()});
+            }
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                int segment = in.getInt();
+                long offset = in.getLong();
+                long length = in.getLong();
+                byte[] dataMac = new byte[MAC_LENGTH];
+                in.get(dataMac);
+                long recordLength = in.getLong();
+                int attributeCount = in.getInt();
+                Map<String, byte[]> attributes = new LinkedHashMap<>();
+                for (int j = 0; j < attributeCount; j++) {
+                    String name = readString(in);
+                    byte[] value = new byte[in.getInt()];
+                    in.get(value);
+                    attributes.put(name, value);
+                }
+                index.put(key, new Entry(segment, offset, length, dataMac, recordLength, attributes));
+            }
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                tombstones.put(readString(in), in.getInt());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            ServerLogger.logWarning("Ignoring unreadable index of " + folder + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the path of the index file
+     *
+     * @return the path of the index file
+     */
+    private Path indexPath() {
+        return new File(folder, INDEX_FILE).toPath();
+    }
+
+    /**
+     * Creates a new empty segment and makes it the active one
+     *
+     * @param id the id of the segment
+     * @throws IOException if the segment could not be created
+     */
+    private void startSegment(int id) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(id, channel);
+        usage.put(id, new long[2]);
+        active = id;
+        activeSize = channel.size();
+    }
+
+    /**
+     * Returns the path of a segment
+     *
+     * @param id the id of the segment
+     * @return the path of the segment file
+     */
+    private Path segmentPath(int id) {
+        return new File(folder, String.format("%08d", id) + EXTENSION).toPath();
+    }
+
+    /**
+     * Returns a new {@code Mac} initialised with the secret of this store
+     *
+     * @return the mac
+     */
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string
+     *
+     * @param out the output
+     * @param value the string
+     * @throws IOException if an error occurred while writing
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string
+     *
+     * @param in the buffer to read from
+     * @return the string
+     */
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The record of an object in a {@code SegmentStore}
+     *
+     * @param segment the id of the segment
+     * @param offset the position of the content in the segment
+     * @param length the length of the content
+     * @param mac the HMAC of the content, null for objects of older versions
+     * @param recordLength the length of the whole record
+     * @param attributes the attributes of the object
+     */
+    public record Entry(int segment, long offset, long length, byte[] mac,
+                        long recordLength, Map<String, byte[]> attributes) {}
+
+}
@@ -1,37 +1,47 @@
 package server.persistence;
 
 import common.Codes;
+import server.ServerConfig;
 import server.ServerLogger;
 import server.components.*;
+import server.persistence.engines.FlatFileEngine;
+import server.persistence.engines.LsmEngine;
+import server.persistence.engines.MemoryEngine;
 import server.persistence.managers.*;
+import server.security.IntegrityScrubber;
 import server.security.IntegrityVerifier;
-import server.security.SecurityUtils;
 
-import javax.crypto.SecretKey;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-
-import static server.security.SecurityUtils.decryptDataFromFile;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * The storage of the {@code IoTServer}. This class is responsible for
- * saving data sent from the {@code IoTDevice}. It holds the data structures
- * where users, domains and devices are saved. It also handles interaction
- * with text files and images (.jpg).
+ * saving data sent from the {@code IoTDevice}. The users, domains and
+ * temperatures are kept by a {@link StorageEngine}, chosen when the server
+ * starts; this class holds the devices registered in the domains, and
+ * handles the images (.jpg) and the other files of the server.
  *
  * @author Eduardo Proença (57551)
  * @author Manuel Barral (52026)
  * @author Tiago Oliveira (54979)
  *
- * @see DomainManager
+ * @see StorageEngine
  * @see Device
  * @see User
  */
@@ -41,21 +51,105 @@ public class Storage {
      * File paths
      */
     private static final String CLIENT_COPY = "server/device_info.txt";
-    private static final String USERS = "server/users.txt";
-    private static final String DOMAINS = "server/domains.txt";
     private static final String HMACS = "server/hmacs.txt";
+    private static final String HMACS_LOG = "server/hmacs.log";
+    private static final String ARTIFACTS = "server/artifacts.txt";
+    private static final String RECOVERY = "server/recovery.log";
+
+    /**
+     * The name of the {@code StorageEngine}
+     */
+    private static final String ENGINE = ServerConfig.getString("iot.storage.engine", FlatFileEngine.NAME);
+
+    /**
+     * Interval in seconds between periodic snapshots, 0 to disable them
+     */
+    private static final long SNAPSHOT_INTERVAL =
+            ServerConfig.getLong("iot.snapshot.interval", 300);
+
+    /**
+     * Signing parameters of hmacs.txt: maximum changes signed at once
+     * and maximum time in milliseconds before a change is signed
+     */
+    private static final int SIGN_BATCH = ServerConfig.getInt("iot.sign.batch", 64);
+    private static final long SIGN_INTERVAL = ServerConfig.getLong("iot.sign.interval", 1000);
+
+    /**
+     * Time in hours an interrupted image upload can be resumed
+     */
+    private static final long UPLOAD_EXPIRY = ServerConfig.getLong("iot.upload.expiry", 24);
+
+    /**
+     * Integrity scrub parameters: interval in seconds between batches (0 to
+     * disable the scrub), files checked per batch and maximum read rate in KB/s
+     */
+    private static final long SCRUB_INTERVAL = ServerConfig.getLong("iot.scrub.interval", 60);
+    private static final int SCRUB_BATCH = ServerConfig.getInt("iot.scrub.batch", 50);
+    private static final long SCRUB_RATE = ServerConfig.getLong("iot.scrub.rate", 1024);
+
+    /**
+     * Image segment parameters: maximum size in MB of a segment and interval
+     * in seconds between compactions (0 to disable them). A segment is
+     * compacted when less than half of its bytes belong to current images.
+     */
+    private static final long SEGMENT_SIZE = ServerConfig.getLong("iot.images.segment", 64);
+    private static final long COMPACT_INTERVAL = ServerConfig.getLong("iot.images.compact", 600);
+    private static final double COMPACT_RATIO = 0.5;
+
+    /**
+     * Image retention parameters: images kept per device, maximum age in
+     * hours (0 if unlimited) and maximum size in MB of all images (0 if unlimited)
+     */
+    private static final int IMAGE_HISTORY = ServerConfig.getInt("iot.images.history", 5);
+    private static final long IMAGE_MAX_AGE = ServerConfig.getLong("iot.images.maxage", 0);
+    private static final long IMAGE_MAX_SIZE = ServerConfig.getLong("iot.images.maxsize", 0);
+
+    /**
+     * Persistence parameters: durability of the writes (none, periodic or
+     * commit), interval in milliseconds between periodic syncs and maximum
+     * writes in a group commit
+     */
+    private static final PersistenceWriter.Durability DURABILITY = PersistenceWriter.Durability.parse(
+            ServerConfig.getString("iot.persist.durability", "periodic"), PersistenceWriter.Durability.PERIODIC);
+    private static final long SYNC_INTERVAL = ServerConfig.getLong("iot.persist.sync", 1000);
+    private static final int COMMIT_BATCH = ServerConfig.getInt("iot.persist.batch", 256);
+
+    /**
+     * Maximum size in MB of the files kept in memory, 0 to disable the cache
+     */
+    private static final long CACHE_SIZE = ServerConfig.getLong("iot.cache.size", 64);
+
+    /**
+     * Keeps the users, domains and temperatures
+     */
+    private final StorageEngine engine;
 
     /**
      * Storage managers
      */
-    private final UserManager userManager;
-    private final DomainManager domainManager;
     private final DeviceManager deviceManager;
+    private final ImageManager imageManager;
 
     /**
      * Used for file integrity verification
      */
     private final IntegrityVerifier integrityVerifier;
+    private final IntegrityScrubber integrityScrubber;
+
+    /**
+     * Keeps the files most read by the devices in memory
+     */
+    private final ObjectCache cache;
+
+    /**
+     * Writes the persistence files in group commits
+     */
+    private final PersistenceWriter writer;
+
+    /**
+     * Runs the background tasks of this storage
+     */
+    private final ScheduledExecutorService scheduler;
 
     /**
      * Initiates a new Storage for the IoTServer
@@ -64,11 +158,217 @@ public class Storage {
      * @see FileLoader
      */
     public Storage(String passwordCypher) {
-        userManager = UserManager.getInstance(USERS, passwordCypher);
-        domainManager = DomainManager.getInstance(DOMAINS);
+        writer = new PersistenceWriter(RECOVERY, DURABILITY, SYNC_INTERVAL, COMMIT_BATCH);
         deviceManager = DeviceManager.getInstance();
-        integrityVerifier = new IntegrityVerifier(HMACS, passwordCypher);
+        cache = new ObjectCache(CACHE_SIZE * 1024 * 1024);
+        imageManager = ImageManager.getInstance(SEGMENT_SIZE * 1024 * 1024, IMAGE_HISTORY,
+                TimeUnit.HOURS.toMillis(IMAGE_MAX_AGE), IMAGE_MAX_SIZE * 1024 * 1024, cache, writer,
+                passwordCypher);
+        try {
+            imageManager.open();
+        } catch (IOException e) {
+            ServerLogger.logErrorAndExit("Unable to open the image segments: " + e.getMessage());
+        }
+        integrityVerifier = new IntegrityVerifier(HMACS, HMACS_LOG, passwordCypher,
+                SIGN_BATCH, SIGN_INTERVAL, writer);
+        integrityScrubber = new IntegrityScrubber("server", ARTIFACTS, passwordCypher,
+                integrityVerifier, SCRUB_BATCH, SCRUB_RATE * 1024);
+        engine = createEngine(ENGINE, passwordCypher);
         new FileLoader(this);
+
+        // One thread per task, so that a slow scrub does not delay snapshots
+        scheduler = Executors.newScheduledThreadPool(2, task -> {
+            Thread thread = new Thread(task, "storage-tasks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (SNAPSHOT_INTERVAL > 0) {
+            scheduler.scheduleWithFixedDelay(this::saveSnapshot,
+                    SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(this::deleteExpiredUploads, 1, 1, TimeUnit.HOURS);
+        if (IMAGE_MAX_AGE > 0) {
+            scheduler.scheduleWithFixedDelay(this::deleteExpiredImages, 0, 1, TimeUnit.HOURS);
+        }
+        if (DURABILITY == PersistenceWriter.Durability.PERIODIC) {
+            scheduler.scheduleWithFixedDelay(engine::sync,
+                    SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (SIGN_INTERVAL > 0) {
+            scheduler.scheduleWithFixedDelay(integrityVerifier::flush,
+                    SIGN_INTERVAL, SIGN_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (SCRUB_INTERVAL > 0) {
+            scheduler.scheduleWithFixedDelay(integrityScrubber,
+                    SCRUB_INTERVAL, SCRUB_INTERVAL, TimeUnit.SECONDS);
+        }
+        if (COMPACT_INTERVAL > 0) {
+            scheduler.scheduleWithFixedDelay(this::compactImages,
+                    COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Creates the {@code StorageEngine} with the given name
+     *
+     * @param name the name of the engine
+     * @param passwordCypher password used for encryption
+     * @return the engine
+     */
+    private StorageEngine createEngine(String name, String passwordCypher) {
+        StorageEngine created = switch (name) {
+            case MemoryEngine.NAME -> new MemoryEngine();
+            case LsmEngine.NAME -> new LsmEngine(passwordCypher, writer);
+            case FlatFileEngine.NAME -> new FlatFileEngine(passwordCypher, writer, integrityVerifier);
+            default -> {
+                ServerLogger.logWarning("Unknown storage engine " + name + ", using " + FlatFileEngine.NAME);
+                yield new FlatFileEngine(passwordCypher, writer, integrityVerifier);
+            }
+        };
+        ServerLogger.logInfo("Using the " + created.getName() + " storage engine");
+        return created;
+    }
+
+    /**
+     * Returns the {@code StorageEngine} of this storage
+     *
+     * @return the engine
+     */
+    StorageEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Saves the state of the {@code StorageEngine} of this storage,
+     * used to speed up the next start of the server
+     */
+    public void saveSnapshot() {
+        engine.checkpoint();
+    }
+
+    /**
+     * Deletes the images whose upload was interrupted and not resumed in time
+     */
+    private void deleteExpiredUploads() {
+        int deleted = imageManager.deleteExpiredUploads(TimeUnit.HOURS.toMillis(UPLOAD_EXPIRY));
+        if (deleted > 0) ServerLogger.logInfo("Deleted " + deleted + " expired uploads");
+    }
+
+    /**
+     * Deletes the images older than the maximum age
+     */
+    private void deleteExpiredImages() {
+        try {
+            int deleted = imageManager.deleteExpiredImages();
+            if (deleted > 0) ServerLogger.logInfo("Deleted " + deleted + " expired images");
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to delete expired images: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reclaims the space of the replaced images in the image segments
+     */
+    private void compactImages() {
+        try {
+            long reclaimed = imageManager.compact(COMPACT_RATIO);
+            if (reclaimed > 0) ServerLogger.logInfo("Compacted image segments, reclaimed " + reclaimed + " bytes");
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to compact image segments: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the current content of a file written to the server
+     * folder, so that the background scrub can detect later changes,
+     * and removes its previous content from the cache
+     *
+     * @param path the path of the file
+     */
+    public void trackFile(String path) {
+        cache.invalidate(path);
+        integrityScrubber.track(path);
+    }
+
+    /**
+     * Stops checking a file deleted from the server folder,
+     * and removes its content from the cache
+     *
+     * @param path the path of the file
+     */
+    public void untrackFile(String path) {
+        cache.invalidate(path);
+        integrityScrubber.untrack(path);
+    }
+
+    /**
+     * Returns the content of a file of the server folder,
+     * from memory if it was read recently
+     *
+     * @param path the path of the file
+     * @return a read-only buffer with the content, or null if the file does not exist
+     * @throws IOException if the file could not be read
+     */
+    public ByteBuffer readFile(String path) throws IOException {
+        ByteBuffer content = cache.get(path);
+        if (content != null) return content;
+        long stamp = cache.stamp();
+        try {
+            content = ByteBuffer.wrap(Files.readAllBytes(Path.of(path)));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        cache.put(path, content, stamp);
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the counters of the cache of the files
+     *
+     * @return the counters of the cache
+     */
+    public ObjectCache.Stats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Returns the counters of the writer of the persistence files
+     *
+     * @return the counters of the writer
+     */
+    public PersistenceWriter.Stats getWriterStats() {
+        return writer.getStats();
+    }
+
+    /**
+     * Returns the problems found by the background scrub
+     *
+     * @return the problems found
+     */
+    public List<String> getScrubFindings() {
+        return integrityScrubber.getFindings();
+    }
+
+    /**
+     * Stops the background tasks of this storage, signs the pending
+     * integrity changes, writes a final snapshot, closes the image
+     * segments, writing their index so that the next start does not
+     * have to scan them, and syncs the persistence files
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                ServerLogger.logWarning("Background tasks did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        integrityVerifier.close();
+        engine.close();
+        integrityScrubber.close();
+        imageManager.close();
+        writer.close();
     }
 
     /**
@@ -76,10 +376,12 @@ public class Storage {
      * the user to a users.txt file located in the server-files folder.
      *
      * @param user the {@code User} to be saved
+     * @return status code
      * @requires {@code user != null}
+     * @see Codes
      */
-    public void saveUser(User user) {
-        userManager.saveUser(user);
+    public String saveUser(User user) {
+        return engine.saveUser(user);
     }
 
     /**
@@ -107,9 +409,7 @@ public class Storage {
      * @see Codes
      */
     public String createDomain(String name, User owner) {
-        if (!integrityVerifier.verify(DOMAINS))
-            return Codes.CRR.toString();
-        return domainManager.createDomain(name, owner, integrityVerifier);
+        return engine.createDomain(name, owner);
     }
 
     /**
@@ -125,21 +425,79 @@ public class Storage {
      * @see Codes
      */
     public String saveTemperature(Device device, String temperature, Domain domain) {
-        return domainManager.saveTemperature(device, temperature, domain);
+        return engine.saveTemperature(device, temperature, domain);
+    }
+
+    /**
+     * Returns the last temperatures sent by the devices of the given
+     * {@code Domain}, one line {@code user:id,temperature} per device
+     *
+     * @param domain the {@code Domain}
+     * @return a read-only buffer with the temperatures, null if there is no data
+     * @throws IOException if the temperatures could not be read
+     * @requires {@code domain != null}
+     */
+    public ByteBuffer getDomainTemperatures(Domain domain) throws IOException {
+        return engine.getDomainTemperatures(domain);
     }
 
     /**
-     * Returns the path of the file containing the temperatures sent by
-     * the devices of the given {@code Domain}. Creates if it does not
-     * already exist or updates it with the most recent temperatures
+     * Returns the last temperatures sent by the devices of the given
+     * {@code Domain}, in the binary format of {@code TemperatureColumns}
      *
      * @param domain the {@code Domain}
-     * @return the path of the file containing the temperatures, null
-     *          if there is no data or in case of error
+     * @return a read-only buffer with the temperatures, null if there is no data
+     * @throws IOException if the temperatures could not be read
      * @requires {@code domain != null}
+     * @see common.TemperatureColumns
+     */
+    public ByteBuffer getDomainTemperatureColumns(Domain domain) throws IOException {
+        return engine.getDomainTemperatureColumns(domain);
+    }
+
+    /**
+     * Returns the path where an image being received from the given
+     * {@code Device} is written to, kept if the upload is interrupted
+     *
+     * @param device the {@code Device}
+     * @param uploadId the id of the upload
+     * @return the path of the partial file
+     */
+    public String getImageUploadPath(Device device, String uploadId) {
+        return imageManager.getUploadPath(device, uploadId);
+    }
+
+    /**
+     * Saves the image received from the given {@code Device}, encrypted
+     * once, with its key wrapped with the key of each {@code Domain}.
+     * Returns "OK" if the method concluded with success, "NOK" otherwise
+     *
+     * @param device the {@code Device}
+     * @param source the file with the received image
+     * @param wrappedKeys the key of the image wrapped with the key of each domain
+     * @return status code
+     * @requires {@code device != null && source != null && wrappedKeys != null}
+     * @see Codes
+     */
+    public String saveImage(Device device, String source, Map<Domain, byte[]> wrappedKeys) {
+        List<String> removed = imageManager.saveImage(device, source, wrappedKeys);
+        if (removed == null) return Codes.NOK.toString();
+        for (String path : removed) integrityScrubber.untrack(path);
+        return Codes.OK.toString();
+    }
+
+    /**
+     * Opens the image of the given {@code Device} that was current at the
+     * given time, if it can be read by the users of the given {@code Domain}
+     *
+     * @param device the {@code Device}
+     * @param domain the {@code Domain}
+     * @param time the time in milliseconds, {@code Long.MAX_VALUE} for the current image
+     * @return the image, or null if there is no image for the domain
+     * @throws IOException if the image could not be opened
      */
-    public String getDomainTemperatures(Domain domain) {
-        return domainManager.getDomainTemperatures(domain);
+    public ImageManager.StoredImage openImage(Device device, Domain domain, long time) throws IOException {
+        return imageManager.openImage(device, domain, time);
     }
 
     /**
@@ -155,9 +513,7 @@ public class Storage {
      * @see Codes
      */
     public String addUserToDomain(User userToAdd, Domain domain) {
-        if (!integrityVerifier.verify(DOMAINS))
-            return Codes.CRR.toString();
-        return domainManager.addUserToDomain(userToAdd, domain, integrityVerifier);
+        return engine.addUserToDomain(userToAdd, domain);
     }
 
     /**
@@ -176,9 +532,7 @@ public class Storage {
      * @see Codes
      */
     public String addDeviceToDomain(Domain domain, Device device, User user) {
-        if (!integrityVerifier.verify(DOMAINS))
-            return Codes.CRR.toString();
-        String res = domainManager.addDeviceToDomain(domain, device, user, integrityVerifier);
+        String res = engine.addDeviceToDomain(domain, device, user);
         if (res.equals(Codes.OK.toString())) {
             deviceManager.addDomainToDevice(device, domain);
         }
@@ -223,7 +577,17 @@ public class Storage {
      * @return a {@code User}, if the username was found, null otherwise
      */
     public User getUser(String username) {
-        return userManager.getUser(username);
+        return engine.getUser(username);
+    }
+
+    /**
+     * Returns the {@code PublicKey} of a {@code User} of this storage
+     *
+     * @param user the {@code User}
+     * @return the public key of the user, or null if it could not be loaded
+     */
+    public PublicKey getUserPubKey(User user) {
+        return engine.getUserPubKey(user);
     }
 
     /**
@@ -255,7 +619,7 @@ public class Storage {
      * @return a {@code Domain}, if the name matched, null otherwise
      */
     public Domain getDomain(String name) {
-        return domainManager.getDomain(name);
+        return engine.getDomain(name);
     }
 
     /**
@@ -263,7 +627,7 @@ public class Storage {
      *
      * @return the map of devices of this storage.
      */
-    public HashMap<Device, List<Domain>> getDevices() {
+    public Map<Device, List<Domain>> getDevices() {
         return deviceManager.getDevices();
     }
 
@@ -279,6 +643,7 @@ public class Storage {
         private static final String SERVER_FILES = "server";
         private static final String TEMPERATURES =  SERVER_FILES + "/temperatures";
         private static final String IMAGES = SERVER_FILES + "/images";
+        private static final String UPLOADS = SERVER_FILES + "/uploads";
         private static final String USERS_PUB_KEYS_DIR =  SERVER_FILES + "/users_pub_keys";
         private static final String DOMAIN_KEYS_DIR =  SERVER_FILES + "/domain_keys";
 
@@ -293,13 +658,12 @@ public class Storage {
         }
 
         /**
-         * Creates all the files used by this storage to save data.
-         * If they already exist, then loads their content to the
-         * data structures of this storage.
+         * Creates all the files used by this storage to save data,
+         * verifies their integrity and loads the data of the
+         * {@code StorageEngine} of this storage.
          *
          * @param srvStorage this storage
-         * @see #loadUsers(Storage)
-         * @see #loadDomains(Storage)
+         * @see StorageEngine#open(Storage)
          */
         private void start(Storage srvStorage) {
             createFolders();
@@ -313,7 +677,6 @@ public class Storage {
                     ServerLogger.logErrorAndExit("Unable to create client info text file");
                 }
             }
-            loadUsers(srvStorage);
 
             IntegrityVerifier verifier = srvStorage.integrityVerifier;
             verifier.init();
@@ -324,21 +687,11 @@ public class Storage {
                         " Shutting down...");
             }
 
-            File file = new File(DOMAINS);
-            if (!file.exists()) {
-                try {
-                    if (file.createNewFile()){
-                        ServerLogger.logInfo("Domains text file created successfully");
-                    }
-                } catch (IOException e) {
-                    ServerLogger.logErrorAndExit("Unable to create domains text file");
-                }
-            } else {
-                loadDomains(srvStorage);
-            }
+            srvStorage.engine.open(srvStorage);
+            linkDevices(srvStorage);
             System.out.println();
             StringBuilder sb = new StringBuilder();
-            List<Domain> domains = srvStorage.domainManager.getDomains();
+            List<Domain> domains = srvStorage.engine.getDomains();
             if (!domains.isEmpty()) {
                 for (Domain domain : domains)
                     sb.append("Domain ").append(domain.getName()).append(" -> ")
@@ -349,56 +702,16 @@ public class Storage {
         }
 
         /**
-         * Loads the data from users.txt file to this storage
-         *
-         * @param srvStorage this storage
-         */
-        private void loadUsers(Storage srvStorage) {
-            File usersFile = new File(USERS);
-            if (usersFile.exists()) {
-                SecretKey usersKey = srvStorage.userManager.getSecretKey();
-                String usersData = decryptDataFromFile(usersFile, usersKey);
-                if (usersData != null) {
-                    String[] users = usersData.split("\n");
-                    for (String user : users) {
-                        String[] data = user.split(",");
-                        User newUser = new User(data[0], data[1]);
-                        if (SecurityUtils.getUserPubKey(new File(data[1])) == null){
-                            ServerLogger.logErrorAndExit("Cipher password is incorrect!" +
-                                    " Shutting down...");
-                        }
-                        srvStorage.userManager.getUsers().add(newUser);
-                    }
-                    ServerLogger.logInfo("Users text file loaded successfully");
-                } else {
-                    ServerLogger.logErrorAndExit("Users text file could not be loaded");
-                }
-            }
-        }
-
-        /**
-         * Loads the data from domains.txt file to this storage
+         * Adds each loaded {@code Domain} to the list of
+         * domains of the devices registered in it
          *
          * @param srvStorage this storage
          */
-        private void loadDomains(Storage srvStorage) {
-            try (BufferedReader in = new BufferedReader(new FileReader(DOMAINS))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    srvStorage.domainManager.getDomains()
-                            .add(new Domain(line, srvStorage));
-                }
-                for (Domain domain : srvStorage.domainManager.getDomains()){
-                    for(Device device: domain.getDevices()) {
-                        List<Domain> domains = srvStorage.deviceManager
-                                .getDevices().get(device);
-                        domains.add(domain);
-                        srvStorage.getDevices().put(device, domains);
-                    }
+        private void linkDevices(Storage srvStorage) {
+            for (Domain domain : srvStorage.engine.getDomains()){
+                for(Device device: domain.getDevices()) {
+                    srvStorage.deviceManager.addDomainToDevice(device, domain);
                 }
-                ServerLogger.logInfo("Domains text file loaded successfully");
-            } catch (IOException e) {
-                ServerLogger.logErrorAndExit("Unable to load domains text file");
             }
         }
 
@@ -413,6 +726,8 @@ public class Storage {
             if (!temps.isDirectory()) temps.mkdir();
             File images = new File(IMAGES);
             if (!images.isDirectory()) images.mkdir();
+            File uploads = new File(UPLOADS);
+            if (!uploads.isDirectory()) uploads.mkdir();
             File usersPubKeys = new File(USERS_PUB_KEYS_DIR);
             if (!usersPubKeys.isDirectory()) usersPubKeys.mkdir();
             File domainKeys = new File(DOMAIN_KEYS_DIR);
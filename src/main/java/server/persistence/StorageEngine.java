@@ -0,0 +1,177 @@
+package server.persistence;
+
+import common.Codes;
+import common.TemperatureColumns;
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * The engine that keeps the data of the {@link Storage}: the users, the
+ * domains with their users and devices, and the last temperature sent by
+ * each device to each domain. The {@code Storage} keeps what does not
+ * depend on the engine, such as the images, the keys and the devices
+ * registered in the domains, and delegates the rest to the engine chosen
+ * when the server starts, through the system property {@code iot.storage.engine}.
+ *
+ * <p>The operations that change data return a status code, as the ones
+ * of the {@code Storage}, and must be durable when they return.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Codes
+ */
+public interface StorageEngine {
+
+    /**
+     * Returns the name of this engine, used to choose it
+     *
+     * @return the name of this engine
+     */
+    String getName();
+
+    /**
+     * Loads the data of this engine. Devices are registered in the
+     * given storage as the domains that contain them are loaded.
+     *
+     * @param storage the storage using this engine
+     */
+    void open(Storage storage);
+
+    /**
+     * Saves a new {@code User}. A user already saved is left as it is.
+     *
+     * @param user the {@code User}
+     * @return "OK", or "NOK" if the user could not be written
+     * @requires {@code user != null}
+     */
+    String saveUser(User user);
+
+    /**
+     * Returns the {@code User} with the given name
+     *
+     * @param name the name of the {@code User}
+     * @return the {@code User}, or null if there is none
+     */
+    User getUser(String name);
+
+    /**
+     * Returns the {@code PublicKey} of a {@code User}
+     *
+     * @param user the {@code User}
+     * @return the public key of the user, or null if it could not be loaded
+     */
+    PublicKey getUserPubKey(User user);
+
+    /**
+     * Creates a new {@code Domain}
+     *
+     * @param name the name of the {@code Domain}
+     * @param owner the owner of the {@code Domain}
+     * @return "OK", "NOK" if the domain exists or "CRR" if the data is corrupted
+     */
+    String createDomain(String name, User owner);
+
+    /**
+     * Adds a {@code User} to a {@code Domain}
+     *
+     * @param user the {@code User}
+     * @param domain the {@code Domain}
+     * @return "OK", "NOK" if the user is in the domain or "CRR" if the data is corrupted
+     */
+    String addUserToDomain(User user, Domain domain);
+
+    /**
+     * Adds a {@code Device} to a {@code Domain}
+     *
+     * @param domain the {@code Domain}
+     * @param device the {@code Device}
+     * @param user the {@code User} of the device
+     * @return "OK", "NODM", "NOPERM", "NOK" if the device is in
+     *          the domain or "CRR" if the data is corrupted
+     */
+    String addDeviceToDomain(Domain domain, Device device, User user);
+
+    /**
+     * Returns the {@code Domain} with the given name
+     *
+     * @param name the name of the {@code Domain}
+     * @return the {@code Domain}, or null if there is none
+     */
+    Domain getDomain(String name);
+
+    /**
+     * Returns all the domains
+     *
+     * @return the list of {@code Domains}
+     */
+    List<Domain> getDomains();
+
+    /**
+     * Saves the last temperature sent by a {@code Device} to a {@code Domain}
+     *
+     * @param device the {@code Device}
+     * @param temperature the encrypted temperature
+     * @param domain the {@code Domain}
+     * @return "OK" or "NOK"
+     */
+    String saveTemperature(Device device, String temperature, Domain domain);
+
+    /**
+     * Returns the last temperatures sent by the devices of a {@code Domain},
+     * one line {@code user:id,temperature} per device
+     *
+     * @param domain the {@code Domain}
+     * @return a read-only buffer with the temperatures, or null if there are none
+     * @throws IOException if the temperatures could not be read
+     */
+    ByteBuffer getDomainTemperatures(Domain domain) throws IOException;
+
+    /**
+     * Returns the last temperatures sent by the devices of a {@code Domain}
+     * in the binary format of {@link TemperatureColumns}. By default they
+     * are converted from the lines of {@link #getDomainTemperatures(Domain)},
+     * without the times of the temperatures.
+     *
+     * @param domain the {@code Domain}
+     * @return a read-only buffer with the temperatures, or null if there are none
+     * @throws IOException if the temperatures could not be read
+     */
+    default ByteBuffer getDomainTemperatureColumns(Domain domain) throws IOException {
+        ByteBuffer temperatures = getDomainTemperatures(domain);
+        if (temperatures == null) return null;
+        TemperatureColumns columns = new TemperatureColumns();
+        for (String line : StandardCharsets.UTF_8.decode(temperatures).toString().split("\n")) {
+            int comma = line.indexOf(',');
+            if (comma > 0) columns.add(line.substring(0, comma), 0, line.substring(comma + 1));
+        }
+        return columns.size() == 0 ? null : columns.toBuffer();
+    }
+
+    /**
+     * Saves the state of this engine so that the next start is faster.
+     * Called periodically and when the server shuts down.
+     */
+    void checkpoint();
+
+    /**
+     * Syncs to the disk the data this engine writes without the
+     * {@code PersistenceWriter}. Called on the sync interval of the
+     * writer when its durability is periodic. By default does nothing.
+     */
+    default void sync() {}
+
+    /**
+     * Closes this engine, after a last checkpoint
+     */
+    void close();
+
+}
@@ -0,0 +1,609 @@
+package server.persistence;
+
+import common.TemperatureColumns;
+import server.ServerLogger;
+import server.persistence.PersistenceWriter.Durability;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * The store of the last temperature sent by each device to each domain.
+ * Each domain has a file, memory-mapped, with a fixed-size slot per device;
+ * an in-memory index maps each device to its slot, rebuilt when the store
+ * is opened. Saving a temperature writes the slot of the device in place,
+ * and the temperatures of a domain are read by copying its slots, without
+ * parsing the file.
+ *
+ * <p>Format of a file (big-endian): {@code int magic, int slot size,
+ * long reserved}, followed by the slots
+ * <pre>
+ * byte[16] HMAC-SHA256 of the domain name and of the rest of the slot, truncated,
+ * long time of the temperature, short device length, short temperature length,
+ * byte[device length] device, byte[temperature length] temperature
+ * </pre>
+ * A slot cut by a crash, or changed without the key of the server, does
+ * not match its HMAC, and is dropped when the store is opened; the domain
+ * name in the HMAC keeps a slot from being copied to another domain. As a
+ * temperature is written over the previous one, in place, an update cut by
+ * a crash loses both the old and the new temperature of the device, until
+ * it sends another. Every slot of a file is read when it is opened, so that
+ * a dropped or empty slot does not hide the slots after it, and the slots
+ * dropped are reused by the next new devices. The
+ * temperature files of older versions, slots with a CRC32C instead of the
+ * HMAC and text files with a line {@code user:id,temperature} per device,
+ * are converted into a temporary file that then replaces the slots of the
+ * domain; a text file is only deleted once all its lines are converted.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class TemperatureStore {
+
+    /**
+     * File format
+     */
+    private static final int MAGIC = 0x544D5032;        // "TMP2"
+    private static final int LEGACY_MAGIC = 0x544D5053; // "TMPS", with a CRC32C per slot
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 256;
+    private static final int MAC_LENGTH = 16;
+    private static final int TIME = MAC_LENGTH;
+    private static final int DEVICE_LENGTH = TIME + 8;
+    private static final int TEMPERATURE_LENGTH = DEVICE_LENGTH + 2;
+    private static final int SLOT_HEADER = TEMPERATURE_LENGTH + 2;
+    private static final int LEGACY_SLOT_HEADER = 16;
+    private static final int MAX_DATA = SLOT_SIZE - SLOT_HEADER;
+    private static final int INITIAL_SLOTS = 16;
+    private static final String EXTENSION = ".slots";
+    private static final String LEGACY_EXTENSION = ".txt";
+    private static final String TEMP = ".tmp";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Store parameters
+     */
+    private final File folder;
+    private final SecretKey secret;         // key of the HMACs
+    private final Durability durability;
+
+    /**
+     * Data structures
+     */
+    private final Map<String, Slots> domains;           // open files by domain
+
+    /**
+     * The file of the temperatures of a domain
+     */
+    private static class Slots {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private ByteBuffer view;                        // reused to compute the HMAC of a slot
+        private final Map<String, Integer> index;       // slot of each device
+        private final Deque<Integer> free;              // empty or dropped slots below used
+        private int used;                               // slots up to the last written, valid or not
+        private boolean dirty;                          // written since the last sync
+        private final byte[] domain;                    // name of the domain, in the HMACs
+        private final Mac mac;
+
+        private Slots(FileChannel channel, String domain, Mac mac) {
+            this.channel = channel;
+            this.index = new LinkedHashMap<>();
+            this.free = new ArrayDeque<>();
+            this.domain = domain.getBytes(StandardCharsets.UTF_8);
+            this.mac = mac;
+        }
+    }
+
+    /**
+     * A temperature read from a file being converted
+     */
+    private record Reading(String device, long time, String temperature) {}
+
+    /**
+     * Constructs a new {@code TemperatureStore}
+     *
+     * @param folder the folder of the temperature files
+     * @param secret the key of the HMACs
+     * @param durability when a saved temperature is synced to the disk; with
+     *                   periodic durability {@link #sync()} must be called periodically
+     */
+    public TemperatureStore(String folder, SecretKey secret, Durability durability) {
+        this.folder = new File(folder);
+        this.secret = secret;
+        this.durability = durability;
+        this.domains = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens the temperature files of all domains, converting the files
+     * of older versions
+     *
+     * @return the paths of the converted files, now deleted
+     * @throws IOException if a file could not be read or converted
+     */
+    public List<String> open() throws IOException {
+        List<String> converted = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if (files == null) return converted;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(EXTENSION + TEMP)) {
+                // Left by a conversion interrupted by a crash
+                Files.delete(file.toPath());
+            } else if (name.endsWith(EXTENSION)) {
+                String domain = name.substring(0, name.length() - EXTENSION.length());
+                domains.put(domain, load(domain, file.toPath()));
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(LEGACY_EXTENSION)) continue;
+            String domain = name.substring(0, name.length() - LEGACY_EXTENSION.length());
+            if (convert(domain, file.toPath())) {
+                Files.delete(file.toPath());
+                converted.add(file.getPath().replace(File.separatorChar, '/'));
+            }
+        }
+        if (!converted.isEmpty()) {
+            ServerLogger.logInfo("Converted " + converted.size() + " temperature files");
+        }
+        return converted;
+    }
+
+    /**
+     * Converts the text file of a domain, of an older version, into slots.
+     * The slots already saved for the domain, if any, are kept, and the
+     * lines of the devices without a slot are added.
+     *
+     * @param domain the name of the domain
+     * @param legacy the path of the text file
+     * @return true if all the lines were converted, false if some
+     *         were rejected and the text file must be kept
+     * @throws IOException if a file could not be read or written
+     */
+    private boolean convert(String domain, Path legacy) throws IOException {
+        List<Reading> readings = readings(domains.get(domain));
+        Set<String> devices = new HashSet<>();
+        for (Reading reading : readings) devices.add(reading.device());
+        int rejected = 0;
+        long now = System.currentTimeMillis();
+        for (String line : Files.readString(legacy, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isEmpty()) continue;
+            int comma = line.indexOf(',');
+            if (comma <= 0) {
+                rejected++;
+            } else if (devices.add(line.substring(0, comma))) {
+                readings.add(new Reading(line.substring(0, comma), now, line.substring(comma + 1)));
+            }
+        }
+        rejected += rewrite(domain, readings);
+        if (rejected > 0) {
+            ServerLogger.logWarning("Kept " + legacy + ": " + rejected + " lines could not be converted");
+        }
+        return rejected == 0;
+    }
+
+    /**
+     * Writes the temperatures of a domain to a temporary file, which then
+     * replaces the slots of the domain
+     *
+     * @param domain the name of the domain
+     * @param readings the temperatures
+     * @return the number of temperatures that do not fit in a slot
+     * @throws IOException if the file could not be written
+     */
+    private int rewrite(String domain, List<Reading> readings) throws IOException {
+        Path target = folder.toPath().resolve(domain + EXTENSION);
+        Path temp = folder.toPath().resolve(domain + EXTENSION + TEMP);
+        Slots slots;
+        try {
+            slots = create(domain, temp);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int rejected = 0;
+        try {
+            for (Reading reading : readings) {
+                if (!put(slots, reading.device(), reading.temperature(), reading.time())) {
+                    tooLarge(domain, reading.device());
+                    rejected++;
+                }
+            }
+            slots.buffer.force();
+        } finally {
+            slots.channel.close();
+        }
+        Slots existing = domains.remove(domain);
+        if (existing != null) existing.channel.close();
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        domains.put(domain, load(domain, target));
+        return rejected;
+    }
+
+    /**
+     * Returns the temperatures in the slots of a domain
+     *
+     * @param slots the slots of the domain, or null
+     * @return the temperatures, in slot order
+     */
+    private static List<Reading> readings(Slots slots) {
+        List<Reading> readings = new ArrayList<>();
+        if (slots == null) return readings;
+        for (int slot : slots.index.values()) {
+            int base = HEADER_SIZE + slot * SLOT_SIZE;
+            byte[] device = new byte[slots.buffer.getShort(base + DEVICE_LENGTH)];
+            byte[] temperature = new byte[slots.buffer.getShort(base + TEMPERATURE_LENGTH)];
+            slots.buffer.get(base + SLOT_HEADER, device);
+            slots.buffer.get(base + SLOT_HEADER + device.length, temperature);
+            readings.add(new Reading(new String(device, StandardCharsets.UTF_8), slots.buffer.getLong(base + TIME),
+                    new String(temperature, StandardCharsets.UTF_8)));
+        }
+        return readings;
+    }
+
+    /**
+     * Saves the last temperature sent by a device to a domain, in the
+     * slot of the device, creating it if this is the first temperature
+     *
+     * @param domain the name of the domain
+     * @param device the name of the device, {@code user:id}
+     * @param temperature the encrypted temperature
+     * @return true if the temperature was saved, false otherwise
+     */
+    public boolean save(String domain, String device, String temperature) {
+        Slots slots;
+        try {
+            slots = domains.computeIfAbsent(domain,
+                    name -> create(name, folder.toPath().resolve(name + EXTENSION)));
+        } catch (UncheckedIOException e) {
+            ServerLogger.logError("Unable to create the temperature file of " + domain + ": "
+                    + e.getCause().getMessage());
+            return false;
+        }
+        synchronized (slots) {
+            try {
+                if (!put(slots, device, temperature, System.currentTimeMillis()))
+                    return tooLarge(domain, device);
+            } catch (IOException e) {
+                ServerLogger.logError("Unable to grow the temperature file of " + domain + ": " + e.getMessage());
+                return false;
+            }
+            if (durability == Durability.COMMIT) {
+                slots.buffer.force(HEADER_SIZE + slots.index.get(device) * SLOT_SIZE, SLOT_SIZE);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the temperature of a device in its slot, creating it if this
+     * is the first temperature of the device. Must be called holding the
+     * lock of the slots.
+     *
+     * @param slots the slots of the domain
+     * @param device the name of the device, {@code user:id}
+     * @param temperature the encrypted temperature
+     * @param time the time of the temperature
+     * @return true if the temperature was written, false if it does not fit in a slot
+     * @throws IOException if the file could not grow
+     */
+    private static boolean put(Slots slots, String device, String temperature, long time) throws IOException {
+        Integer slot = slots.index.get(device);
+        int base;
+        if (slot == null) {
+            // New device, in the first free slot
+            byte[] name = device.getBytes(StandardCharsets.UTF_8);
+            if (name.length + temperature.length() > MAX_DATA) return false;
+            Integer free = slots.free.peek();
+            if (free == null && slots.used == capacity(slots)) grow(slots);
+            slot = free != null ? free : slots.used;
+            base = HEADER_SIZE + slot * SLOT_SIZE;
+            slots.buffer.put(base + SLOT_HEADER, name);
+            if (!putTemperature(slots.buffer, base, name.length, temperature)) return false;
+            slots.buffer.putShort(base + DEVICE_LENGTH, (short) name.length);
+            if (free != null) slots.free.poll();
+            else slots.used++;
+            slots.index.put(device, slot);
+        } else {
+            base = HEADER_SIZE + slot * SLOT_SIZE;
+            if (!putTemperature(slots.buffer, base, slots.buffer.getShort(base + DEVICE_LENGTH), temperature))
+                return false;
+        }
+        slots.buffer.putLong(base + TIME, time);
+        slots.buffer.put(base, mac(slots, base));
+        slots.dirty = true;
+        return true;
+    }
+
+    /**
+     * Returns the last temperatures sent to a domain, one line
+     * {@code user:id,temperature} per device, copied from the slots
+     *
+     * @param domain the name of the domain
+     * @return a read-only buffer with the temperatures, or null if there are none
+     */
+    public ByteBuffer read(String domain) {
+        Slots slots = domains.get(domain);
+        if (slots == null) return null;
+        synchronized (slots) {
+            if (slots.index.isEmpty()) return null;
+            int size = 0;
+            for (int slot : slots.index.values()) {
+                int base = HEADER_SIZE + slot * SLOT_SIZE;
+                size += slots.buffer.getShort(base + DEVICE_LENGTH) + slots.buffer.getShort(base + TEMPERATURE_LENGTH) + 2;
+            }
+            byte[] content = new byte[size];
+            int position = 0;
+            for (int slot : slots.index.values()) {
+                int base = HEADER_SIZE + slot * SLOT_SIZE;
+                int deviceLength = slots.buffer.getShort(base + DEVICE_LENGTH);
+                int temperatureLength = slots.buffer.getShort(base + TEMPERATURE_LENGTH);
+                slots.buffer.get(base + SLOT_HEADER, content, position, deviceLength);
+                position += deviceLength;
+                content[position++] = ',';
+                slots.buffer.get(base + SLOT_HEADER + deviceLength, content, position, temperatureLength);
+                position += temperatureLength;
+                content[position++] = '\n';
+            }
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Returns the last temperatures sent to a domain in the binary format
+     * of {@link TemperatureColumns}, with the times of the slots
+     *
+     * @param domain the name of the domain
+     * @return a read-only buffer with the temperatures, or null if there are none
+     */
+    public ByteBuffer readColumns(String domain) {
+        Slots slots = domains.get(domain);
+        if (slots == null) return null;
+        TemperatureColumns columns = new TemperatureColumns();
+        synchronized (slots) {
+            for (int slot : slots.index.values()) {
+                int base = HEADER_SIZE + slot * SLOT_SIZE;
+                byte[] device = new byte[slots.buffer.getShort(base + DEVICE_LENGTH)];
+                byte[] temperature = new byte[slots.buffer.getShort(base + TEMPERATURE_LENGTH)];
+                slots.buffer.get(base + SLOT_HEADER, device);
+                slots.buffer.get(base + SLOT_HEADER + device.length, temperature);
+                columns.add(device, slots.buffer.getLong(base + TIME), temperature);
+            }
+        }
+        return columns.size() == 0 ? null : columns.toBuffer();
+    }
+
+    /**
+     * Syncs the temperatures saved since the last sync to the disk
+     */
+    public void sync() {
+        for (Slots slots : domains.values()) {
+            synchronized (slots) {
+                sync(slots);
+            }
+        }
+    }
+
+    /**
+     * Syncs and closes the temperature files
+     */
+    public void close() {
+        for (Slots slots : domains.values()) {
+            synchronized (slots) {
+                sync(slots);
+                try {
+                    slots.channel.close();
+                } catch (IOException e) {
+                    ServerLogger.logError("Unable to close a temperature file: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Syncs the slots of a domain, if they were written since the last sync
+     */
+    private void sync(Slots slots) {
+        if (slots.dirty) {
+            slots.buffer.force();
+            slots.dirty = false;
+        }
+    }
+
+    /**
+     * Writes the temperature of a slot, after the name of the device
+     *
+     * @return false if the temperature does not fit in the slot
+     */
+    private static boolean putTemperature(MappedByteBuffer buffer, int base, int deviceLength, String temperature) {
+        int start = base + SLOT_HEADER + deviceLength;
+        int length = temperature.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) ascii = temperature.charAt(i) <= 0x7f;
+        if (ascii) {
+            // Base64, one byte per char
+            if (deviceLength + length > MAX_DATA) return false;
+            for (int i = 0; i < length; i++) buffer.put(start + i, (byte) temperature.charAt(i));
+        } else {
+            byte[] bytes = temperature.getBytes(StandardCharsets.UTF_8);
+            length = bytes.length;
+            if (deviceLength + length > MAX_DATA) return false;
+            buffer.put(start, bytes);
+        }
+        buffer.putShort(base + TEMPERATURE_LENGTH, (short) length);
+        return true;
+    }
+
+    private static boolean tooLarge(String domain, String device) {
+        ServerLogger.logWarning("Temperature of " + device + " for domain " + domain + " is too large");
+        return false;
+    }
+
+    /**
+     * Creates a temperature file of a domain
+     */
+    private Slots create(String domain, Path path) {
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Slots slots = new Slots(channel, domain, newMac());
+            slots.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) INITIAL_SLOTS * SLOT_SIZE);
+            slots.view = slots.buffer.duplicate();
+            slots.buffer.putInt(0, MAGIC).putInt(4, SLOT_SIZE);
+            slots.buffer.force();
+            return slots;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the temperature file of a domain and rebuilds its index,
+     * converting a file of the previous version
+     *
+     * @param domain the name of the domain
+     * @param path the path of the file
+     * @return the slots of the domain
+     * @throws IOException if the file could not be read or has a bad format
+     */
+    private Slots load(String domain, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Slots slots = new Slots(channel, domain, newMac());
+        long size = channel.size();
+        slots.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, HEADER_SIZE));
+        slots.view = slots.buffer.duplicate();
+        if (slots.buffer.getInt(0) == LEGACY_MAGIC && slots.buffer.getInt(4) == SLOT_SIZE) {
+            List<Reading> readings = readLegacy(slots.buffer, path);
+            channel.close();
+            rewrite(domain, readings);
+            ServerLogger.logInfo("Converted " + path + " to slots with an HMAC");
+            return domains.get(domain);
+        }
+        if (slots.buffer.getInt(0) != MAGIC || slots.buffer.getInt(4) != SLOT_SIZE) {
+            channel.close();
+            throw new IOException("Temperature file " + path + " has a bad format");
+        }
+        int capacity = capacity(slots);
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = HEADER_SIZE + slot * SLOT_SIZE;
+            int deviceLength = slots.buffer.getShort(base + DEVICE_LENGTH);
+            if (deviceLength == 0) {
+                // Never written, or cut by a crash before its device
+                slots.free.add(slot);
+                continue;
+            }
+            slots.used = slot + 1;
+            byte[] mac = new byte[MAC_LENGTH];
+            slots.buffer.get(base, mac);
+            if (!MessageDigest.isEqual(mac, mac(slots, base)) || deviceLength < 0
+                    || deviceLength + slots.buffer.getShort(base + TEMPERATURE_LENGTH) > MAX_DATA) {
+                ServerLogger.logWarning("Dropped a temperature cut by a crash or forged in " + path);
+                slots.free.add(slot);
+                continue;
+            }
+            byte[] device = new byte[deviceLength];
+            slots.buffer.get(base + SLOT_HEADER, device);
+            slots.index.put(new String(device, StandardCharsets.UTF_8), slot);
+        }
+        slots.free.removeIf(slot -> slot >= slots.used);
+        return slots;
+    }
+
+    /**
+     * Reads the temperatures of a file of the previous version, with
+     * a CRC32C per slot, dropping the slots cut by a crash
+     *
+     * @param buffer the content of the file
+     * @param path the path of the file
+     * @return the temperatures, in slot order
+     */
+    private static List<Reading> readLegacy(ByteBuffer buffer, Path path) {
+        List<Reading> readings = new ArrayList<>();
+        CRC32C crc = new CRC32C();
+        ByteBuffer view = buffer.duplicate();
+        int capacity = (buffer.capacity() - HEADER_SIZE) / SLOT_SIZE;
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = HEADER_SIZE + slot * SLOT_SIZE;
+            int deviceLength = buffer.getShort(base + 12);
+            int temperatureLength = buffer.getShort(base + 14);
+            if (deviceLength == 0) continue;
+            crc.reset();
+            crc.update(view.limit(base + SLOT_SIZE).position(base + 4));
+            if (buffer.getInt(base) != (int) crc.getValue() || deviceLength < 0 || temperatureLength < 0
+                    || deviceLength + temperatureLength > SLOT_SIZE - LEGACY_SLOT_HEADER) {
+                ServerLogger.logWarning("Dropped a temperature cut by a crash in " + path);
+                continue;
+            }
+            byte[] device = new byte[deviceLength];
+            byte[] temperature = new byte[temperatureLength];
+            buffer.get(base + LEGACY_SLOT_HEADER, device);
+            buffer.get(base + LEGACY_SLOT_HEADER + deviceLength, temperature);
+            readings.add(new Reading(new String(device, StandardCharsets.UTF_8), buffer.getLong(base + 4),
+                    new String(temperature, StandardCharsets.UTF_8)));
+        }
+        return readings;
+    }
+
+    /**
+     * Doubles the number of slots of a file
+     */
+    private static void grow(Slots slots) throws IOException {
+        slots.buffer.force();
+        long size = HEADER_SIZE + (long) capacity(slots) * 2 * SLOT_SIZE;
+        slots.buffer = slots.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        slots.view = slots.buffer.duplicate();
+        slots.dirty = false;
+    }
+
+    /**
+     * Computes the HMAC of a slot, after the HMAC field, truncated
+     */
+    private static byte[] mac(Slots slots, int base) {
+        slots.view.limit(base + SLOT_SIZE).position(base + MAC_LENGTH);
+        slots.mac.update(slots.domain);
+        slots.mac.update(slots.view);
+        return Arrays.copyOf(slots.mac.doFinal(), MAC_LENGTH);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int capacity(Slots slots) {
+        return (slots.buffer.capacity() - HEADER_SIZE) / SLOT_SIZE;
+    }
+
+}
@@ -0,0 +1,314 @@
+package server.persistence.engines;
+
+import common.Codes;
+import server.ServerConfig;
+import server.ServerLogger;
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+import server.persistence.PersistenceWriter;
+import server.persistence.Storage;
+import server.persistence.StorageEngine;
+import server.persistence.TemperatureStore;
+import server.persistence.managers.DeviceManager;
+import server.persistence.managers.DomainManager;
+import server.persistence.managers.SnapshotManager;
+import server.persistence.managers.UserManager;
+import server.security.IntegrityVerifier;
+import server.security.SecurityUtils;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static server.security.SecurityUtils.decryptDataFromFile;
+
+/**
+ * The {@link StorageEngine} that keeps the data in text files: the users
+ * in an encrypted users.txt file, the domains in a domains.txt file
+ * protected by the {@code IntegrityVerifier}, and the temperatures in the
+ * slots of a {@link TemperatureStore}. A binary snapshot of the users and domains speeds up
+ * the start of the server.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see UserManager
+ * @see DomainManager
+ * @see SnapshotManager
+ */
+public class FlatFileEngine implements StorageEngine {
+
+    /**
+     * The name of this engine
+     */
+    public static final String NAME = "files";
+
+    /**
+     * File paths
+     */
+    private static final String USERS = "server/users.txt";
+    private static final String DOMAINS = "server/domains.txt";
+    private static final String SNAPSHOT = "server/snapshot.bin";
+    private static final String PARAMS = "server/params.txt";
+    private static final String TEMPERATURES = "server/temperatures";
+
+    /**
+     * Loading parameters. In lazy mode the public keys of the users
+     * are only read when each user first authenticates
+     */
+    private static final boolean LAZY_LOADING =
+            ServerConfig.getBoolean("iot.startup.lazy", false);
+    private static final int PARALLELISM = ServerConfig.getInt("iot.startup.parallelism",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Storage managers
+     */
+    private final UserManager userManager;
+    private final DomainManager domainManager;
+    private final SnapshotManager snapshotManager;
+    private final TemperatureStore temperatureStore;
+
+    /**
+     * Verifies the integrity of domains.txt
+     */
+    private final IntegrityVerifier integrityVerifier;
+
+    /**
+     * The storage using this engine
+     */
+    private Storage storage;
+
+    /**
+     * Constructs a new {@code FlatFileEngine}
+     *
+     * @param passwordCypher password used for encryption
+     * @param writer the writer of the persistence files
+     * @param integrityVerifier the verifier of domains.txt
+     */
+    public FlatFileEngine(String passwordCypher, PersistenceWriter writer,
+                          IntegrityVerifier integrityVerifier) {
+        this.userManager = UserManager.getInstance(USERS, passwordCypher, writer);
+        this.domainManager = DomainManager.getInstance(DOMAINS, writer);
+        this.snapshotManager = SnapshotManager.getInstance(SNAPSHOT, passwordCypher);
+        this.temperatureStore = new TemperatureStore(TEMPERATURES, SecurityUtils.generateKey(passwordCypher),
+                writer.getDurability());
+        this.integrityVerifier = integrityVerifier;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Loads the users and domains from the snapshot, if it is up to date,
+     * or from the text files otherwise, creating them if they do not exist,
+     * and opens the temperature files
+     *
+     * @param storage the storage using this engine
+     */
+    @Override
+    public void open(Storage storage) {
+        this.storage = storage;
+        boolean fromSnapshot = snapshotManager.load(userManager, domainManager,
+                DeviceManager.getInstance());
+        if (fromSnapshot) {
+            ServerLogger.logInfo("Snapshot loaded successfully");
+        } else {
+            loadUsers();
+        }
+
+        File file = new File(DOMAINS);
+        if (!file.exists()) {
+            try {
+                if (file.createNewFile()) {
+                    ServerLogger.logInfo("Domains text file created successfully");
+                }
+            } catch (IOException e) {
+                ServerLogger.logErrorAndExit("Unable to create domains text file");
+            }
+        } else if (!fromSnapshot) {
+            loadDomains();
+        }
+
+        try {
+            for (String converted : temperatureStore.open()) storage.untrackFile(converted);
+        } catch (IOException e) {
+            ServerLogger.logErrorAndExit("Unable to load temperature files: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String saveUser(User user) {
+        if (!userManager.saveUser(user)) return Codes.NOK.toString();
+        storage.trackFile(USERS);
+        storage.trackFile(PARAMS);
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public User getUser(String name) {
+        return userManager.getUser(name);
+    }
+
+    @Override
+    public PublicKey getUserPubKey(User user) {
+        return userManager.getPublicKey(user);
+    }
+
+    @Override
+    public String createDomain(String name, User owner) {
+        if (!integrityVerifier.verify(DOMAINS))
+            return Codes.CRR.toString();
+        return domainManager.createDomain(name, owner, integrityVerifier);
+    }
+
+    @Override
+    public String addUserToDomain(User user, Domain domain) {
+        if (!integrityVerifier.verify(DOMAINS))
+            return Codes.CRR.toString();
+        return domainManager.addUserToDomain(user, domain, integrityVerifier);
+    }
+
+    @Override
+    public String addDeviceToDomain(Domain domain, Device device, User user) {
+        if (!integrityVerifier.verify(DOMAINS))
+            return Codes.CRR.toString();
+        return domainManager.addDeviceToDomain(domain, device, user, integrityVerifier);
+    }
+
+    @Override
+    public Domain getDomain(String name) {
+        return domainManager.getDomain(name);
+    }
+
+    @Override
+    public List<Domain> getDomains() {
+        return domainManager.getDomains();
+    }
+
+    @Override
+    public String saveTemperature(Device device, String temperature, Domain domain) {
+        if (!temperatureStore.save(domain.getName(), device.toString(), temperature))
+            return Codes.NOK.toString();
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public ByteBuffer getDomainTemperatures(Domain domain) {
+        return temperatureStore.read(domain.getName());
+    }
+
+    @Override
+    public ByteBuffer getDomainTemperatureColumns(Domain domain) {
+        return temperatureStore.readColumns(domain.getName());
+    }
+
+    /**
+     * Writes a snapshot of the users and domains, used to speed up the
+     * next start of the server. Does nothing if the text files did not
+     * change since the last snapshot.
+     */
+    @Override
+    public void checkpoint() {
+        if (snapshotManager.save(userManager, domainManager, USERS, DOMAINS)) {
+            ServerLogger.logInfo("Snapshot saved");
+        }
+    }
+
+    /**
+     * Syncs the temperatures saved since the last sync to the disk
+     */
+    @Override
+    public void sync() {
+        temperatureStore.sync();
+    }
+
+    @Override
+    public void close() {
+        checkpoint();
+        temperatureStore.close();
+    }
+
+    /**
+     * Loads the data from users.txt file. The public key files of the
+     * users are read in parallel, or, in lazy mode, only the first one
+     * is read and the others when each user authenticates.
+     */
+    private void loadUsers() {
+        File usersFile = new File(USERS);
+        if (usersFile.exists()) {
+            SecretKey usersKey = userManager.getSecretKey();
+            String usersData = decryptDataFromFile(usersFile, usersKey);
+            if (usersData != null) {
+                List<User> users = new ArrayList<>();
+                for (String user : usersData.split("\n")) {
+                    String[] data = user.split(",");
+                    users.add(new User(data[0], data[1]));
+                }
+                // A key that can't be read means the users file was badly decrypted
+                boolean keysLoaded = runParallel(() -> (LAZY_LOADING
+                        ? users.stream().limit(1) : users.parallelStream())
+                        .allMatch(user -> userManager.getPublicKey(user) != null));
+                if (!keysLoaded) {
+                    ServerLogger.logErrorAndExit("Cipher password is incorrect!" +
+                            " Shutting down...");
+                }
+                for (User user : users) userManager.loadUser(user);
+                ServerLogger.logInfo("Users text file loaded successfully");
+            } else {
+                ServerLogger.logErrorAndExit("Users text file could not be loaded");
+            }
+        }
+    }
+
+    /**
+     * Loads the data from domains.txt file.
+     * The lines of the file are parsed in parallel.
+     */
+    private void loadDomains() {
+        try (BufferedReader in = new BufferedReader(new FileReader(DOMAINS))) {
+            List<String> lines = in.lines().toList();
+            List<Domain> domains = runParallel(() -> lines.parallelStream()
+                    .map(line -> new Domain(line, storage)).toList());
+            domainManager.getDomains().addAll(domains);
+            ServerLogger.logInfo("Domains text file loaded successfully");
+        } catch (IOException | UncheckedIOException e) {
+            ServerLogger.logErrorAndExit("Unable to load domains text file");
+        }
+    }
+
+    /**
+     * Runs a task in a pool of {@link #PARALLELISM} threads
+     * and waits for its result
+     *
+     * @param task the task
+     * @return the result of the task
+     * @param <T> the type of the result
+     */
+    private static <T> T runParallel(Callable<T> task) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, PARALLELISM));
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException | ExecutionException e) {
+            ServerLogger.logErrorAndExit("Unable to load server files: " + e.getMessage());
+            return null;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+package server.persistence.engines;
+
+import common.Codes;
+import server.ServerConfig;
+import server.ServerLogger;
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+import server.persistence.PersistenceWriter;
+import server.persistence.Storage;
+import server.persistence.StorageEngine;
+import server.persistence.lsm.LsmStore;
+import server.security.SecurityUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link StorageEngine} that keeps the data in an embedded key-value
+ * store, the {@link LsmStore}. Each user, domain, member of a domain,
+ * device of a domain and temperature is a key of its own, so that each
+ * change writes a single record instead of rewriting a whole file, and
+ * each lookup reads a single block of the store. The integrity of the
+ * data is checked by the store, with the HMAC of each of its files.
+ *
+ * <p>As the users.txt file of the files engine, the users are kept
+ * encrypted with the cipher password: the key of a user is the HMAC of
+ * its name and the value its encrypted certificate path. The names of the
+ * users still appear in the domains they own or belong to, as they do in
+ * the domains.txt file.
+ *
+ * <p>The domains, with their users and devices, are also kept in memory,
+ * as they are used by every request.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class LsmEngine implements StorageEngine {
+
+    /**
+     * The name of this engine
+     */
+    public static final String NAME = "lsm";
+
+    /**
+     * Folder of the files of the store
+     */
+    private static final String FOLDER = "server/lsm";
+
+    /**
+     * Size in kilobytes of the memtable of the store, and number
+     * of segments of the store before they are merged
+     */
+    private static final long MEMTABLE_SIZE = ServerConfig.getLong("iot.lsm.memtable", 4096);
+    private static final int MAX_SEGMENTS = ServerConfig.getInt("iot.lsm.segments", 4);
+
+    /**
+     * Prefixes of the keys, followed by the parts of the key
+     * separated by {@link #SEPARATOR}
+     */
+    private static final String USER = "user";
+    private static final String DOMAIN = "domain";
+    private static final String MEMBER = "member";
+    private static final String DEVICE = "device";
+    private static final String TEMPERATURE = "temp";
+    private static final char SEPARATOR = '\0';
+
+    /**
+     * Algorithm for the HMAC of the user names
+     */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The key-value store and the key of its users
+     */
+    private final LsmStore store;
+    private final SecretKey secret;
+
+    /**
+     * Data structures
+     */
+    private final Map<String, Domain> domains;                  // domains by name
+    private final Map<String, PublicKey> publicKeys;            // loaded public keys by name
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object domainsLock;
+
+    /**
+     * Constructs a new {@code LsmEngine}
+     *
+     * @param passwordCypher password used for the HMACs of the store and to encrypt the users
+     * @param writer the writer of the persistence files
+     */
+    public LsmEngine(String passwordCypher, PersistenceWriter writer) {
+        this.secret = SecurityUtils.generateKey(passwordCypher);
+        this.store = new LsmStore(FOLDER, secret, writer, MEMTABLE_SIZE * 1024, MAX_SEGMENTS);
+        this.domains = new TreeMap<>();
+        this.publicKeys = new ConcurrentHashMap<>();
+        this.domainsLock = new Object();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Opens the store and loads the domains, with their users and devices
+     *
+     * @param storage the storage using this engine
+     */
+    @Override
+    public void open(Storage storage) {
+        try {
+            store.open();
+            for (Map.Entry<String, byte[]> domain : store.scan(key(DOMAIN)).entrySet()) {
+                String name = parts(domain.getKey())[1];
+                User owner = getUser(new String(domain.getValue(), StandardCharsets.UTF_8));
+                domains.put(name, new Domain(name, owner));
+            }
+            for (String member : store.scan(key(MEMBER)).keySet()) {
+                String[] parts = parts(member);
+                Domain domain = domains.get(parts[1]);
+                if (domain != null) domain.getUsers().add(getUser(parts[2]));
+            }
+            for (String device : store.scan(key(DEVICE)).keySet()) {
+                String[] parts = parts(device);
+                Domain domain = domains.get(parts[1]);
+                String[] deviceParts = parts[2].split(":");
+                Device newDev = new Device(deviceParts[0], Integer.parseInt(deviceParts[1]));
+                storage.saveDevice(newDev);
+                if (domain != null) domain.getDevices().add(storage.getDevice(newDev));
+            }
+            ServerLogger.logInfo("Key-value store loaded successfully");
+        } catch (IOException e) {
+            ServerLogger.logErrorAndExit("Unable to load the key-value store: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String saveUser(User user) {
+        byte[] certificate = SecurityUtils.encryptData(bytes(user.certificate()), secret);
+        if (certificate == null || !store.put(userKey(user.name()), certificate)) {
+            ServerLogger.logError("Unable to save user " + user.name());
+            return Codes.NOK.toString();
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public User getUser(String name) {
+        try {
+            byte[] encrypted = store.get(userKey(name));
+            if (encrypted == null) return null;
+            byte[] certificate = SecurityUtils.decryptData(encrypted, secret);
+            if (certificate == null) {
+                ServerLogger.logError("Unable to decrypt user " + name);
+                return null;
+            }
+            return new User(name, new String(certificate, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to read user " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public PublicKey getUserPubKey(User user) {
+        PublicKey key = publicKeys.get(user.name());
+        if (key == null) {
+            key = SecurityUtils.getUserPubKey(new File(user.certificate()));
+            if (key != null) publicKeys.put(user.name(), key);
+        }
+        return key;
+    }
+
+    @Override
+    public String createDomain(String name, User owner) {
+        if (owner == null) return Codes.NOK.toString();
+        synchronized (domainsLock) {
+            if (domains.containsKey(name)) return Codes.NOK.toString();
+            if (!store.put(key(DOMAIN, name), bytes(owner.name()))) return Codes.NOK.toString();
+            domains.put(name, new Domain(name, owner));
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public String addUserToDomain(User user, Domain domain) {
+        synchronized (domainsLock) {
+            if (domain.getUsers().contains(user)) return Codes.NOK.toString();
+            if (!store.put(key(MEMBER, domain.getName(), user.name()), new byte[0]))
+                return Codes.NOK.toString();
+            domain.getUsers().add(user);
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public String addDeviceToDomain(Domain domain, Device device, User user) {
+        if (domain == null) return Codes.NODM.toString();
+        synchronized (domainsLock) {
+            if (domain.getDevices().contains(device)) return Codes.NOK.toString();
+            if (!domain.getUsers().contains(user)) return Codes.NOPERM.toString();
+            if (!store.put(key(DEVICE, domain.getName(), device.toString()), new byte[0]))
+                return Codes.NOK.toString();
+            domain.getDevices().add(device);
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public Domain getDomain(String name) {
+        synchronized (domainsLock) {
+            return domains.get(name);
+        }
+    }
+
+    @Override
+    public List<Domain> getDomains() {
+        synchronized (domainsLock) {
+            return new ArrayList<>(domains.values());
+        }
+    }
+
+    @Override
+    public String saveTemperature(Device device, String temperature, Domain domain) {
+        if (!store.put(key(TEMPERATURE, domain.getName(), device.toString()), bytes(temperature)))
+            return Codes.NOK.toString();
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public ByteBuffer getDomainTemperatures(Domain domain) throws IOException {
+        Map<String, byte[]> temps = store.scan(key(TEMPERATURE, domain.getName()) + SEPARATOR);
+        if (temps.isEmpty()) return null;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, byte[]> temp : temps.entrySet()) {
+            sb.append(parts(temp.getKey())[2]).append(",")
+                    .append(new String(temp.getValue(), StandardCharsets.UTF_8)).append("\n");
+        }
+        return ByteBuffer.wrap(bytes(sb.toString())).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void checkpoint() {
+        // The store writes its memtable when it is full
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    /**
+     * Returns the key with the given prefix and parts
+     *
+     * @param prefix the prefix of the key
+     * @param parts the parts of the key
+     * @return the key
+     */
+    private static String key(String prefix, String... parts) {
+        return prefix + SEPARATOR + String.join(String.valueOf(SEPARATOR), parts);
+    }
+
+    /**
+     * Returns the key of a user, with the HMAC of its name
+     *
+     * @param name the name of the user
+     * @return the key
+     */
+    private String userKey(String name) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return key(USER, HexFormat.of().formatHex(mac.doFinal(bytes(name))));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String[] parts(String key) {
+        return key.split(String.valueOf(SEPARATOR));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
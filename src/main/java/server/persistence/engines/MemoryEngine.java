@@ -0,0 +1,169 @@
+package server.persistence.engines;
+
+import common.Codes;
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+import server.persistence.Storage;
+import server.persistence.StorageEngine;
+import server.security.SecurityUtils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link StorageEngine} that keeps the data only in memory, lost when
+ * the server stops. Meant for benchmarks and tests, where it shows the cost
+ * of the server without the cost of persisting its data.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public class MemoryEngine implements StorageEngine {
+
+    /**
+     * The name of this engine
+     */
+    public static final String NAME = "memory";
+
+    /**
+     * Data structures
+     */
+    private final Map<String, User> users;                              // users by name
+    private final Map<String, PublicKey> publicKeys;                    // loaded public keys by name
+    private final Map<String, Domain> domains;                          // domains by name, in creation order
+    private final Map<String, Map<String, String>> temperatures;        // temperature of each device by domain
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object domainsLock;
+
+    /**
+     * Constructs a new empty {@code MemoryEngine}
+     */
+    public MemoryEngine() {
+        users = new ConcurrentHashMap<>();
+        publicKeys = new ConcurrentHashMap<>();
+        domains = new LinkedHashMap<>();
+        temperatures = new ConcurrentHashMap<>();
+        domainsLock = new Object();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void open(Storage storage) {
+        // Nothing to load
+    }
+
+    @Override
+    public String saveUser(User user) {
+        users.putIfAbsent(user.name(), user);
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public User getUser(String name) {
+        return users.get(name);
+    }
+
+    @Override
+    public PublicKey getUserPubKey(User user) {
+        PublicKey key = publicKeys.get(user.name());
+        if (key == null) {
+            key = SecurityUtils.getUserPubKey(new File(user.certificate()));
+            if (key != null) publicKeys.put(user.name(), key);
+        }
+        return key;
+    }
+
+    @Override
+    public String createDomain(String name, User owner) {
+        if (owner == null) return Codes.NOK.toString();
+        synchronized (domainsLock) {
+            if (domains.containsKey(name)) return Codes.NOK.toString();
+            domains.put(name, new Domain(name, owner));
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public String addUserToDomain(User user, Domain domain) {
+        synchronized (domainsLock) {
+            if (domain.getUsers().contains(user)) return Codes.NOK.toString();
+            domain.getUsers().add(user);
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public String addDeviceToDomain(Domain domain, Device device, User user) {
+        if (domain == null) return Codes.NODM.toString();
+        synchronized (domainsLock) {
+            if (domain.getDevices().contains(device)) return Codes.NOK.toString();
+            if (!domain.getUsers().contains(user)) return Codes.NOPERM.toString();
+            domain.getDevices().add(device);
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public Domain getDomain(String name) {
+        synchronized (domainsLock) {
+            return domains.get(name);
+        }
+    }
+
+    @Override
+    public List<Domain> getDomains() {
+        synchronized (domainsLock) {
+            return new ArrayList<>(domains.values());
+        }
+    }
+
+    @Override
+    public String saveTemperature(Device device, String temperature, Domain domain) {
+        Map<String, String> domainTemps = temperatures.computeIfAbsent(domain.getName(),
+                k -> new LinkedHashMap<>());
+        synchronized (domainTemps) {
+            domainTemps.put(device.toString(), temperature);
+        }
+        return Codes.OK.toString();
+    }
+
+    @Override
+    public ByteBuffer getDomainTemperatures(Domain domain) {
+        Map<String, String> domainTemps = temperatures.get(domain.getName());
+        if (domainTemps == null) return null;
+        StringBuilder sb = new StringBuilder();
+        synchronized (domainTemps) {
+            for (Map.Entry<String, String> temp : domainTemps.entrySet()) {
+                sb.append(temp.getKey()).append(",").append(temp.getValue()).append("\n");
+            }
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void checkpoint() {
+        // Nothing to save
+    }
+
+    @Override
+    public void close() {
+        // Nothing to save
+    }
+
+}
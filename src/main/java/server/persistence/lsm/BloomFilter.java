@@ -0,0 +1,133 @@
+package server.persistence.lsm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A bloom filter of the keys of a {@link Segment}, so that looking up a
+ * key that is not in the segment rarely needs to read it. Uses about ten
+ * bits per key, for a false positive rate of about one percent.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+class BloomFilter {
+
+    /**
+     * Filter parameters
+     */
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    /**
+     * Data structures
+     */
+    private final long[] bits;
+    private final int hashes;
+
+    /**
+     * Constructs a new empty {@code BloomFilter}
+     *
+     * @param expected the expected number of keys
+     */
+    BloomFilter(long expected) {
+        long size = Math.max(64, Math.min(expected * BITS_PER_KEY, Integer.MAX_VALUE));
+        this.bits = new long[(int) ((size + 63) / 64)];
+        this.hashes = HASHES;
+    }
+
+    /**
+     * Constructs a {@code BloomFilter} with the given bits
+     *
+     * @param bits the bits of the filter
+     * @param hashes the number of hashes per key
+     */
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Adds a key to this filter
+     *
+     * @param key the key
+     */
+    void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks if a key may have been added to this filter
+     *
+     * @param key the key
+     * @return false if the key was not added, true if it may have been
+     */
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size in bytes of this filter once serialized
+     *
+     * @return the size in bytes
+     */
+    int serializedSize() {
+        return 8 + bits.length * 8;
+    }
+
+    /**
+     * Writes this filter to a buffer
+     *
+     * @param buffer the buffer
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(hashes);
+        buffer.putInt(bits.length);
+        for (long word : bits) buffer.putLong(word);
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo(ByteBuffer)}
+     *
+     * @param buffer the buffer
+     * @return the filter
+     */
+    static BloomFilter readFrom(ByteBuffer buffer) {
+        int hashes = buffer.getInt();
+        long[] bits = new long[buffer.getInt()];
+        for (int i = 0; i < bits.length; i++) bits[i] = buffer.getLong();
+        return new BloomFilter(bits, hashes);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the UTF-8 bytes of a key
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+}
@@ -0,0 +1,638 @@
+package server.persistence.lsm;
+
+import server.ServerLogger;
+import server.persistence.PersistenceWriter;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * An embedded key-value store, organized as a log-structured merge tree.
+ * Writes go to a sorted memtable and to its write-ahead log, appended by
+ * the {@link PersistenceWriter} together with the other writes of the
+ * server. When the memtable is full, a background thread writes it to an
+ * immutable {@link Segment}, sorted by key, and deletes its log; when
+ * there are too many segments, it merges them into one.
+ *
+ * <p>A lookup checks the memtable and then the segments, newest first,
+ * each one with a bloom filter and a sparse index, so it reads at most
+ * one block of each segment whatever the size of the store. The segments
+ * in use are listed in a manifest, replaced by the writer, so a crash
+ * leaves the old or the new list; when the store opens, the segments
+ * left by an interrupted flush or compaction are deleted and the logs are
+ * replayed. The manifest, the segments and the records of the logs carry
+ * an HMAC, the records chained to each other, so that changes to them are
+ * detected, and a segment missing from the manifest stops the store from
+ * opening instead of being deleted.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Segment
+ * @see WriteAheadLog
+ */
+public class LsmStore {
+
+    /**
+     * Value of a deleted key, in the memtables and segments
+     */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    /**
+     * File names and formats
+     */
+    private static final String MANIFEST = "MANIFEST";
+    private static final String SEGMENT = ".sst";
+    private static final String LOG = ".wal";
+    private static final String TEMP = ".tmp";
+    private static final int MANIFEST_MAGIC = 0x4C534D32;    // "LSM2"
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    /**
+     * Store parameters
+     */
+    private final Path folder;
+    private final SecretKey secret;
+    private final PersistenceWriter writer;
+    private final long memtableSize;        // in bytes, before the memtable is written to a segment
+    private final int maxSegments;          // segments before they are merged
+
+    /**
+     * The memtables and segments read by the lookups, replaced as a whole
+     *
+     * @param memtable the memtable receiving the writes
+     * @param flushing the previous memtable, being written to a segment, or null
+     * @param flushingLog the id of the log of the previous memtable
+     * @param segments the segments, newest first
+     */
+    private record State(NavigableMap<String, byte[]> memtable, NavigableMap<String, byte[]> flushing,
+                         long flushingLog, List<Segment> segments) {}
+
+    /**
+     * Data structures
+     */
+    private volatile State state;
+    private final Mac logMac;               // HMAC of the log records, used under the lock
+    private long logId;                     // id of the log of the memtable
+    private byte[] logChain;                // HMAC of the last record of the log, or its seed
+    private boolean logBroken;              // an append to the log failed, so the log has a gap
+    private long nextId;                    // next id of a log or segment
+    private long memtableBytes;
+    private long pending;                   // appends to the log of the memtable not yet complete
+    private long flushingPending;           // appends to the log of the previous memtable not yet complete
+    private boolean closed;
+    private final ExecutorService compactor;
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object lock;
+
+    /**
+     * Constructs a new {@code LsmStore}. The store must be opened before use.
+     *
+     * @param folder the folder of the files of the store
+     * @param secret the key of the HMACs
+     * @param writer the writer of the persistence files
+     * @param memtableSize the size in bytes of the memtable before it is written to a segment
+     * @param maxSegments the number of segments before they are merged
+     */
+    public LsmStore(String folder, SecretKey secret, PersistenceWriter writer,
+                    long memtableSize, int maxSegments) {
+        this.folder = Path.of(folder);
+        this.secret = secret;
+        this.writer = writer;
+        this.memtableSize = Math.max(1, memtableSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.logMac = newMac(secret);
+        this.lock = new Object();
+        this.compactor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens this store: deletes the files left by an interrupted flush or
+     * compaction, opens the segments of the manifest and writes the logs
+     * left by the last run to a new segment. A segment written after the
+     * manifest, which has an id the manifest did not give yet, was left by
+     * an interrupted flush or compaction, and a segment the manifest
+     * replaced by a compaction was left before it was deleted; any other
+     * segment not in the manifest means the manifest was changed.
+     *
+     * @throws IOException if the files could not be read or were changed
+     */
+    public void open() throws IOException {
+        Files.createDirectories(folder);
+        List<Long> segmentIds = new ArrayList<>();
+        List<Long> replaced = new ArrayList<>();
+        long minLog = 0;
+        ByteBuffer manifest = readManifest();
+        if (manifest != null) {
+            nextId = manifest.getLong();
+            minLog = manifest.getLong();
+            int count = manifest.getInt();
+            for (int i = 0; i < count; i++) segmentIds.add(manifest.getLong());
+            count = manifest.getInt();
+            for (int i = 0; i < count; i++) replaced.add(manifest.getLong());
+        } else if (hasSegments()) {
+            throw new IOException("The key-value store has segments but no manifest");
+        } else {
+            writeManifest(List.of(), 0, List.of());
+        }
+
+        long manifestNextId = nextId;
+        List<Long> logIds = new ArrayList<>();
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.equals(MANIFEST)) continue;
+                long id = parseId(name);
+                if (name.endsWith(SEGMENT) && segmentIds.contains(id)) {
+                    nextId = Math.max(nextId, id + 1);
+                } else if (name.endsWith(SEGMENT) && id >= 0 && id < manifestNextId && !replaced.contains(id)) {
+                    throw new IOException("Segment " + file + " is not in the manifest of the key-value store");
+                } else if (name.endsWith(LOG) && id >= minLog) {
+                    logIds.add(id);
+                    nextId = Math.max(nextId, id + 1);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        for (long id : segmentIds) segments.add(Segment.open(segmentPath(id), id, secret));
+        NavigableMap<String, byte[]> memtable = new ConcurrentSkipListMap<>();
+        Collections.sort(logIds);
+        Mac mac = newMac(secret);
+        for (long id : logIds) WriteAheadLog.replay(logPath(id), id, mac, memtable::put);
+        logId = nextId++;
+        logChain = WriteAheadLog.seed(logId);
+        state = new State(new ConcurrentSkipListMap<>(), memtable.isEmpty() ? null : memtable, -1, segments);
+        if (state.flushing != null) flush();
+        for (long id : logIds) Files.deleteIfExists(logPath(id));
+        ServerLogger.logInfo("Key-value store opened with " + state.segments.size() + " segments, "
+                + logIds.size() + " logs replayed");
+    }
+
+    /**
+     * Returns the value of a key
+     *
+     * @param key the key
+     * @return the value, or null if the key does not exist
+     * @throws IOException if the segments could not be read
+     */
+    public byte[] get(String key) throws IOException {
+        while (true) {
+            State current = state;
+            byte[] value = current.memtable.get(key);
+            if (value == null && current.flushing != null) value = current.flushing.get(key);
+            try {
+                for (Iterator<Segment> it = current.segments.iterator(); value == null && it.hasNext(); ) {
+                    value = it.next().get(key);
+                }
+            } catch (ClosedChannelException e) {
+                // A segment was merged meanwhile
+                if (state == current) throw e;
+                continue;
+            }
+            return value == TOMBSTONE ? null : value;
+        }
+    }
+
+    /**
+     * Returns the keys starting with the given prefix and their values
+     *
+     * @param prefix the prefix of the keys
+     * @return the keys and values, sorted by key
+     * @throws IOException if the segments could not be read
+     */
+    public SortedMap<String, byte[]> scan(String prefix) throws IOException {
+        while (true) {
+            State current = state;
+            SortedMap<String, byte[]> result = new TreeMap<>();
+            try {
+                for (int i = current.segments.size() - 1; i >= 0; i--) {
+                    current.segments.get(i).scan(prefix, result);
+                }
+            } catch (ClosedChannelException e) {
+                // A segment was merged meanwhile
+                if (state == current) throw e;
+                continue;
+            }
+            String end = prefix + Character.MAX_VALUE;
+            if (current.flushing != null) result.putAll(current.flushing.subMap(prefix, end));
+            result.putAll(current.memtable.subMap(prefix, end));
+            result.values().removeIf(value -> value == TOMBSTONE);
+            return result;
+        }
+    }
+
+    /**
+     * Sets the value of a key
+     *
+     * @param key the key
+     * @param value the value
+     * @return true when the write is durable, false if it failed
+     */
+    public boolean put(String key, byte[] value) {
+        return write(Map.of(key, value));
+    }
+
+    /**
+     * Deletes a key
+     *
+     * @param key the key
+     * @return true when the write is durable, false if it failed
+     */
+    public boolean delete(String key) {
+        return write(Map.of(key, TOMBSTONE));
+    }
+
+    /**
+     * Changes several keys at once, so that after a crash either all
+     * or none of the changes are kept. Waits until the write is durable,
+     * as the other writes of the {@code PersistenceWriter}; the changes
+     * are only applied to the memtable then, so lookups never see a
+     * change that is not in the log.
+     *
+     * @param changes the new value of each key, null to delete it
+     * @return true when the write is durable, false if it failed, in
+     *         which case the changes may or may not be kept after a crash
+     */
+    public boolean write(Map<String, byte[]> changes) {
+        Map<String, byte[]> values = new TreeMap<>();
+        changes.forEach((key, value) -> values.put(key, value == null ? TOMBSTONE : value));
+        CompletableFuture<Boolean> done;
+        synchronized (lock) {
+            // Wait for the previous memtable if the current one is also full
+            while (!closed && memtableBytes >= memtableSize && state.flushing != null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (closed) {
+                ServerLogger.logError("Write after the key-value store was closed");
+                return false;
+            }
+            NavigableMap<String, byte[]> memtable = state.memtable;
+            pending++;
+            byte[] record = WriteAheadLog.encode(values, logChain, logMac);
+            logChain = WriteAheadLog.chain(record);
+            // Attached under the lock, so the changes are applied in the order of the log
+            done = writer.append(logPath(logId).toString(), record)
+                    .handle((written, e) -> apply(memtable, values, Boolean.TRUE.equals(written)));
+            for (Map.Entry<String, byte[]> value : values.entrySet()) {
+                memtableBytes += 32 + value.getKey().length() * 2L + value.getValue().length;
+            }
+            rotateIfNeeded();
+        }
+        return done.join();
+    }
+
+    /**
+     * Applies changes to the memtable whose log they were appended to,
+     * once the append is complete
+     *
+     * @param memtable the memtable
+     * @param values the new value of each key
+     * @param written true if the append is durable, false if it failed
+     * @return true if the changes were applied, false otherwise
+     */
+    private boolean apply(NavigableMap<String, byte[]> memtable, Map<String, byte[]> values, boolean written) {
+        synchronized (lock) {
+            if (written) memtable.putAll(values);
+            if (memtable == state.memtable) {
+                pending--;
+                // The next records are chained to this one, so the log cannot be replayed
+                if (!written) {
+                    logBroken = true;
+                    rotateIfNeeded();
+                }
+            } else {
+                flushingPending--;
+                lock.notifyAll();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes the memtable to a segment, waits for the background tasks
+     * and closes this store. Later writes fail.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (state.flushing != null) flush();
+            if (!state.memtable.isEmpty()) {
+                synchronized (lock) {
+                    rotate();
+                }
+                flush();
+            }
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to write the memtable of the key-value store: " + e.getMessage());
+        }
+        for (Segment segment : state.segments) segment.close();
+    }
+
+    /**
+     * Starts flushing the memtable in the background if it is full, or if
+     * an append to its log failed, so that the log is no longer needed.
+     * Must be called with the lock held.
+     */
+    private void rotateIfNeeded() {
+        if (!closed && state.flushing == null && (memtableBytes >= memtableSize || logBroken)) {
+            rotate();
+            compactor.execute(this::runFlush);
+        }
+    }
+
+    /**
+     * Makes the memtable the one being flushed and starts a new memtable
+     * with a new log. Must be called with the lock held.
+     */
+    private void rotate() {
+        state = new State(new ConcurrentSkipListMap<>(), state.memtable, logId, state.segments);
+        logId = nextId++;
+        logChain = WriteAheadLog.seed(logId);
+        logBroken = false;
+        memtableBytes = 0;
+        flushingPending = pending;
+        pending = 0;
+    }
+
+    /**
+     * Writes the memtable being flushed to a segment in the background,
+     * and merges the segments if there are too many
+     */
+    private void runFlush() {
+        try {
+            flush();
+            if (state.segments.size() >= maxSegments) compact();
+        } catch (IOException | UncheckedIOException e) {
+            ServerLogger.logError("Unable to flush the key-value store: " + e.getMessage());
+        }
+        synchronized (lock) {
+            rotateIfNeeded();
+        }
+    }
+
+    /**
+     * Writes the memtable being flushed to a new segment, lists it in the
+     * manifest and deletes the log of the memtable. Waits first for the
+     * appends to the log of the memtable still being written.
+     *
+     * @throws IOException if the segment or the manifest could not be written
+     */
+    private void flush() throws IOException {
+        State current;
+        long id;
+        synchronized (lock) {
+            while (flushingPending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing the memtable");
+                }
+            }
+            current = state;
+            id = nextId++;
+        }
+        Segment segment = Segment.write(segmentPath(id), id, current.flushing.entrySet().iterator(),
+                current.flushing.size(), false, secret);
+        List<Segment> segments = new ArrayList<>();
+        segments.add(segment);
+        segments.addAll(current.segments);
+        long minLog;
+        synchronized (lock) {
+            minLog = logId;
+        }
+        writeManifest(segments, minLog, List.of());
+        synchronized (lock) {
+            state = new State(state.memtable, null, -1, segments);
+            lock.notifyAll();
+        }
+        if (current.flushingLog >= 0) {
+            // The writer may still be appending the last writes of the log
+            writer.flush(logPath(current.flushingLog).toString()).join();
+            Files.deleteIfExists(logPath(current.flushingLog));
+        }
+    }
+
+    /**
+     * Merges all the segments into one, leaving out the deleted keys
+     *
+     * @throws IOException if the segment or the manifest could not be written
+     */
+    private void compact() throws IOException {
+        List<Segment> old = state.segments;
+        long id;
+        synchronized (lock) {
+            id = nextId++;
+        }
+        long records = old.stream().mapToLong(Segment::getRecords).sum();
+        Segment merged = Segment.write(segmentPath(id), id, merge(old), records, true, secret);
+        long minLog;
+        synchronized (lock) {
+            minLog = state.flushing != null ? state.flushingLog : logId;
+        }
+        writeManifest(List.of(merged), minLog, old.stream().map(Segment::getId).toList());
+        synchronized (lock) {
+            state = new State(state.memtable, state.flushing, state.flushingLog, List.of(merged));
+        }
+        for (Segment segment : old) segment.delete();
+        // Only the manifest of this compaction allows the old segments to be found
+        syncFolder();
+        ServerLogger.logInfo("Merged " + old.size() + " segments of the key-value store into one with "
+                + merged.getRecords() + " keys");
+    }
+
+    /**
+     * Returns an iterator over the records of several segments, sorted by
+     * key, with the record of the newest segment when a key is repeated
+     *
+     * @param segments the segments, newest first
+     * @return the iterator
+     */
+    private static Iterator<Map.Entry<String, byte[]>> merge(List<Segment> segments) {
+        record Head(Map.Entry<String, byte[]> entry, int age, Iterator<Map.Entry<String, byte[]>> rest) {}
+        PriorityQueue<Head> heads = new PriorityQueue<>(Comparator
+                .comparing((Head head) -> head.entry.getKey()).thenComparingInt(Head::age));
+        for (int i = 0; i < segments.size(); i++) {
+            Iterator<Map.Entry<String, byte[]>> it = segments.get(i).iterator();
+            if (it.hasNext()) heads.add(new Head(it.next(), i, it));
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (heads.isEmpty()) throw new NoSuchElementException();
+                Map.Entry<String, byte[]> newest = heads.peek().entry;
+                while (!heads.isEmpty() && heads.peek().entry.getKey().equals(newest.getKey())) {
+                    Head head = heads.poll();
+                    if (head.rest.hasNext()) heads.add(new Head(head.rest.next(), head.age, head.rest));
+                }
+                return newest;
+            }
+        };
+    }
+
+    /**
+     * Replaces the manifest with the given segments
+     *
+     * @param segments the segments, newest first
+     * @param minLog the id of the oldest log still needed
+     * @param replaced the ids of the segments replaced by a compaction, which may not be deleted yet
+     * @throws IOException if the manifest could not be written
+     */
+    private void writeManifest(List<Segment> segments, long minLog, List<Long> replaced) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(28 + (segments.size() + replaced.size()) * 8 + MAC_SIZE);
+        content.putInt(MANIFEST_MAGIC);
+        synchronized (lock) {
+            content.putLong(nextId);
+        }
+        content.putLong(minLog).putInt(segments.size());
+        for (Segment segment : segments) content.putLong(segment.getId());
+        content.putInt(replaced.size());
+        for (long id : replaced) content.putLong(id);
+        Mac mac = newMac(secret);
+        mac.update(content.array(), 0, content.position());
+        content.put(mac.doFinal());
+        if (!writer.write(folder.resolve(MANIFEST).toString(), content.array()).join())
+            throw new IOException("Unable to write the manifest of the key-value store");
+    }
+
+    /**
+     * Reads the manifest, checking its HMAC
+     *
+     * @return the content of the manifest after its magic number, or null if there is none
+     * @throws IOException if the manifest could not be read or is corrupted
+     */
+    private ByteBuffer readManifest() throws IOException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(folder.resolve(MANIFEST));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer manifest = ByteBuffer.wrap(content);
+        if (content.length < 28 + MAC_SIZE || manifest.getInt() != MANIFEST_MAGIC)
+            throw new IOException("The manifest of the key-value store is corrupted");
+        Mac mac = newMac(secret);
+        mac.update(content, 0, content.length - MAC_SIZE);
+        byte[] expected = Arrays.copyOfRange(content, content.length - MAC_SIZE, content.length);
+        if (!MessageDigest.isEqual(expected, mac.doFinal()))
+            throw new IOException("The manifest of the key-value store is corrupted");
+        return manifest;
+    }
+
+    /**
+     * Tells if the folder of this store has any segment
+     *
+     * @return true if there is a segment, false otherwise
+     * @throws IOException if the folder could not be read
+     */
+    private boolean hasSegments() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.anyMatch(file -> parseId(file.getFileName().toString()) >= 0
+                    && file.getFileName().toString().endsWith(SEGMENT));
+        }
+    }
+
+    /**
+     * Syncs the folder of this store, so that the files deleted in it stay deleted
+     */
+    private void syncFolder() {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported by every system
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return folder.resolve(String.format("%08d", id) + SEGMENT);
+    }
+
+    private Path logPath(long id) {
+        return folder.resolve(String.format("%08d", id) + LOG);
+    }
+
+    /**
+     * Returns the id in the name of a segment or log, or -1 for other files
+     */
+    private static long parseId(String name) {
+        if (name.endsWith(TEMP) || !(name.endsWith(SEGMENT) || name.endsWith(LOG))) return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.lastIndexOf('.')));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Mac newMac(SecretKey secret) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
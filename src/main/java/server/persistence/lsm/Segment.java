@@ -0,0 +1,408 @@
+package server.persistence.lsm;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+/**
+ * An immutable file of the {@link LsmStore}, with records sorted by key.
+ * Every {@value #INDEX_INTERVAL}th key is kept in memory with its offset,
+ * so that looking up a key reads a single block of records, and a
+ * {@link BloomFilter} avoids reading the file for most absent keys.
+ *
+ * <p>File format: the records {@code [int key length][key][int value
+ * length, -1 if deleted][value]}, then the index, the bloom filter, a
+ * footer with their offsets and the HMAC of everything before it, checked
+ * when the segment is opened.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+class Segment {
+
+    /**
+     * Segment format
+     */
+    private static final int MAGIC = 0x4C534D54;             // "LSMT"
+    private static final int INDEX_INTERVAL = 16;
+    private static final int FOOTER_SIZE = 28;
+    private static final int MAC_SIZE = 32;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Segment data
+     */
+    private final long id;
+    private final Path path;
+    private final FileChannel channel;
+    private final String[] indexKeys;       // first key of each block
+    private final long[] indexOffsets;      // offset of each block
+    private final long dataEnd;
+    private final BloomFilter bloom;
+    private final long records;
+
+    /**
+     * Constructs a new {@code Segment}
+     */
+    private Segment(long id, Path path, FileChannel channel, String[] indexKeys,
+                    long[] indexOffsets, long dataEnd, BloomFilter bloom, long records) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.dataEnd = dataEnd;
+        this.bloom = bloom;
+        this.records = records;
+    }
+
+    /**
+     * Writes a new segment with the given records, sorted by key, and opens it.
+     * The segment is written to a temporary file, synced and then renamed.
+     *
+     * @param path the path of the segment
+     * @param id the id of the segment
+     * @param entries the records, sorted by key
+     * @param expected the expected number of records
+     * @param dropDeleted true to leave out the deleted keys
+     * @param secret the key of the HMAC
+     * @return the segment
+     * @throws IOException if the segment could not be written
+     */
+    static Segment write(Path path, long id, Iterator<Map.Entry<String, byte[]>> entries,
+                         long expected, boolean dropDeleted, SecretKey secret) throws IOException {
+        Path temp = Path.of(path + ".tmp");
+        Mac mac = newMac(secret);
+        BloomFilter bloom = new BloomFilter(expected);
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        long records = 0;
+        long indexOffset;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (entries.hasNext()) {
+                Map.Entry<String, byte[]> entry = entries.next();
+                byte[] value = entry.getValue();
+                boolean deleted = value == LsmStore.TOMBSTONE;
+                if (deleted && dropDeleted) continue;
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                buffer = reserve(out, buffer, 8 + key.length + (deleted ? 0 : value.length), mac);
+                if (records % INDEX_INTERVAL == 0) {
+                    indexKeys.add(entry.getKey());
+                    indexOffsets.add(out.position() + buffer.position());
+                }
+                buffer.putInt(key.length).put(key);
+                if (deleted) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(value.length).put(value);
+                }
+                bloom.add(entry.getKey());
+                records++;
+            }
+            flush(out, buffer.flip(), mac);
+            indexOffset = out.position();
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                buffer = reserve(out, buffer, 12 + key.length, mac);
+                buffer.putInt(key.length).put(key).putLong(indexOffsets.get(i));
+            }
+            flush(out, buffer.flip(), mac);
+            long bloomOffset = out.position();
+            ByteBuffer tail = ByteBuffer.allocate(bloom.serializedSize() + FOOTER_SIZE);
+            bloom.writeTo(tail);
+            tail.putLong(indexOffset).putLong(bloomOffset).putLong(records).putInt(MAGIC);
+            flush(out, tail.flip(), mac);
+            out.write(ByteBuffer.wrap(mac.doFinal()));
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new Segment(id, path, channel, indexKeys.toArray(new String[0]),
+                indexOffsets.stream().mapToLong(Long::longValue).toArray(), indexOffset, bloom, records);
+    }
+
+    /**
+     * Opens an existing segment, checking its HMAC
+     *
+     * @param path the path of the segment
+     * @param id the id of the segment
+     * @param secret the key of the HMAC
+     * @return the segment
+     * @throws IOException if the segment could not be read or is corrupted
+     */
+    static Segment open(Path path, long id, SecretKey secret) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_SIZE + MAC_SIZE) throw new IOException("Segment " + path + " is truncated");
+            Mac mac = newMac(secret);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            long end = size - MAC_SIZE;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("Segment " + path + " is truncated");
+                buffer.flip();
+                mac.update(buffer);
+                position += read;
+            }
+            ByteBuffer expected = ByteBuffer.allocate(MAC_SIZE);
+            channel.read(expected, end);
+            if (!MessageDigest.isEqual(expected.array(), mac.doFinal()))
+                throw new IOException("Segment " + path + " is corrupted");
+
+            ByteBuffer footer = read(channel, end - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long records = footer.getLong();
+            if (footer.getInt() != MAGIC) throw new IOException("Segment " + path + " has a bad format");
+
+            ByteBuffer index = read(channel, indexOffset, (int) (bloomOffset - indexOffset));
+            List<String> indexKeys = new ArrayList<>();
+            List<Long> indexOffsets = new ArrayList<>();
+            while (index.hasRemaining()) {
+                byte[] key = new byte[index.getInt()];
+                index.get(key);
+                indexKeys.add(new String(key, StandardCharsets.UTF_8));
+                indexOffsets.add(index.getLong());
+            }
+            BloomFilter bloom = BloomFilter.readFrom(
+                    read(channel, bloomOffset, (int) (end - FOOTER_SIZE - bloomOffset)));
+            return new Segment(id, path, channel, indexKeys.toArray(new String[0]),
+                    indexOffsets.stream().mapToLong(Long::longValue).toArray(), indexOffset, bloom, records);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException io ? io : new IOException("Segment " + path + " has a bad format");
+        }
+    }
+
+    /**
+     * Returns the id of this segment
+     *
+     * @return the id
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the path of this segment
+     *
+     * @return the path
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the number of records of this segment
+     *
+     * @return the number of records
+     */
+    long getRecords() {
+        return records;
+    }
+
+    /**
+     * Looks up a key in this segment
+     *
+     * @param key the key
+     * @return the value, {@link LsmStore#TOMBSTONE} if the key
+     *         was deleted, or null if it is not in this segment
+     * @throws IOException if the segment could not be read
+     */
+    byte[] get(String key) throws IOException {
+        if (!bloom.mightContain(key)) return null;
+        int block = Arrays.binarySearch(indexKeys, key);
+        if (block < 0) block = -block - 2;
+        if (block < 0) return null;
+        ByteBuffer records = readBlock(block);
+        while (records.hasRemaining()) {
+            String current = readKey(records);
+            int compare = current.compareTo(key);
+            if (compare == 0) return readValue(records);
+            if (compare > 0) return null;
+            skipValue(records);
+        }
+        return null;
+    }
+
+    /**
+     * Adds the records of this segment whose key starts with the given
+     * prefix to a map, deleted keys with {@link LsmStore#TOMBSTONE}
+     *
+     * @param prefix the prefix of the keys
+     * @param result the map
+     * @throws IOException if the segment could not be read
+     */
+    void scan(String prefix, SortedMap<String, byte[]> result) throws IOException {
+        int block = Arrays.binarySearch(indexKeys, prefix);
+        if (block < 0) block = Math.max(0, -block - 2);
+        for (; block < indexKeys.length; block++) {
+            ByteBuffer records = readBlock(block);
+            while (records.hasRemaining()) {
+                String key = readKey(records);
+                if (key.startsWith(prefix)) {
+                    result.put(key, readValue(records));
+                } else if (key.compareTo(prefix) > 0) {
+                    return;
+                } else {
+                    skipValue(records);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over all the records of this segment, sorted
+     * by key, reading one block at a time
+     *
+     * @return the iterator
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator() {
+        return new Iterator<>() {
+            private int block = 0;
+            private ByteBuffer records = ByteBuffer.allocate(0);
+
+            @Override
+            public boolean hasNext() {
+                while (!records.hasRemaining() && block < indexKeys.length) {
+                    try {
+                        records = readBlock(block++);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return records.hasRemaining();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String key = readKey(records);
+                return new AbstractMap.SimpleImmutableEntry<>(key, readValue(records));
+            }
+        };
+    }
+
+    /**
+     * Closes this segment
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to read
+        }
+    }
+
+    /**
+     * Closes and deletes this segment
+     *
+     * @throws IOException if the file could not be deleted
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Reads a block of records
+     *
+     * @param block the number of the block
+     * @return a buffer with the records of the block
+     * @throws IOException if the block could not be read
+     */
+    private ByteBuffer readBlock(int block) throws IOException {
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        return read(channel, start, (int) (end - start));
+    }
+
+    /**
+     * Reads part of a file
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of segment");
+        }
+        return buffer.flip();
+    }
+
+    private static String readKey(ByteBuffer records) {
+        byte[] key = new byte[records.getInt()];
+        records.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readValue(ByteBuffer records) {
+        int length = records.getInt();
+        if (length < 0) return LsmStore.TOMBSTONE;
+        byte[] value = new byte[length];
+        records.get(value);
+        return value;
+    }
+
+    private static void skipValue(ByteBuffer records) {
+        int length = records.getInt();
+        if (length > 0) records.position(records.position() + length);
+    }
+
+    /**
+     * Makes room for a record in the write buffer, writing the buffer
+     * to the file if needed
+     *
+     * @return the buffer, larger than before if the record did not fit
+     */
+    private static ByteBuffer reserve(FileChannel out, ByteBuffer buffer, int size, Mac mac) throws IOException {
+        if (buffer.remaining() >= size) return buffer;
+        flush(out, buffer.flip(), mac);
+        return buffer.capacity() >= size ? buffer.clear() : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Writes the content of a flipped buffer to the file, adding it
+     * to the HMAC, and clears the buffer
+     */
+    private static void flush(FileChannel out, ByteBuffer buffer, Mac mac) throws IOException {
+        mac.update(buffer.duplicate());
+        while (buffer.hasRemaining()) out.write(buffer);
+        buffer.clear();
+    }
+
+    private static Mac newMac(SecretKey secret) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+}
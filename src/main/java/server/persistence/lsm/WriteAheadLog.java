@@ -0,0 +1,161 @@
+package server.persistence.lsm;
+
+import server.ServerLogger;
+
+import javax.crypto.Mac;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The format of the write-ahead logs of the {@link LsmStore}. Each write
+ * to the store is appended to the log of its memtable as one record
+ * {@code [int length][changes][HMAC]}, so that the memtable can be rebuilt
+ * when the server starts. The HMAC of a record also covers the HMAC of the
+ * previous record, or the id of the log for the first one, so records
+ * cannot be removed, reordered or moved to another log. A record cut by a
+ * crash can only be the last one of a log, possibly followed by zeros if
+ * the system extended the file before writing it, and is dropped; any
+ * other record that does not match its HMAC means the log was changed.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+final class WriteAheadLog {
+
+    /**
+     * Size of the HMAC of each record
+     */
+    private static final int MAC_SIZE = 32;
+
+    private WriteAheadLog() {}
+
+    /**
+     * Returns the value the HMAC of the first record of a log is chained to
+     *
+     * @param id the id of the log
+     * @return the value
+     */
+    static byte[] seed(long id) {
+        return ByteBuffer.allocate(8).putLong(id).array();
+    }
+
+    /**
+     * Returns the HMAC of a record, which the next record is chained to
+     *
+     * @param record the record
+     * @return the HMAC of the record
+     */
+    static byte[] chain(byte[] record) {
+        return Arrays.copyOfRange(record, record.length - MAC_SIZE, record.length);
+    }
+
+    /**
+     * Encodes the changes of a write as a log record
+     *
+     * @param changes the new value of each key, {@link LsmStore#TOMBSTONE} to delete it
+     * @param previous the HMAC of the previous record, or the seed of the log
+     * @param mac the HMAC of the records
+     * @return the record
+     */
+    static byte[] encode(Map<String, byte[]> changes, byte[] previous, Mac mac) {
+        int size = 4;
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            size += 8 + change.getKey().length() * 3 + change.getValue().length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putInt(changes.size());
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            byte[] key = change.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = change.getValue();
+            payload.putInt(key.length).put(key);
+            if (value == LsmStore.TOMBSTONE) {
+                payload.putInt(-1);
+            } else {
+                payload.putInt(value.length).put(value);
+            }
+        }
+        payload.flip();
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.remaining() + MAC_SIZE);
+        record.putInt(payload.remaining());
+        mac.update(previous);
+        mac.update(payload.duplicate());
+        record.put(payload).put(mac.doFinal());
+        return record.array();
+    }
+
+    /**
+     * Applies the records of a log, dropping a last record cut by a crash
+     *
+     * @param path the path of the log
+     * @param id the id of the log
+     * @param mac the HMAC of the records
+     * @param apply receives each key and its new value, {@link LsmStore#TOMBSTONE} if deleted
+     * @throws IOException if the log could not be read or was changed
+     */
+    static void replay(Path path, long id, Mac mac, BiConsumer<String, byte[]> apply) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+            while (log.hasRemaining() && channel.read(log) >= 0) {
+                // Read the whole log
+            }
+            log.flip();
+            long valid = 0;
+            byte[] previous = seed(id);
+            while (log.remaining() >= 4) {
+                int length = log.getInt();
+                if (length < 0 || log.remaining() < length + MAC_SIZE) break;
+                ByteBuffer payload = log.slice(log.position(), length);
+                byte[] expected = new byte[MAC_SIZE];
+                log.position(log.position() + length).get(expected);
+                mac.update(previous);
+                mac.update(payload.duplicate());
+                if (!MessageDigest.isEqual(expected, mac.doFinal())) {
+                    if (!isZero(log)) throw new IOException("Log " + path + " is corrupted");
+                    break;
+                }
+                previous = expected;
+                int count = payload.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[payload.getInt()];
+                    payload.get(key);
+                    int size = payload.getInt();
+                    byte[] value = LsmStore.TOMBSTONE;
+                    if (size >= 0) {
+                        value = new byte[size];
+                        payload.get(value);
+                    }
+                    apply.accept(new String(key, StandardCharsets.UTF_8), value);
+                }
+                valid = log.position();
+            }
+            if (valid < channel.size()) {
+                ServerLogger.logWarning("Dropped the last record of " + path + ", cut by a crash");
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Tells if the remaining bytes of a buffer are all zero
+     *
+     * @param buffer the buffer, left unchanged
+     * @return true if every remaining byte is zero, false otherwise
+     */
+    private static boolean isZero(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+}
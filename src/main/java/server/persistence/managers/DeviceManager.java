@@ -2,9 +2,9 @@ package server.persistence.managers;
 
 import server.components.*;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Singleton class that manages the devices of the {@code IoTServer}
@@ -31,13 +31,15 @@ public class DeviceManager {
     /**
      * Data structures
      */
-    private final HashMap<Device, List<Domain>> devices;
+    private final Map<Device, List<Domain>> devices;
+    private final Map<Device, Device> instances;    // the saved instance of each device
 
     /**
      * Constructs a new {@code DeviceManager}
      */
     private DeviceManager() {
-        devices = new HashMap<>();
+        devices = new ConcurrentHashMap<>();
+        instances = new ConcurrentHashMap<>();
         devicesLock = new Object();
     }
 
@@ -56,7 +58,7 @@ public class DeviceManager {
 
     /**
      * Saves the {@code Device} as the key, and a list of domains as the value,
-     * to the map {@link #devices}.
+     * to the map {@link #devices}, if the {@code Device} was not saved before.
      *
      * @param device the {@code Device} to be saved
      * @param domains a list of {@code Domains} where the {@code Device} is registered
@@ -64,7 +66,9 @@ public class DeviceManager {
      */
     public void saveDevice(Device device, List<Domain> domains) {
         synchronized (devicesLock) {
-            devices.put(device, domains);
+            if (instances.putIfAbsent(device, device) == null) {
+                devices.put(device, domains);
+            }
         }
     }
 
@@ -77,13 +81,11 @@ public class DeviceManager {
      * @return true, if the user has permission, false otherwise
      */
     public boolean hasPerm(User user, Device device) {
-        for (Map.Entry<Device, List<Domain>> entry : devices.entrySet()) {
-            if (entry.getKey().equals(device)) {
-                for (Domain domain : entry.getValue()) {
-                    if (domain.getUsers().contains(user))
-                        return true;
-                }
-            }
+        List<Domain> domains = devices.get(device);
+        if (domains == null) return false;
+        for (Domain domain : domains) {
+            if (domain.getUsers().contains(user))
+                return true;
         }
         return false;
     }
@@ -118,11 +120,7 @@ public class DeviceManager {
      * @return a {@code Device}, if the key matched, null otherwise
      */
     public Device getDevice(Device device) {
-        for (Map.Entry<Device, List<Domain>> entry : devices.entrySet()) {
-            if (entry.getKey().equals(device))
-                return entry.getKey();
-        }
-        return null;
+        return instances.get(device);
     }
 
     /**
@@ -130,7 +128,7 @@ public class DeviceManager {
      *
      * @return the map {@link #devices}.
      */
-    public HashMap<Device, List<Domain>> getDevices() {
+    public Map<Device, List<Domain>> getDevices() {
         return devices;
     }
 
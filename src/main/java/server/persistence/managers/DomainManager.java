@@ -2,16 +2,13 @@ package server.persistence.managers;
 
 import common.Codes;
 import server.components.*;
+import server.persistence.PersistenceWriter;
 import server.security.IntegrityVerifier;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Singleton class that manages the domains of the {@code IoTServer}
@@ -30,27 +27,29 @@ public class DomainManager {
     private static DomainManager instance = null;
 
     /**
-     * {@code Object} locks to control concurrency
+     * {@code Object} lock to control concurrency
      */
     private final Object domainsLock;
-    private final Object tempsLock;
 
     /**
      * Data structures
      */
     private final String domainsFile;
     private final List<Domain> domains;
+    private final PersistenceWriter writer;
+    private int pendingWrites;      // changes to the list whose write is not yet complete
 
     /**
      * Constructs a new {@code DomainManager}
      *
      * @param filePath the path of the file to be managed
+     * @param writer the writer of the persistence files
      */
-    private DomainManager(String filePath) {
+    private DomainManager(String filePath, PersistenceWriter writer) {
         domainsFile = filePath;
         domains = new ArrayList<>();
         domainsLock = new Object();
-        tempsLock = new Object();
+        this.writer = writer;
     }
 
     /**
@@ -58,11 +57,12 @@ public class DomainManager {
      * it if the instance is still null
      *
      * @param filePath the path of the file to be managed
+     * @param writer the writer of the persistence files
      * @return the instance of {@code DomainManager}
      */
-    public static DomainManager getInstance(String filePath) {
+    public static DomainManager getInstance(String filePath, PersistenceWriter writer) {
         if (instance == null) {
-            instance = new DomainManager(filePath);
+            instance = new DomainManager(filePath, writer);
         }
         return instance;
     }
@@ -83,49 +83,75 @@ public class DomainManager {
     public String createDomain(String name, User owner, IntegrityVerifier verifier) {
         if (owner == null) return Codes.NOK.toString();
         Domain domain = new Domain(name, owner);
-        try {
-            synchronized (domainsLock) {
-                if (getDomain(name) != null) return Codes.NOK.toString();
-                BufferedWriter writer = new BufferedWriter(new FileWriter(domainsFile, true));
-                writer.write(domain + "\n");
-                writer.close();
-                domains.add(domain);
-                verifier.update();
-            }
-            return Codes.OK.toString();
-        } catch (IOException e) {
-            return Codes.NOK.toString();
+        CompletableFuture<Boolean> written;
+        synchronized (domainsLock) {
+            if (getDomain(name) != null) return Codes.NOK.toString();
+            domains.add(domain);
+            written = verifier.update(name, domain.toString(), () -> appendDomainToFile(domain));
+            pendingWrites++;
+        }
+        // Waits for the write outside the locks, so changes of several domains share a commit
+        boolean success = written.join();
+        synchronized (domainsLock) {
+            pendingWrites--;
+            if (success) return Codes.OK.toString();
+            domains.remove(domain);
+            rewriteFile(verifier);
         }
+        return Codes.NOK.toString();
+    }
+
+    /**
+     * Appends the {@code Domain} given to the domains.txt
+     * file located in the server-files folder.
+     *
+     * @param domain the {@code Domain} to write in file
+     * @return a future completed with true if the method concluded
+     *         with success, false otherwise
+     *
+     * @requires {@code domain != null}
+     */
+    private CompletableFuture<Boolean> appendDomainToFile(Domain domain) {
+        return writer.append(domainsFile, (domain + "\n").getBytes(StandardCharsets.UTF_8));
     }
 
     /**
      * Updates the domains.txt file located in the server-files
-     * folder, with the {@code Domain} given. If it already exists
-     * in the file, replaces it.
+     * folder, with the {@code Domain} given. The file is written
+     * from the list {@link #domains}, which keeps the order of the
+     * file, so it does not have to be read first.
      *
      * @param domain the {@code Domain} to write in file
-     * @return true if the method concluded with success, false otherwise
+     * @return a future completed with true if the method concluded
+     *         with success, false otherwise
      *
      * @requires {@code domain != null}
      */
-    private boolean updateDomainInFile(Domain domain) {
-        try (BufferedReader in = new BufferedReader(new FileReader(domainsFile))) {
-            StringBuilder file = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null) {
-                String[] temp = line.split(",");
-                if (temp[0].equals(domain.getName()))
-                    file.append(domain).append("\n");
-                else
-                    file.append(line).append("\n");
-            }
-            BufferedWriter out = new BufferedWriter(new FileWriter(domainsFile, false));
-            out.write(file.toString());
-            out.close();
-        } catch (IOException e) {
-            return false;
+    private CompletableFuture<Boolean> updateDomainInFile(Domain domain) {
+        StringBuilder file = new StringBuilder();
+        for (Domain d : domains) {
+            file.append(d == domain ? domain : d).append("\n");
+        }
+        return writer.write(domainsFile, file.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Rewrites the domains.txt file located in the server-files folder
+     * from the list {@link #domains}, after a change that could not be
+     * written was undone, so that the file and its HMAC match the list
+     * again. Must be called holding {@link #domainsLock}.
+     *
+     * @param verifier the file {@code IntegrityVerifier}
+     */
+    private void rewriteFile(IntegrityVerifier verifier) {
+        List<String> records = new ArrayList<>();
+        StringBuilder file = new StringBuilder();
+        for (Domain d : domains) {
+            records.add(d.toString());
+            file.append(d).append("\n");
         }
-        return true;
+        verifier.rewrite(records, () -> writer.write(domainsFile,
+                file.toString().getBytes(StandardCharsets.UTF_8)));
     }
 
     /**
@@ -143,16 +169,21 @@ public class DomainManager {
     public String addUserToDomain(User userToAdd, Domain domain, IntegrityVerifier verifier) {
         List<User> domainUsers = domain.getUsers();
         if (domainUsers.contains(userToAdd)) return Codes.NOK.toString();
+        CompletableFuture<Boolean> written;
         synchronized (domainsLock) {
+            if (domainUsers.contains(userToAdd)) return Codes.NOK.toString();
             domainUsers.add(userToAdd);
-            String res = updateDomainInFile(domain)
-                    ? Codes.OK.toString() : Codes.NOK.toString();
-            if (res.equals(Codes.NOK.toString())) {
-                domainUsers.remove(userToAdd);
-            }
-            verifier.update();
-            return res;
+            written = verifier.update(domain.getName(), domain.toString(), () -> updateDomainInFile(domain));
+            pendingWrites++;
         }
+        boolean success = written.join();
+        synchronized (domainsLock) {
+            pendingWrites--;
+            if (success) return Codes.OK.toString();
+            domainUsers.remove(userToAdd);
+            rewriteFile(verifier);
+        }
+        return Codes.NOK.toString();
     }
 
     /**
@@ -174,74 +205,21 @@ public class DomainManager {
         if(domain == null) return Codes.NODM.toString();
         if(domain.getDevices().contains(device)) return Codes.NOK.toString();
         if (!domain.getUsers().contains(user)) return Codes.NOPERM.toString();
+        CompletableFuture<Boolean> written;
         synchronized (domainsLock) {
+            if (domain.getDevices().contains(device)) return Codes.NOK.toString();
             domain.getDevices().add(device);
-            String res = updateDomainInFile(domain) ? Codes.OK.toString() : Codes.NOK.toString();
-            if (res.equals(Codes.NOK.toString())) {
-                domain.getDevices().remove(device);
-            }
-            verifier.update();
-            return res;
+            written = verifier.update(domain.getName(), domain.toString(), () -> updateDomainInFile(domain));
+            pendingWrites++;
         }
-    }
-
-    /**
-     * Saves the last temperature sent by the given {@code Device}. This temperature
-     * gets saved in every domain the {@code Device} is registered. If the {@code Device}
-     * has sent a temperature before, it will be replaced by the new one.
-     * Returns "OK" if the method concluded with success, "NOK" otherwise
-     *
-     * @param device the {@code Device}
-     * @param temp the temperature to be saved
-     * @param domain the domains where the {@code Device} is
-     * @return status code
-     */
-    public String saveTemperature(Device device, String temp, Domain domain) {
-        String path = "server/temperatures/" + domain.getName() + ".txt";
-        try {
-            StringBuilder sb = new StringBuilder();
-            boolean replaced = false;
-            if (new File(path).exists()) {
-                BufferedReader br = new BufferedReader(new FileReader(path));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    if(line.split(",")[0].equals(device.toString())) {
-                        sb.append(device).append(",").append(temp).append("\n");
-                        replaced = true;
-                    } else {
-                        sb.append(line).append("\n");
-                    }
-                }
-                br.close();
-            }
-            if (!replaced)
-                sb.append(device).append(",").append(temp).append("\n");
-            synchronized (tempsLock) {
-                BufferedWriter bw = new BufferedWriter(new FileWriter(path));
-                bw.write(sb.toString());
-                bw.close();
-            }
-        } catch (IOException e) {
-            return Codes.NOK.toString();
+        boolean success = written.join();
+        synchronized (domainsLock) {
+            pendingWrites--;
+            if (success) return Codes.OK.toString();
+            domain.getDevices().remove(device);
+            rewriteFile(verifier);
         }
-
-        return Codes.OK.toString();
-    }
-
-    /**
-     * Returns the path of the file containing the temperatures sent
-     * by the devices of the given domain.
-     *
-     * @param domain the {@code Domain}
-     * @return the path of the file or null if there is no data
-     * @requires {@code domain != null}
-     */
-    public String getDomainTemperatures(Domain domain) {
-        String path = "server/temperatures/" + domain.getName() + ".txt";
-        if (new File(path).exists()) {
-            return path;
-        }
-        return null;
+        return Codes.NOK.toString();
     }
 
     /**
@@ -259,6 +237,27 @@ public class DomainManager {
         return null;
     }
 
+    /**
+     * Tells if a change to the list {@link #domains} is waiting for its
+     * write, in which case the list may not match the domains.txt file.
+     * Must be called holding the lock of the domains.
+     *
+     * @return true if a write is pending, false otherwise
+     */
+    public boolean hasPendingWrites() {
+        return pendingWrites > 0;
+    }
+
+    /**
+     * Returns the lock that guards the list {@link #domains}
+     * and the domains.txt file
+     *
+     * @return the lock of the domains
+     */
+    public Object getLock() {
+        return domainsLock;
+    }
+
     /**
      * Returns the list of {@code Domains} managed
      * by the {@code DomainsManager}
@@ -0,0 +1,451 @@
+package server.persistence.managers;
+
+import server.components.Device;
+import server.components.Domain;
+import server.persistence.ObjectCache;
+import server.persistence.PersistenceWriter;
+import server.persistence.SegmentStore;
+import server.security.SecurityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Singleton class that manages the images sent by the devices of the
+ * {@code IoTServer}. Each device has a single encrypted image, stored once,
+ * and for each of its domains the key of that image wrapped with the key
+ * of the domain (envelope encryption).
+ *
+ * <p>Images are packed in the segments of a {@link SegmentStore}, in a
+ * single record with the image and its wrapped keys, so that the number
+ * of files does not grow with the number of devices. Images saved before
+ * this, in one file per device or per domain, are still served until the
+ * device sends a new image.
+ *
+ * <p>The previous images of each device are kept as its history, and can
+ * be requested by time. The history is bounded by a retention policy:
+ * <ul>
+ *     <li>only the last images of each device are kept;</li>
+ *     <li>images older than a maximum age are deleted, except the last
+ *     image of each device;</li>
+ *     <li>when the images take more than a maximum number of bytes, the
+ *     least recently used images are deleted, whatever their device.</li>
+ * </ul>
+ * The images read recently are kept in an {@link ObjectCache}.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see Device
+ * @see Domain
+ */
+public class ImageManager {
+
+    /**
+     * Folders of the images and of the images being received
+     */
+    private static final String IMAGES = "server/images/";
+    private static final String SEGMENTS = "server/images/segments/";
+    private static final String UPLOADS = "server/uploads/";
+
+    /**
+     * The instance of {@code ImageManager}
+     */
+    private static ImageManager instance = null;
+
+    /**
+     * Retention parameters
+     */
+    private final int historySize;      // images kept per device
+    private final long maxAge;          // in milliseconds, 0 if unlimited
+    private final long maxBytes;        // 0 if unlimited
+
+    /**
+     * Data structures
+     */
+    private final SegmentStore store;
+    private final ObjectCache cache;                             // images read recently
+    private final PersistenceWriter writer;                      // syncs the segments
+    private final Map<String, TreeMap<Long, String>> history;   // keys of the images of each device by time
+    private final LinkedHashMap<String, Long> recent;            // size of each image, least recently used first
+    private long bytes;                                          // size of all images
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object imagesLock;
+
+    /**
+     * Constructs a new {@code ImageManager}
+     *
+     * @param segmentSize the maximum size in bytes of a segment
+     * @param historySize the number of images kept per device
+     * @param maxAge the maximum age in milliseconds of an image, 0 if unlimited
+     * @param maxBytes the maximum size in bytes of all images, 0 if unlimited
+     * @param cache the cache of the images read recently
+     * @param writer the writer of the persistence files
+     * @param passwordCypher password used for the HMACs of the segments
+     */
+    private ImageManager(long segmentSize, int historySize, long maxAge, long maxBytes,
+                         ObjectCache cache, PersistenceWriter writer, String passwordCypher) {
+        this.historySize = Math.max(1, historySize);
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        store = new SegmentStore(SEGMENTS, segmentSize, SecurityUtils.generateKey(passwordCypher));
+        this.cache = cache;
+        this.writer = writer;
+        history = new HashMap<>();
+        recent = new LinkedHashMap<>(16, 0.75f, true);
+        imagesLock = new Object();
+    }
+
+    /**
+     * Returns the instance of {@code ImageManager} or creates
+     * it if the instance is still null
+     *
+     * @param segmentSize the maximum size in bytes of a segment
+     * @param historySize the number of images kept per device
+     * @param maxAge the maximum age in milliseconds of an image, 0 if unlimited
+     * @param maxBytes the maximum size in bytes of all images, 0 if unlimited
+     * @param cache the cache of the images read recently
+     * @param writer the writer of the persistence files
+     * @param passwordCypher password used for the HMACs of the segments
+     * @return the instance of {@code ImageManager}
+     */
+    public static ImageManager getInstance(long segmentSize, int historySize, long maxAge, long maxBytes,
+                                           ObjectCache cache, PersistenceWriter writer, String passwordCypher) {
+        if (instance == null) {
+            instance = new ImageManager(segmentSize, historySize, maxAge, maxBytes, cache, writer,
+                    passwordCypher);
+        }
+        return instance;
+    }
+
+    /**
+     * Opens the segments of the images and builds the history of each
+     * device. Images are considered used in the order they were saved.
+     *
+     * @throws IOException if the segments could not be read
+     */
+    public void open() throws IOException {
+        synchronized (imagesLock) {
+            store.open();
+            List<String> keys = store.keys();
+            keys.sort(Comparator.comparingLong(ImageManager::timeOf));
+            for (String key : keys) {
+                String device = key.contains("@") ? key.substring(0, key.indexOf('@')) : key;
+                history.computeIfAbsent(device, k -> new TreeMap<>()).put(timeOf(key), key);
+                long size = store.get(key).length();
+                recent.put(key, size);
+                bytes += size;
+            }
+        }
+    }
+
+    /**
+     * Closes the segments of the images
+     */
+    public void close() {
+        store.close();
+    }
+
+    /**
+     * Rewrites the segments where most images were replaced
+     *
+     * @param minLiveRatio the minimum fraction of current images of a segment
+     * @return the number of bytes reclaimed
+     * @throws IOException if a segment could not be compacted
+     */
+    public long compact(double minLiveRatio) throws IOException {
+        return store.compact(minLiveRatio);
+    }
+
+    /**
+     * Returns the path of the encrypted image of a {@code Device}
+     *
+     * @param device the {@code Device}
+     * @return the path of the image
+     */
+    public String getImagePath(Device device) {
+        return IMAGES + device.getUser() + "_" + device.getId() + ".jpg.cif";
+    }
+
+    /**
+     * Returns the path of the key of the image of a {@code Device},
+     * wrapped with the key of a {@code Domain}
+     *
+     * @param device the {@code Device}
+     * @param domain the {@code Domain}
+     * @return the path of the wrapped key
+     */
+    public String getWrappedKeyPath(Device device, Domain domain) {
+        return IMAGES + device.getUser() + "_" + device.getId() + "_" + domain.getName() + ".key.cif";
+    }
+
+    /**
+     * Returns the path of an image of a {@code Device} encrypted
+     * with the key of a {@code Domain}, in the format used before
+     * envelope encryption
+     *
+     * @param device the {@code Device}
+     * @param domain the {@code Domain}
+     * @return the path of the image
+     */
+    public String getLegacyImagePath(Device device, Domain domain) {
+        return IMAGES + device.getUser() + "_" + device.getId() + "_" + domain.getName() + ".jpg.cif";
+    }
+
+    /**
+     * Returns the path where an image being received from a {@code Device}
+     * is written to. The file is kept if the transfer is interrupted, so that
+     * it can be resumed by the device with the same upload id.
+     *
+     * @param device the {@code Device}
+     * @param uploadId the id of the upload (the hash of the encrypted image)
+     * @return the path of the partial file
+     */
+    public String getUploadPath(Device device, String uploadId) {
+        return UPLOADS + device.getUser() + "_" + device.getId() + "_" + uploadId + ".part";
+    }
+
+    /**
+     * Saves a new image of a {@code Device}, which becomes its current one.
+     * The image, already received to the given file, is appended to the
+     * segments with its wrapped keys, and the file is deleted. The files
+     * of previous images in the old formats are removed, and the retention
+     * policy is applied. Returns once the segment is as durable as the
+     * writes of the persistence writer.
+     *
+     * @param device the {@code Device}
+     * @param source the file with the received image
+     * @param wrappedKeys the key of the image wrapped with the key of each domain
+     * @return the paths of the files removed, or null if the image could not be saved
+     * @requires {@code device != null && source != null && wrappedKeys != null}
+     */
+    public List<String> saveImage(Device device, String source, Map<Domain, byte[]> wrappedKeys) {
+        List<String> removed = new ArrayList<>();
+        Path segment;
+        synchronized (imagesLock) {
+            try {
+                Map<String, byte[]> attributes = new LinkedHashMap<>();
+                for (Map.Entry<Domain, byte[]> entry : wrappedKeys.entrySet()) {
+                    attributes.put(entry.getKey().getName(), entry.getValue());
+                }
+                TreeMap<Long, String> images = history.computeIfAbsent(deviceKey(device), k -> new TreeMap<>());
+                long time = System.currentTimeMillis();
+                if (!images.isEmpty()) time = Math.max(time, images.lastKey() + 1);
+                String key = deviceKey(device) + "@" + time;
+                long size;
+                try (FileChannel image = FileChannel.open(Path.of(source), StandardOpenOption.READ)) {
+                    size = image.size();
+                    segment = store.getSegmentPath(
+                            store.put(key, attributes, image.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+                }
+                Files.delete(Path.of(source));
+                images.put(time, key);
+                recent.put(key, size);
+                bytes += size;
+                while (images.size() > historySize) {
+                    delete(images.firstEntry().getValue());
+                }
+                while (maxBytes > 0 && bytes > maxBytes && recent.size() > 1) {
+                    delete(recent.keySet().iterator().next());
+                }
+                if (Files.deleteIfExists(Path.of(getImagePath(device)))) removed.add(getImagePath(device));
+                for (Domain domain : wrappedKeys.keySet()) {
+                    for (String old : new String[] {getWrappedKeyPath(device, domain), getLegacyImagePath(device, domain)}) {
+                        if (Files.deleteIfExists(Path.of(old))) removed.add(old);
+                    }
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        // Waits for the segment outside the lock, so images of several devices share a sync
+        return writer.flush(segment.toString()).join() ? removed : null;
+    }
+
+    /**
+     * Deletes the images whose upload was interrupted and
+     * not resumed for longer than the given time
+     *
+     * @param maxAge the maximum age in milliseconds
+     * @return the number of files deleted
+     */
+    public int deleteExpiredUploads(long maxAge) {
+        File[] parts = new File(UPLOADS).listFiles();
+        if (parts == null) return 0;
+        int deleted = 0;
+        long limit = System.currentTimeMillis() - maxAge;
+        for (File part : parts) {
+            if (part.lastModified() < limit && part.delete()) deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the images older than the maximum age,
+     * except the current image of each device
+     *
+     * @return the number of images deleted
+     * @throws IOException if an image could not be deleted
+     */
+    public int deleteExpiredImages() throws IOException {
+        if (maxAge <= 0) return 0;
+        synchronized (imagesLock) {
+            long limit = System.currentTimeMillis() - maxAge;
+            List<String> expired = new ArrayList<>();
+            for (TreeMap<Long, String> images : history.values()) {
+                expired.addAll(images.headMap(Math.min(limit, images.lastKey())).values());
+            }
+            for (String key : expired) delete(key);
+            return expired.size();
+        }
+    }
+
+    /**
+     * Opens the image of a {@code Device} that was current at the given time,
+     * if it can be read by the users of a {@code Domain}. The image is read
+     * atomically, so a new image being saved at the same time is not mixed
+     * with the previous one.
+     *
+     * @param device the {@code Device}
+     * @param domain the {@code Domain}
+     * @param time the time in milliseconds, {@code Long.MAX_VALUE} for the current image
+     * @return the image, or null if there is no image for the domain at that time
+     * @throws IOException if the image could not be read
+     */
+    public StoredImage openImage(Device device, Domain domain, long time) throws IOException {
+        synchronized (imagesLock) {
+            TreeMap<Long, String> images = history.get(deviceKey(device));
+            if (images != null && !images.isEmpty()) {
+                Map.Entry<Long, String> image = images.floorEntry(time);
+                if (image == null) return null;
+                SegmentStore.Entry entry = store.get(image.getValue());
+                recent.get(image.getValue()); // Mark as used
+                byte[] wrappedKey = entry.attributes().get(domain.getName());
+                if (wrappedKey == null) return null;
+                // Images never change, so they are only removed from the cache when deleted
+                ByteBuffer content = cache.get(image.getValue());
+                if (content == null) {
+                    long stamp = cache.stamp();
+                    content = store.read(entry);
+                    cache.put(image.getValue(), content, stamp);
+                }
+                return new StoredImage(wrappedKey, image.getKey() + "-" + entry.length(), content);
+            }
+            File wrappedKey = new File(getWrappedKeyPath(device, domain));
+            File image = new File(getImagePath(device));
+            if (wrappedKey.exists() && image.exists()) {
+                return new StoredImage(Files.readAllBytes(wrappedKey.toPath()), version(image), map(image));
+            }
+            File legacy = new File(getLegacyImagePath(device, domain));
+            if (legacy.exists()) {
+                return new StoredImage(null, version(legacy), map(legacy));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Deletes an image from the segments and from the history of its device
+     *
+     * @param key the key of the image
+     * @throws IOException if the image could not be deleted
+     */
+    private void delete(String key) throws IOException {
+        store.delete(key);
+        cache.invalidate(key);
+        Long size = recent.remove(key);
+        if (size != null) bytes -= size;
+        String device = key.contains("@") ? key.substring(0, key.indexOf('@')) : key;
+        TreeMap<Long, String> images = history.get(device);
+        if (images != null) {
+            images.remove(timeOf(key));
+            if (images.isEmpty()) history.remove(device);
+        }
+    }
+
+    /**
+     * Returns the key of a {@code Device} in the segments, the prefix
+     * of the keys of its images
+     *
+     * @param device the {@code Device}
+     * @return the key of the device
+     */
+    private static String deviceKey(Device device) {
+        return device.getUser() + "_" + device.getId();
+    }
+
+    /**
+     * Returns the time an image was saved, from its key. Images
+     * saved before the history was kept have the time 0.
+     *
+     * @param key the key of the image
+     * @return the time in milliseconds
+     */
+    private static long timeOf(String key) {
+        int at = key.indexOf('@');
+        return at < 0 ? 0 : Long.parseLong(key.substring(at + 1));
+    }
+
+    /**
+     * Memory-maps an image file
+     *
+     * @param image the image file
+     * @return a read-only buffer with the content of the file
+     * @throws IOException if the file could not be mapped
+     */
+    private static ByteBuffer map(File image) throws IOException {
+        try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Returns the version of an image file, which changes
+     * every time a new image replaces it
+     *
+     * @param image the image file
+     * @return the version of the image
+     */
+    private static String version(File image) {
+        return image.length() + "-" + image.lastModified();
+    }
+
+    /**
+     * An image opened for reading
+     *
+     * @param wrappedKey the key of the image wrapped with the key of the
+     *                   domain, or null if the image is encrypted with the
+     *                   key of the domain (old format)
+     * @param version the version of the image, used by the devices
+     *                to resume an interrupted download
+     * @param content the encrypted image, memory-mapped
+     */
+    public record StoredImage(byte[] wrappedKey, String version, ByteBuffer content) {
+
+        /**
+         * Returns the size of the encrypted image
+         *
+         * @return the size in bytes
+         */
+        public long size() {
+            return content.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,350 @@
+package server.persistence.managers;
+
+import server.ServerLogger;
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+import server.security.SecurityUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Singleton class that manages the binary snapshot of the {@code IoTServer}.
+ * The snapshot holds the whole in-memory model (users, domains and the devices
+ * registered in them) and allows the server to boot without replaying the text
+ * files. It is protected by an HMAC computed with the cipher password, and it
+ * records the state of the text files it was taken from, so that it is only
+ * used while those files were not changed afterwards.
+ *
+ * <p>Format (big-endian), version 1:
+ * <pre>
+ * int magic, int version, long creation time
+ * int sources, { string path, long last modified, long length }
+ * int users, { string name, string certificate }
+ * int domains, { string name, string owner,
+ *                int users, { string name },
+ *                int devices, { string user, int id } }
+ * byte[32] HMAC of everything above
+ * </pre>
+ * where each string is an {@code int} length followed by UTF-8 bytes.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see UserManager
+ * @see DomainManager
+ */
+public class SnapshotManager {
+
+    /**
+     * Snapshot format
+     */
+    private static final int MAGIC = 0x494F5453;       // "IOTS"
+    private static final int VERSION = 1;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int HMAC_LENGTH = 32;
+
+    /**
+     * The instance of {@code SnapshotManager}
+     */
+    private static SnapshotManager instance = null;
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object snapshotLock;
+
+    /**
+     * Data structures
+     */
+    private final String snapshotFile;
+    private final SecretKey secretKey;
+    private String savedSources;    // state of the sources of the current snapshot
+
+    /**
+     * Constructs a new {@code SnapshotManager}
+     *
+     * @param filePath the path of the file to be managed
+     * @param passwordCypher password used to protect the snapshot
+     */
+    private SnapshotManager(String filePath, String passwordCypher) {
+        snapshotFile = filePath;
+        secretKey = SecurityUtils.generateKey(passwordCypher);
+        snapshotLock = new Object();
+    }
+
+    /**
+     * Returns the instance of {@code SnapshotManager} or creates
+     * it if the instance is still null
+     *
+     * @param filePath the path of the file to be managed
+     * @param passwordCypher password used to protect the snapshot
+     * @return the instance of {@code SnapshotManager}
+     */
+    public static SnapshotManager getInstance(String filePath, String passwordCypher) {
+        if (instance == null) {
+            instance = new SnapshotManager(filePath, passwordCypher);
+        }
+        return instance;
+    }
+
+    /**
+     * Writes a new snapshot of the users and domains. The snapshot is first
+     * written to a temporary file, which then atomically replaces the previous
+     * snapshot. The given text files are recorded as the sources of the snapshot,
+     * and no snapshot is written if they did not change since the current one.
+     * Neither is one written while a change to the users or domains is waiting
+     * for its write, since the model would not match the text files it records,
+     * and could bring the change back after a crash even if it is never written.
+     *
+     * @param users the {@code UserManager}
+     * @param domains the {@code DomainManager}
+     * @param sources the text files the model was loaded from
+     * @return true if a new snapshot was written, false otherwise
+     */
+    public boolean save(UserManager users, DomainManager domains, String... sources) {
+        synchronized (snapshotLock) {
+            try {
+                byte[] data;
+                String state;
+                synchronized (users.getLock()) {
+                    synchronized (domains.getLock()) {
+                        if (users.hasPendingWrites() || domains.hasPendingWrites()) return false;
+                        state = describe(sources);
+                        if (state.equals(savedSources)) return false;
+                        data = encode(users.getUsers(), domains.getDomains(), sources);
+                    }
+                }
+                byte[] hmac = calculateHMAC(ByteBuffer.wrap(data));
+
+                Path target = Path.of(snapshotFile);
+                Path temp = Path.of(snapshotFile + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(data.length + hmac.length);
+                    buffer.put(data).put(hmac).flip();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    channel.force(true);
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                savedSources = state;
+                return true;
+            } catch (Exception e) {
+                ServerLogger.logError("Unable to write snapshot: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot into the given managers, if it exists, its HMAC is
+     * valid and none of its source files changed after it was written. The
+     * snapshot file is memory-mapped and decoded without being copied.
+     *
+     * @param users the {@code UserManager} to load the users to
+     * @param domains the {@code DomainManager} to load the domains to
+     * @param devices the {@code DeviceManager} to load the devices to
+     * @return true if the snapshot was loaded, false if the text
+     *          files have to be replayed instead
+     */
+    public boolean load(UserManager users, DomainManager domains, DeviceManager devices) {
+        File file = new File(snapshotFile);
+        if (!file.exists()) return false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HMAC_LENGTH + 16) return false;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int length = buffer.limit() - HMAC_LENGTH;
+
+            byte[] saved = new byte[HMAC_LENGTH];
+            buffer.get(length, saved);
+            if (!MessageDigest.isEqual(saved, calculateHMAC(buffer.slice(0, length)))) {
+                ServerLogger.logWarning("Snapshot is corrupted, replaying text files");
+                return false;
+            }
+
+            ByteBuffer in = buffer.slice(0, length);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                ServerLogger.logWarning("Snapshot version not supported, replaying text files");
+                return false;
+            }
+            in.getLong(); // Creation time
+
+            int sources = in.getInt();
+            String[] paths = new String[sources];
+            for (int i = 0; i < sources; i++) {
+                paths[i] = readString(in);
+                File source = new File(paths[i]);
+                long modified = in.getLong();
+                long size = in.getLong();
+                long currentSize = source.exists() ? source.length() : -1;
+                if (source.lastModified() != modified || currentSize != size) {
+                    ServerLogger.logInfo("Text files are newer than the snapshot");
+                    return false;
+                }
+            }
+
+            // Decode everything before changing the managers
+            List<User> loadedUsers = new ArrayList<>();
+            Map<String, User> byName = new HashMap<>();
+            int userCount = in.getInt();
+            for (int i = 0; i < userCount; i++) {
+                User user = new User(readString(in), readString(in));
+                loadedUsers.add(user);
+                byName.put(user.name(), user);
+            }
+
+            List<Domain> loadedDomains = new ArrayList<>();
+            int domainCount = in.getInt();
+            for (int i = 0; i < domainCount; i++) {
+                Domain domain = new Domain(readString(in), byName.get(readString(in)));
+                int domainUsers = in.getInt();
+                for (int j = 0; j < domainUsers; j++) {
+                    domain.getUsers().add(byName.get(readString(in)));
+                }
+                int domainDevices = in.getInt();
+                for (int j = 0; j < domainDevices; j++) {
+                    domain.getDevices().add(new Device(readString(in), in.getInt()));
+                }
+                loadedDomains.add(domain);
+            }
+
+            for (User user : loadedUsers) users.loadUser(user);
+            for (Domain domain : loadedDomains) {
+                List<Device> domainDevices = domain.getDevices();
+                for (int i = 0; i < domainDevices.size(); i++) {
+                    devices.saveDevice(domainDevices.get(i), new ArrayList<>());
+                    domainDevices.set(i, devices.getDevice(domainDevices.get(i)));
+                }
+                domains.getDomains().add(domain);
+            }
+            savedSources = describe(paths);
+            return true;
+        } catch (Exception e) {
+            ServerLogger.logWarning("Unable to load snapshot, replaying text files");
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the users and domains in the snapshot format, without the HMAC
+     *
+     * @param users the users
+     * @param domains the domains
+     * @param sources the text files the model was loaded from
+     * @return the encoded data
+     * @throws IOException if an error occurred while encoding
+     */
+    private byte[] encode(Collection<User> users, List<Domain> domains, String[] sources) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+
+        out.writeInt(sources.length);
+        for (String source : sources) {
+            File file = new File(source);
+            writeString(out, source);
+            out.writeLong(file.lastModified());
+            out.writeLong(file.exists() ? file.length() : -1);
+        }
+
+        out.writeInt(users.size());
+        for (User user : users) {
+            writeString(out, user.name());
+            writeString(out, user.certificate());
+        }
+
+        out.writeInt(domains.size());
+        for (Domain domain : domains) {
+            writeString(out, domain.getName());
+            writeString(out, domain.getOwner().name());
+            out.writeInt(domain.getUsers().size());
+            for (User user : domain.getUsers()) writeString(out, user.name());
+            out.writeInt(domain.getDevices().size());
+            for (Device device : domain.getDevices()) {
+                writeString(out, device.getUser());
+                out.writeInt(device.getId());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Describes the current state of the given files
+     *
+     * @param sources the paths of the files
+     * @return a string with the last modified time and length of each file
+     */
+    private static String describe(String[] sources) {
+        StringBuilder sb = new StringBuilder();
+        for (String source : sources) {
+            File file = new File(source);
+            sb.append(source).append(",").append(file.lastModified()).append(",")
+                    .append(file.exists() ? file.length() : -1).append(";");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string
+     *
+     * @param out the output
+     * @param value the string
+     * @throws IOException if an error occurred while writing
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string
+     *
+     * @param in the buffer to read from
+     * @return the string
+     */
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Calculates the HMAC of the remaining bytes of a buffer
+     *
+     * @param data the buffer with the data
+     * @return the HMAC value
+     * @throws Exception if the HMAC could not be calculated
+     */
+    private byte[] calculateHMAC(ByteBuffer data) throws Exception {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(secretKey);
+        mac.update(data);
+        return mac.doFinal();
+    }
+
+}
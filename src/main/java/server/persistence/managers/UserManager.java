@@ -1,15 +1,19 @@
 package server.persistence.managers;
 
 import server.components.User;
+import server.persistence.PersistenceWriter;
 
 import javax.crypto.SecretKey;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static server.security.SecurityUtils.decryptDataFromFile;
 import static server.security.SecurityUtils.encryptDataIntoFile;
 import static server.security.SecurityUtils.generateKey;
+import static server.security.SecurityUtils.getUserPubKey;
 
 /**
  * Singleton class that manages the users of the {@code IoTServer}
@@ -36,7 +40,10 @@ public class UserManager {
      * Data structures
      */
     private final String usersFile;
-    private final List<User> users;
+    private final Map<String, User> users;              // users by name
+    private final Map<String, PublicKey> publicKeys;    // loaded public keys by name
+    private final PersistenceWriter writer;
+    private int pendingWrites;                          // new users whose write is not yet complete
 
     /**
      * SecretKey to encrypt the users file
@@ -48,11 +55,14 @@ public class UserManager {
      *
      * @param filePath the path of the file to be managed
      * @param passwordCypher password used for encryption
+     * @param writer the writer of the persistence files
      */
-    private UserManager(String filePath, String passwordCypher) {
+    private UserManager(String filePath, String passwordCypher, PersistenceWriter writer) {
         usersFile = filePath;
+        this.writer = writer;
         secretKey = generateKey(passwordCypher);
-        users = new ArrayList<>();
+        users = new ConcurrentHashMap<>();
+        publicKeys = new ConcurrentHashMap<>();
         usersLock = new Object();
     }
 
@@ -62,48 +72,99 @@ public class UserManager {
      *
      * @param filePath the path of the file to be managed
      * @param passwordCypher password used for encryption
+     * @param writer the writer of the persistence files
      * @return the instance of {@code UserManager}
      */
-    public static UserManager getInstance(String filePath, String passwordCypher) {
+    public static UserManager getInstance(String filePath, String passwordCypher,
+                                          PersistenceWriter writer) {
         if (instance == null) {
-            instance = new UserManager(filePath, passwordCypher);
+            instance = new UserManager(filePath, passwordCypher, writer);
         }
         return instance;
     }
 
     /**
-     * Saves the given {@code User} to the list {@link #users}.
+     * Saves the given {@code User} to the map {@link #users}.
      * It also writes the user to an encrypted users.txt file located
-     * in the server-files folder.
+     * in the server-files folder. A user already saved is left as it is.
      *
      * @param user the {@code User} to be saved
+     * @return true if the user was saved, false if it could not be
+     *         written, in which case it is removed from the map
      * @requires {@code user != null}
      */
-    public void saveUser(User user) {
-        File file = new File(usersFile);
-        String currentUsersData = file.exists() ? decryptDataFromFile(file, this.secretKey) : "";
-        currentUsersData += user + "\n";
+    public boolean saveUser(User user) {
+        CompletableFuture<Boolean> written;
         synchronized (usersLock) {
-            if (getUser(user.name()) == null) {
-                users.add(user);
-                encryptDataIntoFile(currentUsersData, file, this.secretKey);
-            }
+            if (users.putIfAbsent(user.name(), user) != null) return true;
+            written = writeFile();
+            pendingWrites++;
         }
+        // Waits for the write outside the lock, so several new users share a commit
+        boolean success = written.join();
+        synchronized (usersLock) {
+            pendingWrites--;
+            if (success) return true;
+            users.remove(user.name(), user);
+            // A later write may have included the user
+            if (!users.isEmpty()) writeFile();
+        }
+        return false;
+    }
+
+    /**
+     * Queues the write of the encrypted users.txt file located in the
+     * server-files folder with the users of the map {@link #users}, so
+     * that the file does not have to be read first. Must be called
+     * holding {@link #usersLock}.
+     *
+     * @return a future completed with true if the file was
+     *         written, false otherwise
+     */
+    private CompletableFuture<Boolean> writeFile() {
+        StringBuilder data = new StringBuilder();
+        for (User u : users.values()) data.append(u).append("\n");
+        return encryptDataIntoFile(data.toString(), new File(usersFile), secretKey, writer);
     }
 
     /**
-     * Returns a {@code User} from the list {@link #users}
+     * Adds a {@code User} loaded from the persistence files
+     * to the map {@link #users}, without writing it back
+     *
+     * @param user the {@code User} to be loaded
+     * @requires {@code user != null}
+     */
+    public void loadUser(User user) {
+        users.put(user.name(), user);
+    }
+
+    /**
+     * Returns a {@code User} from the map {@link #users}
      * that matches the username given.
      *
      * @param username the username of the {@code User}
      * @return a {@code User}, if the username was found, null otherwise
      */
     public User getUser(String username) {
-        for (User user : users) {
-            if (username.equals(user.name()))
-                return user;
+        return users.get(username);
+    }
+
+    /**
+     * Returns the {@code PublicKey} of the given {@code User}. The key is read
+     * from the file of the user the first time it is needed, and kept in
+     * the map {@link #publicKeys} afterwards.
+     *
+     * @param user the {@code User}
+     * @return the public key of the user, or null if it could not be loaded
+     * @requires {@code user != null}
+     */
+    public PublicKey getPublicKey(User user) {
+        PublicKey key = publicKeys.get(user.name());
+        if (key == null) {
+            key = getUserPubKey(new File(user.certificate()));
+            if (key != null) publicKeys.put(user.name(), key);
         }
-        return null;
+        return key;
     }
 
     /**
@@ -116,12 +177,33 @@ public class UserManager {
     }
 
     /**
-     * Returns the list {@link #users}
+     * Tells if a new user of the map {@link #users} is waiting for its
+     * write, in which case the map may not match the users.txt file.
+     * Must be called holding the lock of the users.
+     *
+     * @return true if a write is pending, false otherwise
+     */
+    public boolean hasPendingWrites() {
+        return pendingWrites > 0;
+    }
+
+    /**
+     * Returns the lock that guards the map {@link #users}
+     * and the users.txt file
+     *
+     * @return the lock of the users
+     */
+    public Object getLock() {
+        return usersLock;
+    }
+
+    /**
+     * Returns the users of the map {@link #users}
      *
-     * @return the list {@link #users}
+     * @return the users of the map {@link #users}
      */
-    public List<User> getUsers() {
-        return users;
+    public Collection<User> getUsers() {
+        return users.values();
     }
 
 }
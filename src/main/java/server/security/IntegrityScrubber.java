@@ -0,0 +1,409 @@
+package server.security;
+
+import common.BufferPool;
+import server.ServerLogger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Background verifier of the files persisted by the {@code IoTServer}.
+ * It keeps the HMAC of every file under the server folder (temperatures,
+ * images, domain keys, public keys, ...) in a manifest, and checks them a
+ * few files at a time, reading at a limited rate so that the requests of
+ * the clients are not slowed down.
+ *
+ * <p>Files written by the server must be registered with {@link #track(String)}.
+ * Files found without an HMAC are reported as untracked, except when there is
+ * no manifest yet: the files of the folder are then added to a new one. A file is only
+ * reported if it is untracked or does not match its HMAC in two consecutive
+ * checks, so that a file being written is not reported. The last
+ * {@value #MAX_FINDINGS} problems found are kept.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see IntegrityVerifier
+ */
+public class IntegrityScrubber implements Runnable {
+
+    /**
+     * Algorithm for HMAC calculation
+     */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Maximum number of problems kept
+     */
+    private static final int MAX_FINDINGS = 256;
+
+    /**
+     * Marks a suspect file that was untracked in its last check
+     */
+    private static final String UNTRACKED = "untracked";
+
+    /**
+     * Files with their own integrity protection, checked by the
+     * {@code IntegrityVerifier} or not checked at all. Image segments
+     * grow with every image and have an HMAC per record, as does their
+     * index, temperature files are written in place with an HMAC per
+     * slot, and the files of the key-value store have their own HMACs.
+     */
+    private static final String CLIENT_COPY = "server/device_info.txt";
+    private static final String DOMAINS = "server/domains.txt";
+    private static final String IMAGE_SEGMENTS = "server/images/segments/";
+    private static final String KEY_VALUE_STORE = "server/lsm/";
+    private static final Set<String> EXCLUDED = Set.of(
+            "server/hmacs.txt", "server/hmacs.log", "server/snapshot.bin", "server/recovery.log");
+
+    /**
+     * Scrubber parameters
+     */
+    private final String root;              // folder to verify
+    private final String manifestPath;      // file with the HMACs
+    private final int batchSize;            // files checked per run
+    private final long bytesPerSecond;      // maximum read rate
+
+    /**
+     * Data structures
+     */
+    private final SecretKey secret;
+    private final IntegrityVerifier verifier;
+    private final Map<String, String> manifest;             // HMAC of each file
+    private final Map<String, String> suspects;             // HMAC of the files that failed one check
+    private final List<String> findings;                    // last problems found, oldest first
+    private final List<String> pass;                        // files of the current pass
+    private int position;                                   // next file of the current pass
+    private int passes;                                     // completed passes
+    private volatile boolean dirty;                         // manifest changed since saved
+
+    /**
+     * Constructs a new {@code IntegrityScrubber}
+     *
+     * @param root the folder to verify
+     * @param manifestPath the file to save the HMACs
+     * @param secret the secret used to calculate the HMACs
+     * @param verifier the verifier of domains.txt and device_info.txt
+     * @param batchSize the number of files checked per run
+     * @param bytesPerSecond the maximum read rate
+     */
+    public IntegrityScrubber(String root, String manifestPath, String secret,
+                             IntegrityVerifier verifier, int batchSize, long bytesPerSecond) {
+        this.root = root;
+        this.manifestPath = manifestPath;
+        this.secret = SecurityUtils.generateKey(secret);
+        this.verifier = verifier;
+        this.batchSize = Math.max(1, batchSize);
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.manifest = new ConcurrentHashMap<>();
+        this.suspects = new HashMap<>();
+        this.findings = Collections.synchronizedList(new ArrayList<>());
+        this.pass = new ArrayList<>();
+        loadManifest();
+    }
+
+    /**
+     * Registers the current content of a file written by the server
+     *
+     * @param path the path of the file
+     */
+    public void track(String path) {
+        String hmac = calculateHMAC(new File(path), false);
+        if (hmac != null) {
+            manifest.put(path, hmac);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Removes a file deleted by the server from the manifest
+     *
+     * @param path the path of the file
+     */
+    public void untrack(String path) {
+        if (manifest.remove(path) != null) dirty = true;
+    }
+
+    /**
+     * Checks the next batch of files. When all files were checked,
+     * a new pass is started over the current files of the folder.
+     */
+    @Override
+    public void run() {
+        try {
+            if (position >= pass.size()) startPass();
+            int end = Math.min(pass.size(), position + batchSize);
+            for (; position < end; position++) {
+                check(pass.get(position));
+            }
+            if (dirty) saveManifest();
+            ServerLogger.logInfo("Integrity scrub: " + position + "/" + pass.size()
+                    + " files checked in pass " + (passes + 1) + ", " + findings.size()
+                    + " problems found");
+            if (position >= pass.size()) passes++;
+        } catch (Exception e) {
+            ServerLogger.logError("Integrity scrub failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the problems found by this scrubber
+     *
+     * @return the problems found
+     */
+    public List<String> getFindings() {
+        synchronized (findings) {
+            return new ArrayList<>(findings);
+        }
+    }
+
+    /**
+     * Saves the manifest, if it changed
+     */
+    public void close() {
+        if (dirty) saveManifest();
+    }
+
+    /**
+     * Starts a new pass over the files of the folder and
+     * the files of the manifest
+     *
+     * @throws IOException if the folder could not be listed
+     */
+    private void startPass() throws IOException {
+        pass.clear();
+        position = 0;
+        pass.addAll(listFiles());
+        for (String path : manifest.keySet()) {
+            if (!pass.contains(path)) pass.add(path);
+        }
+        Collections.sort(pass);
+    }
+
+    /**
+     * Returns the files of the folder checked by this scrubber
+     *
+     * @return the paths of the files
+     * @throws IOException if the folder could not be listed
+     */
+    private List<String> listFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(Path.of(root))) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> file.toString().replace(File.separatorChar, '/'))
+                    .filter(path -> !EXCLUDED.contains(path) && !path.equals(manifestPath)
+                            && !path.endsWith(".tmp") && !path.endsWith(".part")
+                            && !path.endsWith(".slots") && !path.startsWith(IMAGE_SEGMENTS)
+                            && !path.startsWith(KEY_VALUE_STORE))
+                    .toList();
+        }
+    }
+
+    /**
+     * Creates the manifest with the files currently in the folder,
+     * the first time the scrubber runs
+     */
+    private void createManifest() {
+        if (!new File(root).isDirectory()) return;
+        try {
+            for (String path : listFiles()) track(path);
+            ServerLogger.logInfo("Integrity manifest created with " + manifest.size() + " files");
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to create integrity manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks a file against the manifest
+     *
+     * @param path the path of the file
+     */
+    private void check(String path) {
+        if (path.equals(DOMAINS) || path.equals(CLIENT_COPY)) {
+            if (!verifier.verify(path)) report(path, "corrupted");
+            return;
+        }
+        String expected = manifest.get(path);
+        File file = new File(path);
+        if (!file.exists()) {
+            if (expected != null && manifest.get(path) != null) report(path, "missing");
+            return;
+        }
+        String hmac = calculateHMAC(file, true);
+        if (hmac == null) return;
+        if (expected == null) {
+            if (UNTRACKED.equals(suspects.put(path, UNTRACKED)) && manifest.get(path) == null) {
+                report(path, "untracked");
+            }
+            return;
+        }
+        if (!expected.equals(hmac) && expected.equals(manifest.get(path))) {
+            if (hmac.equals(suspects.get(path))) {
+                report(path, "corrupted");
+            } else {
+                suspects.put(path, hmac);
+            }
+            return;
+        }
+        suspects.remove(path);
+    }
+
+    /**
+     * Reports a problem with a file
+     *
+     * @param path the path of the file
+     * @param problem the problem
+     */
+    private void report(String path, String problem) {
+        String finding = "File " + path + " is " + problem;
+        synchronized (findings) {
+            if (findings.contains(finding)) return;
+            if (findings.size() == MAX_FINDINGS) findings.remove(0);
+            findings.add(finding);
+        }
+        ServerLogger.logError("Integrity scrub: " + finding);
+    }
+
+    /**
+     * Calculates the HMAC of a file
+     *
+     * @param file the file
+     * @param throttle true to limit the read rate
+     * @return the HMAC value, or null in case of error
+     */
+    private String calculateHMAC(File file, boolean throttle) {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer pooled = pool.acquire(file.length());
+        try (InputStream in = new FileInputStream(file)) {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            byte[] buffer = pooled.array();
+            long start = System.nanoTime();
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                mac.update(buffer, 0, read);
+                total += read;
+                if (throttle) {
+                    long expected = total * 1_000_000_000L / bytesPerSecond;
+                    long elapsed = System.nanoTime() - start;
+                    if (expected > elapsed) Thread.sleep((expected - elapsed) / 1_000_000);
+                }
+            }
+            return toHex(mac.doFinal());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            pool.release(pooled);
+        }
+    }
+
+    /**
+     * Loads the manifest, verifying its HMAC
+     */
+    private void loadManifest() {
+        File file = new File(manifestPath);
+        if (!file.exists()) {
+            createManifest();
+            return;
+        }
+        Map<String, String> loaded = new HashMap<>();
+        StringBuilder content = new StringBuilder();
+        String saved = null;
+        try (BufferedReader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("MAC ")) {
+                    saved = line.substring(4);
+                    break;
+                }
+                content.append(line).append("\n");
+                int split = line.indexOf(' ');
+                loaded.put(line.substring(split + 1), line.substring(0, split));
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            saved = null;
+        }
+        String hmac = toHex(calculateHMAC(content.toString()));
+        if (saved != null && MessageDigest.isEqual(saved.getBytes(), hmac.getBytes())) {
+            manifest.putAll(loaded);
+        } else {
+            report(manifestPath, "corrupted");
+        }
+    }
+
+    /**
+     * Saves the manifest to a temporary file that then replaces it
+     */
+    private synchronized void saveManifest() {
+        dirty = false;
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            content.append(entry.getValue()).append(" ").append(entry.getKey()).append("\n");
+        }
+        String data = content + "MAC " + toHex(calculateHMAC(content.toString())) + "\n";
+        try {
+            Path temp = Path.of(manifestPath + ".tmp");
+            Files.writeString(temp, data, StandardCharsets.UTF_8);
+            Files.move(temp, Path.of(manifestPath), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            ServerLogger.logError("Unable to save integrity manifest");
+        }
+    }
+
+    /**
+     * Calculates the HMAC of a string
+     *
+     * @param data the string
+     * @return the HMAC value
+     */
+    private byte[] calculateHMAC(String data) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts bytes to an hexadecimal string
+     *
+     * @param bytes the bytes
+     * @return the hexadecimal string
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : bytes) {
+            hexString.append(String.format("%02x", b));
+        }
+        return hexString.toString();
+    }
+
+}
@@ -1,23 +1,57 @@
 package server.security;
 
 import server.ServerLogger;
+import server.persistence.PersistenceWriter;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
  * Class to verify integrity of files
  *
+ * <p>The domains.txt file is protected record by record: each line has its
+ * own HMAC, and the value saved in hmacs.txt is the root of a
+ * {@link MerkleTree} over those HMACs. Changing a domain only updates its
+ * leaf, so the file does not have to be read again. The result of a
+ * verification is kept while the size, modification time and identity of
+ * the file stay the same, and the signature of hmacs.txt is only checked
+ * again if that file was changed by someone other than this verifier.
+ *
+ * <p>Signing hmacs.txt is expensive, so changes are signed in epochs: each
+ * new root is first appended to a journal (hmacs.log) as a record chained
+ * with an HMAC to the previous record and to the signed content, and
+ * hmacs.txt is only signed again after a number of records or some time.
+ * When the server starts, the valid records of the journal are replayed.
+ * Since a record is written before domains.txt, and several writes of
+ * domains.txt may be waiting for the same commit, the file may still hold
+ * the root of any earlier record of the epoch if the server stopped in
+ * between, so those roots are also accepted. The journal is then signed
+ * into hmacs.txt.
+ *
  * @author Eduardo Proença (57551)
  * @author Manuel Barral (52026)
  * @author Tiago Oliveira (54979)
  *
  * @see SecurityUtils
+ * @see MerkleTree
  */
 public class IntegrityVerifier {
 
@@ -26,6 +60,12 @@ public class IntegrityVerifier {
      */
     private static final String HMAC_ALGORITHM = "HmacSHA256";
 
+    /**
+     * Version of the hmacs.txt format. Files without a version
+     * hold the HMAC of the whole domains.txt file
+     */
+    private static final String VERSION = "2";
+
     /**
      * File paths
      */
@@ -33,51 +73,92 @@ public class IntegrityVerifier {
     private static final String DOMAINS = "server/domains.txt";
 
     /**
-     * Pointer to the hmacs.txt file
+     * Pointers to the hmacs.txt file and its journal
      */
     private final String filePath;
+    private final String journalPath;
+
+    /**
+     * Writes hmacs.txt
+     */
+    private final PersistenceWriter writer;
+
+    /**
+     * Signing parameters: maximum records in the journal
+     * and maximum time in milliseconds before signing them
+     */
+    private final int epochSize;
+    private final long epochTime;
 
     /**
      * Data structures
      */
     private final SecretKey secret;
-    private final Map<String, String> hmacs;
+    private final Map<String, String> hmacs;            // expected HMAC of each file
+    private final Map<String, FileState> verified;      // state of each file when last verified
+    private MerkleTree domainsTree;                     // HMACs of the domains.txt records
+    private boolean legacy;                             // hmacs.txt still in the old format
+    private String signedData;                          // content of hmacs.txt
+    private FileState signedState;                      // state of hmacs.txt when last verified
+    private FileOutputStream journal;                   // open journal, null if empty
+    private byte[] chain;                               // HMAC of the last journal record
+    private long sequence;                              // number of records in the journal
+    private long epochStart;                            // time of the first record not signed
+    private boolean inDoubt;                            // a root may not be in domains.txt yet
+    private List<String> inDoubtRoots;                  // roots before the last journal record
+    private int pendingWrites;                          // writes of domains.txt not yet complete
+    private boolean stale;                              // a write failed since the last rewrite
+
+    /**
+     * {@code Object} lock to control concurrency
+     */
+    private final Object lock;
 
     /**
      * Constructs a new {@code IntegrityVerifier}
      *
      * @param filePath the file to save HMACs
+     * @param journalPath the journal of the changes not yet signed
      * @param secret the secret key
+     * @param epochSize the maximum number of changes signed at once
+     * @param epochTime the maximum time in milliseconds a change waits to be signed
+     * @param writer the writer of the persistence files
      */
-    public IntegrityVerifier(String filePath, String secret) {
+    public IntegrityVerifier(String filePath, String journalPath, String secret,
+                             int epochSize, long epochTime, PersistenceWriter writer) {
         this.filePath = filePath;
+        this.journalPath = journalPath;
+        this.writer = writer;
+        this.epochSize = Math.max(1, epochSize);
+        this.epochTime = epochTime;
         this.secret = SecurityUtils.generateKey(secret);
         this.hmacs = new HashMap<>();
+        this.verified = new HashMap<>();
+        this.lock = new Object();
     }
 
     /**
      * Inicializes this {@code IntegrityVerifier}
      */
     public void init() {
-        try {
+        synchronized (lock) {
             File file = new File(filePath);
             if (file.exists()) {
                 if (loadHmacs()) {
+                    replayJournal();
                     ServerLogger.logInfo("Integrity verifier initialized successfully!");
                 } else {
                     ServerLogger.logError("Integrity verifier failed to initialize!");
                 }
             } else {
-                file.createNewFile();
                 hmacs.put(CLIENT_COPY, calculateHMAC(CLIENT_COPY));
                 hmacs.put(DOMAINS, null);
-                String init = "CLIENT: " + hmacs.get(CLIENT_COPY) + "\n"
-                        + "DOMAINS: " + hmacs.get(DOMAINS) + "\n";
-                SecurityUtils.signFile(file, init);
-                ServerLogger.logInfo("Integrity verifier initialized successfully!");
+                if (sign()) {
+                    ServerLogger.logInfo("Integrity verifier initialized successfully!");
+                } else {
+                    ServerLogger.logError("Integrity verifier failed to initialize!");
+                }
             }
-        } catch (IOException e) {
-            ServerLogger.logError("Integrity verifier failed to initialize!");
         }
     }
 
@@ -88,54 +169,342 @@ public class IntegrityVerifier {
      *          false otherwise
      */
     public boolean verifyAll() {
-        if (hmacs.entrySet().isEmpty()) return false;
-        for (Map.Entry<String, String> hmac : hmacs.entrySet()) {
-            if (!verify(hmac.getKey())) return false;
+        synchronized (lock) {
+            if (hmacs.entrySet().isEmpty()) return false;
+            for (Map.Entry<String, String> hmac : hmacs.entrySet()) {
+                if (!verify(hmac.getKey())) return false;
+            }
+            if (legacy) {
+                legacy = false;
+                if (sign()) ServerLogger.logInfo("Integrity file converted to version " + VERSION);
+            } else if (sequence > 0 && sign()) {
+                ServerLogger.logInfo("Integrity journal signed");
+            }
+            inDoubt = false;
+            return true;
         }
-        return true;
     }
 
     /**
-     * Verifies the integrity of a file
+     * Verifies the integrity of a file. The file is only read if
+     * it changed since it was last verified or updated.
      *
      * @param path the file path
      * @return true if not corrupted, false otherwise
      */
     public boolean verify(String path) {
-        String data = SecurityUtils.verifySignature(new File(filePath));
-        if (data == null) return false;
-        String savedHmac = hmacs.get(path);
-        String newHmac = calculateHMAC(path);
-        if (savedHmac == null) {
-            return newHmac == null;
-        } else {
-            if(newHmac == null) return false;
-            return newHmac.equals(savedHmac);
+        synchronized (lock) {
+            if (!verifySignedFile()) return false;
+            // The file is being written with the records of this verifier
+            if (path.equals(DOMAINS) && pendingWrites > 0) return true;
+            FileState state = FileState.of(path);
+            if (state != null && state.equals(verified.get(path))) return true;
+
+            boolean valid;
+            if (path.equals(DOMAINS) && !legacy) {
+                try {
+                    MerkleTree tree = buildTree();
+                    String root = tree == null ? null : tree.rootHex();
+                    valid = Objects.equals(hmacs.get(path), root);
+                    if (!valid && inDoubt && inDoubtRoots.contains(root)) {
+                        // The last change was journaled but not written
+                        hmacs.put(DOMAINS, root);
+                        valid = true;
+                    }
+                    if (valid) domainsTree = tree;
+                } catch (IOException e) {
+                    ServerLogger.logError("Unable to verify " + DOMAINS + ": " + e.getMessage());
+                    valid = false;
+                }
+            } else {
+                valid = Objects.equals(hmacs.get(path), calculateHMAC(path));
+                if (valid && path.equals(DOMAINS)) {
+                    try {
+                        domainsTree = buildTree();
+                        hmacs.put(DOMAINS, domainsTree == null ? null : domainsTree.rootHex());
+                    } catch (IOException e) {
+                        ServerLogger.logError("Unable to verify " + DOMAINS + ": " + e.getMessage());
+                        valid = false;
+                    }
+                }
+            }
+
+            if (valid) {
+                verified.put(path, state);
+            } else {
+                verified.remove(path);
+            }
+            return valid;
         }
     }
 
     /**
-     * Updates the HMAC value of the domains.txt file, both
-     * in the map {@link #hmacs} and in the hmacs.txt file
+     * Writes a record of the domains.txt file and updates its HMAC, both
+     * in the map {@link #hmacs} and in the journal of hmacs.txt. Only the
+     * HMAC of the given record is calculated. The write is only queued
+     * while the lock is held, so the caller waits for it afterwards and the
+     * changes of several domains share a commit. The hmacs.txt file is
+     * signed when the journal reaches the size of an epoch and no write of
+     * domains.txt is pending.
+     *
+     * @param key the key of the record (the name of the domain)
+     * @param record the new content of the record
+     * @param write queues the write of the record to the domains.txt file
+     * @return a future completed with true when the record is written, or
+     *         with false if it failed, in which case domains.txt must be
+     *         written again with {@link #rewrite(List, Supplier)}
      */
-    public void update() {
-        String data = SecurityUtils.verifySignature(new File(filePath));
-        if (data != null) {
-            StringBuilder sb = new StringBuilder();
-            String hmac = calculateHMAC(DOMAINS);
-            String[] lines = data.split("\n");
-            for (String line : lines) {
-                if (line.contains("DOMAINS:")) {
-                    sb.append("DOMAINS: ").append(hmac).append("\n");
+    public CompletableFuture<Boolean> update(String key, String record,
+                                             Supplier<CompletableFuture<Boolean>> write) {
+        synchronized (lock) {
+            if (domainsTree == null) domainsTree = new MerkleTree();
+            byte[] previousLeaf = domainsTree.get(key);
+            domainsTree.set(key, calculateHMAC(record.getBytes(StandardCharsets.UTF_8)));
+            String root = domainsTree.rootHex();
+
+            if (!appendJournal(root)) {
+                if (previousLeaf == null) {
+                    domainsTree.removeLast(key);
                 } else {
-                    sb.append(line).append("\n");
+                    domainsTree.set(key, previousLeaf);
+                }
+                return CompletableFuture.completedFuture(false);
+            }
+            return track(root, write.get());
+        }
+    }
+
+    /**
+     * Writes all the records of the domains.txt file, replacing its HMAC.
+     * Used to bring the file back in line with the records kept in memory
+     * after a write of {@link #update(String, String, Supplier)} failed.
+     *
+     * @param records the records of the file, in order
+     * @param write queues the write of the whole domains.txt file
+     * @return a future completed with true when the file is written,
+     *         or with false if it failed
+     */
+    public CompletableFuture<Boolean> rewrite(List<String> records,
+                                              Supplier<CompletableFuture<Boolean>> write) {
+        synchronized (lock) {
+            MerkleTree tree = new MerkleTree();
+            for (String record : records) {
+                String key = record.split(",")[0];
+                if (tree.contains(key)) {
+                    ServerLogger.logError("Unable to write " + DOMAINS + ": repeated domain " + key);
+                    return CompletableFuture.completedFuture(false);
+                }
+                tree.set(key, calculateHMAC(record.getBytes(StandardCharsets.UTF_8)));
+            }
+            if (tree.size() == 0) tree = null;
+            String root = tree == null ? null : tree.rootHex();
+            if (!appendJournal(root)) return CompletableFuture.completedFuture(false);
+            domainsTree = tree;
+            stale = false;
+            return track(root, write.get());
+        }
+    }
+
+    /**
+     * Records a queued write of domains.txt with the given root. Once no
+     * write is pending, and none failed since the file was last rewritten,
+     * the state of the file is kept as verified, and the
+     * journal is signed if it reached the size of an epoch. Runs outside
+     * the writer thread, since signing waits for the writer.
+     *
+     * @param root the root of the records written
+     * @param written the future of the write
+     * @return a future completed with the result of the write
+     */
+    private CompletableFuture<Boolean> track(String root, CompletableFuture<Boolean> written) {
+        hmacs.put(DOMAINS, root);
+        pendingWrites++;
+        return written.thenApplyAsync(success -> {
+            synchronized (lock) {
+                pendingWrites--;
+                if (!success) {
+                    ServerLogger.logError("Unable to write " + DOMAINS);
+                    stale = true;
+                    verified.remove(DOMAINS);
+                } else if (pendingWrites == 0 && !stale) {
+                    verified.put(DOMAINS, FileState.of(DOMAINS));
+                    if (sequence >= epochSize) sign();
+                }
+                return success;
+            }
+        });
+    }
+
+    /**
+     * Signs the changes in the journal, if they are
+     * waiting to be signed for longer than an epoch
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (sequence > 0 && pendingWrites == 0
+                    && System.currentTimeMillis() - epochStart >= epochTime) sign();
+        }
+    }
+
+    /**
+     * Signs all the changes in the journal
+     */
+    public void close() {
+        synchronized (lock) {
+            if (sequence > 0) sign();
+            closeJournal();
+        }
+    }
+
+    /**
+     * Signs the HMAC values of the map {@link #hmacs} into the
+     * hmacs.txt file and starts a new empty journal. If the file could not
+     * be written the journal is kept, since it is the only authenticated
+     * record of the roots, and signing is tried again on the next {@link #flush()}.
+     *
+     * @return true if the file was signed, false otherwise
+     */
+    private boolean sign() {
+        String data = "VERSION: " + VERSION + "\n"
+                + "CLIENT: " + hmacs.get(CLIENT_COPY) + "\n"
+                + "DOMAINS: " + hmacs.get(DOMAINS) + "\n";
+        File file = new File(filePath);
+        if (!SecurityUtils.signFile(file, data, writer)) {
+            ServerLogger.logError("Unable to sign " + filePath + ", keeping the integrity journal");
+            return false;
+        }
+        signedData = data;
+        signedState = FileState.of(filePath);
+
+        closeJournal();
+        new File(journalPath).delete();
+        chain = calculateHMAC(data.getBytes(StandardCharsets.UTF_8));
+        sequence = 0;
+        return true;
+    }
+
+    /**
+     * Appends the new root of domains.txt to the journal, waiting
+     * until it is written to the disk
+     *
+     * @param root the new root
+     * @return true if the record was written, false otherwise
+     */
+    private boolean appendJournal(String root) {
+        try {
+            if (journal == null) journal = new FileOutputStream(journalPath, true);
+            long next = sequence + 1;
+            byte[] mac = chainHMAC(chain, next, root);
+            String line = next + " " + root + " " + toHex(mac) + "\n";
+            journal.write(line.getBytes(StandardCharsets.UTF_8));
+            journal.getFD().sync();
+            if (sequence == 0) epochStart = System.currentTimeMillis();
+            chain = mac;
+            sequence = next;
+            return true;
+        } catch (IOException e) {
+            ServerLogger.logError("Unable to write integrity journal: " + e.getMessage());
+            closeJournal();
+            return false;
+        }
+    }
+
+    /**
+     * Replays the records of the journal that follow the content signed
+     * in hmacs.txt. Reading stops at the first record with an invalid
+     * HMAC, which is the case of a record partially written or of a
+     * journal left from the previous epoch, and the journal is cut there.
+     */
+    private void replayJournal() {
+        chain = calculateHMAC(signedData.getBytes(StandardCharsets.UTF_8));
+        sequence = 0;
+        File file = new File(journalPath);
+        if (!file.exists()) return;
+        List<String> roots = new ArrayList<>();
+        roots.add(hmacs.get(DOMAINS));
+        StringBuilder valid = new StringBuilder();
+        boolean complete = true;
+        try (BufferedReader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] record = line.split(" ");
+                long next = sequence + 1;
+                String root = record.length == 3 && !record[1].equals("null") ? record[1] : null;
+                byte[] mac = chainHMAC(chain, next, root);
+                if (record.length != 3 || !record[0].equals(String.valueOf(next))
+                        || !record[2].equals(toHex(mac))) {
+                    complete = false;
+                    break;
                 }
+                valid.append(line).append("\n");
+                roots.add(root);
+                chain = mac;
+                sequence = next;
             }
-            SecurityUtils.signFile(new File(filePath), sb.toString());
-            hmacs.put(DOMAINS, hmac);
+        } catch (IOException e) {
+            complete = false;
+        }
+        if (!complete) {
+            ServerLogger.logWarning("Integrity journal has invalid records, ignoring them");
+            try {
+                Files.writeString(file.toPath(), valid, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                ServerLogger.logError("Unable to repair integrity journal");
+            }
+        }
+        if (sequence > 0) {
+            hmacs.put(DOMAINS, roots.get(roots.size() - 1));
+            inDoubtRoots = roots.subList(0, roots.size() - 1);
+            inDoubt = true;
+            epochStart = System.currentTimeMillis();
+            ServerLogger.logInfo("Integrity journal replayed (" + sequence + " records)");
         }
     }
 
+    /**
+     * Closes the journal, if open
+     */
+    private void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            ServerLogger.logWarning("Unable to close integrity journal");
+        }
+        journal = null;
+    }
+
+    /**
+     * Calculates the HMAC of a journal record, chained to the previous one
+     *
+     * @param previous the HMAC of the previous record
+     * @param sequence the number of the record
+     * @param root the root in the record
+     * @return the HMAC of the record
+     */
+    private byte[] chainHMAC(byte[] previous, long sequence, String root) {
+        byte[] record = (sequence + " " + root).getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[previous.length + record.length];
+        System.arraycopy(previous, 0, data, 0, previous.length);
+        System.arraycopy(record, 0, data, previous.length, record.length);
+        return calculateHMAC(data);
+    }
+
+    /**
+     * Verifies that the hmacs.txt file still holds the values signed by this
+     * verifier. The signature is only checked if the file changed.
+     *
+     * @return true if the file is valid, false otherwise
+     */
+    private boolean verifySignedFile() {
+        FileState state = FileState.of(filePath);
+        if (state != null && state.equals(signedState)) return true;
+        String data = SecurityUtils.verifySignature(new File(filePath));
+        if (data == null || !data.equals(signedData)) return false;
+        signedState = state;
+        return true;
+    }
+
     /**
      * Loads the HMACS values saved in the hmacs.txt file
      * to the map {@link #hmacs}
@@ -145,11 +514,15 @@ public class IntegrityVerifier {
     private boolean loadHmacs() {
         String data = SecurityUtils.verifySignature(new File(filePath));
         if (data != null) {
+            legacy = true;
             String[] lines = data.split("\n");
             for (String line : lines) {
                 String[] temp = line.split(":");
                 String hmac = temp[1].trim();
                 hmac = hmac.equals("null") ? null : hmac;
+                if (temp[0].equals("VERSION")) {
+                    legacy = !VERSION.equals(hmac);
+                }
                 if (temp[0].equals("CLIENT")) {
                     hmacs.put(CLIENT_COPY, hmac);
                 }
@@ -157,10 +530,36 @@ public class IntegrityVerifier {
                     hmacs.put(DOMAINS, hmac);
                 }
             }
+            signedData = data;
+            signedState = FileState.of(filePath);
         }
         return data != null;
     }
 
+    /**
+     * Builds the {@link MerkleTree} of the records of the domains.txt file.
+     * The tree has a leaf per domain name, so a name repeated in the file
+     * would replace the leaf of an earlier record and leave a record out of
+     * the root; such a file is treated as corrupted.
+     *
+     * @return the tree, null if the file is empty or does not exist
+     * @throws IOException If the file could not be read or a domain is repeated
+     */
+    private MerkleTree buildTree() throws IOException {
+        File file = new File(DOMAINS);
+        if (!file.exists()) return null;
+        MerkleTree tree = new MerkleTree();
+        try (BufferedReader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String key = line.split(",")[0];
+                if (tree.contains(key)) throw new IOException("repeated domain " + key);
+                tree.set(key, calculateHMAC(line.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return tree.size() == 0 ? null : tree;
+    }
+
     /**
      * Calculates the HMAC value of the file in
      * the given path
@@ -173,20 +572,43 @@ public class IntegrityVerifier {
         try {
             byte[] data = readFile(path);
             if (data == null) return null;
-            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-            mac.init(secret);
-            byte[] hmac = mac.doFinal(data);
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hmac) {
-                hexString.append(String.format("%02x", b));
-            }
-            return hexString.toString();
+            return toHex(calculateHMAC(data));
         } catch (Exception e) {
             System.err.println(e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Calculates the HMAC value of the given data
+     *
+     * @param data the data
+     * @return the HMAC value
+     */
+    private byte[] calculateHMAC(byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            return mac.doFinal(data);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts bytes to an hexadecimal string
+     *
+     * @param bytes the bytes
+     * @return the hexadecimal string
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : bytes) {
+            hexString.append(String.format("%02x", b));
+        }
+        return hexString.toString();
+    }
+
     /**
      * Reads the content of a file to a byte array
      *
@@ -208,4 +630,29 @@ public class IntegrityVerifier {
         return null;
     }
 
+    /**
+     * The state of a file, used to know if it changed
+     *
+     * @param modified the last modified time
+     * @param size the size of the file
+     * @param key the identity of the file (e.g. its inode)
+     */
+    private record FileState(FileTime modified, long size, Object key) {
+
+        /**
+         * Returns the current state of a file
+         *
+         * @param path the path of the file
+         * @return the state of the file, null if it does not exist
+         */
+        static FileState of(String path) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+                return new FileState(attrs.lastModifiedTime(), attrs.size(), attrs.fileKey());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,182 @@
+package server.security;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary hash tree over an ordered list of records. Each record is
+ * identified by a key and represented by a leaf value (usually the HMAC of
+ * the record). Replacing or appending a leaf only recomputes the nodes on
+ * its path to the root, so keeping the root up to date costs
+ * O(log n) hashes per change instead of hashing every record again.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ *
+ * @see IntegrityVerifier
+ */
+public class MerkleTree {
+
+    /**
+     * Hash algorithm of the inner nodes
+     */
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * Data structures
+     */
+    private final MessageDigest digest;
+    private final Map<String, Integer> positions;   // position of the leaf of each key
+    private final List<String> keys;                // keys in record order
+    private byte[][] nodes;                         // nodes[1] is the root, leaves start at capacity
+    private int capacity;
+
+    /**
+     * Constructs a new empty {@code MerkleTree}
+     */
+    public MerkleTree() {
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        positions = new HashMap<>();
+        keys = new ArrayList<>();
+        capacity = 1;
+        nodes = new byte[2][];
+    }
+
+    /**
+     * Sets the leaf of a record. If the key is already in this tree its
+     * leaf is replaced, otherwise a new leaf is appended after the others.
+     *
+     * @param key the key of the record
+     * @param leaf the leaf value of the record
+     * @requires {@code key != null && leaf != null}
+     */
+    public void set(String key, byte[] leaf) {
+        Integer position = positions.get(key);
+        if (position == null) {
+            position = keys.size();
+            if (position == capacity) grow();
+            keys.add(key);
+            positions.put(key, position);
+        }
+        int node = capacity + position;
+        nodes[node] = leaf;
+        for (node >>= 1; node >= 1; node >>= 1) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Returns the leaf of a record
+     *
+     * @param key the key of the record
+     * @return the leaf value, or null if the key is not in this tree
+     */
+    public byte[] get(String key) {
+        Integer position = positions.get(key);
+        return position == null ? null : nodes[capacity + position];
+    }
+
+    /**
+     * Tells if a record is in this tree
+     *
+     * @param key the key of the record
+     * @return true if the key is in this tree, false otherwise
+     */
+    public boolean contains(String key) {
+        return positions.containsKey(key);
+    }
+
+    /**
+     * Removes the last record appended to this tree, undoing
+     * a {@link #set(String, byte[])} that added a new key
+     *
+     * @param key the key of the record
+     * @requires {@code key} is the last key of this tree
+     */
+    public void removeLast(String key) {
+        int position = keys.size() - 1;
+        if (position < 0 || !keys.get(position).equals(key)) return;
+        keys.remove(position);
+        positions.remove(key);
+        int node = capacity + position;
+        nodes[node] = null;
+        for (node >>= 1; node >= 1; node >>= 1) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Returns the number of records in this tree
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Returns the root of this tree
+     *
+     * @return the root, or null if this tree is empty
+     */
+    public byte[] root() {
+        return keys.isEmpty() ? null : nodes[1];
+    }
+
+    /**
+     * Returns the root of this tree as an hexadecimal string
+     *
+     * @return the root, or null if this tree is empty
+     */
+    public String rootHex() {
+        byte[] root = root();
+        if (root == null) return null;
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : root) {
+            hexString.append(String.format("%02x", b));
+        }
+        return hexString.toString();
+    }
+
+    /**
+     * Doubles the capacity of this tree, recomputing the inner nodes
+     */
+    private void grow() {
+        byte[][] old = nodes;
+        int oldCapacity = capacity;
+        capacity *= 2;
+        nodes = new byte[2 * capacity][];
+        System.arraycopy(old, oldCapacity, nodes, capacity, oldCapacity);
+        for (int node = capacity - 1; node >= 1; node--) {
+            nodes[node] = combine(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Combines two child nodes. Empty nodes are skipped, so a node
+     * with a single child has the value of that child.
+     *
+     * @param left the left child
+     * @param right the right child
+     * @return the parent node, null if both children are empty
+     */
+    private byte[] combine(byte[] left, byte[] right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+}
@@ -1,11 +1,15 @@
 package server.security;
 
+import server.persistence.PersistenceWriter;
+
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -20,10 +24,15 @@ import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignedObject;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Utility class with security
@@ -53,6 +62,7 @@ public class SecurityUtils {
                                         (byte) 0x99, (byte) 0x52, (byte) 0x3e,
                                         (byte) 0xea, (byte) 0xf2 };
     private static final int ITERATION_COUNT = 20;
+    private static final int IV_SIZE = 16;
 
     /**
      * File to store encryption parameters
@@ -64,6 +74,11 @@ public class SecurityUtils {
      */
     private static final HttpClient client = HttpClient.newHttpClient();
 
+    /**
+     * Source of the initialization vectors
+     */
+    private static final SecureRandom random = new SecureRandom();
+
     /**
      * Utility class should not be constructed
      */
@@ -88,25 +103,30 @@ public class SecurityUtils {
     }
 
     /**
-     * Encrypts a {@code String} of data and writes it to a file
+     * Encrypts a {@code String} of data and writes it to a file,
+     * and the {@code Cipher} parameters to the file params.txt,
+     * both in the same commit
      *
      * @param data the data to be encrypted
      * @param file the file to write to
      * @param key the {@code SecretKey}
+     * @param writer the writer of the persistence files
+     * @return a future completed with true when the data is
+     *          durable, or with false if it failed
      */
-    public static void encryptDataIntoFile(String data, File file, SecretKey key) {
+    public static CompletableFuture<Boolean> encryptDataIntoFile(String data, File file, SecretKey key,
+                                                                 PersistenceWriter writer) {
         try {
             Cipher cipher = Cipher.getInstance(ENC_ALGORITHM);
             cipher.init(Cipher.ENCRYPT_MODE, key);
-            byte[] inputBytes = data.getBytes();
-            try (FileOutputStream fos = new FileOutputStream(file);
-                 CipherOutputStream cos = new CipherOutputStream(fos, cipher)) {
-
-                cos.write(inputBytes);
-            }
-            saveParams(cipher.getParameters().getEncoded());
+            byte[] encrypted = cipher.doFinal(data.getBytes());
+            Map<String, byte[]> contents = new LinkedHashMap<>();
+            contents.put(file.getPath(), encrypted);
+            contents.put(PARAMS_FILE.getPath(), cipher.getParameters().getEncoded());
+            return writer.writeAll(contents);
         } catch (Exception e) {
             System.out.println(e.getMessage());
+            return CompletableFuture.completedFuture(false);
         }
     }
 
@@ -137,15 +157,48 @@ public class SecurityUtils {
     }
 
     /**
-     * Saves the {@code Cipher} parameters to the file params.txt
+     * Encrypts data with a new random initialization vector,
+     * which is put before the encrypted data
+     *
+     * @param data the data to be encrypted
+     * @param key the {@code SecretKey}
+     * @return the initialization vector and the encrypted data,
+     *          or null in case of error
+     */
+    public static byte[] encryptData(byte[] data, SecretKey key) {
+        try {
+            byte[] iv = new byte[IV_SIZE];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(ENC_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key,
+                    new PBEParameterSpec(salt, ITERATION_COUNT, new IvParameterSpec(iv)));
+            byte[] encrypted = cipher.doFinal(data);
+            byte[] result = Arrays.copyOf(iv, IV_SIZE + encrypted.length);
+            System.arraycopy(encrypted, 0, result, IV_SIZE, encrypted.length);
+            return result;
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts data encrypted by {@link #encryptData(byte[], SecretKey)}
      *
-     * @param params the parameters
+     * @param data the initialization vector and the encrypted data
+     * @param key the {@code SecretKey}
+     * @return the decrypted data, or null in case of error
      */
-    private static void saveParams(byte[] params) {
-        try (FileOutputStream fos = new FileOutputStream(PARAMS_FILE)) {
-            fos.write(params);
+    public static byte[] decryptData(byte[] data, SecretKey key) {
+        try {
+            if (data.length < IV_SIZE) return null;
+            Cipher cipher = Cipher.getInstance(ENC_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key, new PBEParameterSpec(salt, ITERATION_COUNT,
+                    new IvParameterSpec(data, 0, IV_SIZE)));
+            return cipher.doFinal(data, IV_SIZE, data.length - IV_SIZE);
         } catch (Exception e) {
             System.out.println(e.getMessage());
+            return null;
         }
     }
 
@@ -230,15 +283,18 @@ public class SecurityUtils {
     }
 
     /**
-     * Signs a file with the server's private key.
+     * Signs a file with the server's private key, waiting
+     * until the signed file is durable.
      *
      * @param file the file to be signed
      * @param data the data to be signed
+     * @param writer the writer of the persistence files
+     * @return true if the file was written, false otherwise
      */
-    public static void signFile(File file, String data) {
+    public static boolean signFile(File file, String data, PersistenceWriter writer) {
         try {
-            FileOutputStream fos = new FileOutputStream(file);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
             PrivateKey privateKey = getPrivateKey();
             Signature signature = Signature.getInstance(SIG_ALGORITHM);
             signature.initSign(privateKey);
@@ -246,10 +302,11 @@ public class SecurityUtils {
             signature.update(buffer);
             oos.writeObject(data);
             oos.writeObject(signature.sign());
-            fos.close();
             oos.close();
+            return writer.write(file.getPath(), bytes.toByteArray()).join();
         } catch (Exception e) {
             System.out.println(e.getMessage());
+            return false;
         }
     }
 
@@ -0,0 +1,76 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Prepares the working directory of the tests: the keystore of the
+ * server, created with the keytool of the running JDK, and the
+ * {@code server} folder, emptied before each test class.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+public final class TestKeystore {
+
+    /**
+     * Name of the working directory set by the pom
+     */
+    public static final String WORKING_DIRECTORY = "engine-tests";
+
+    /**
+     * Password of the keystore and of its key
+     */
+    public static final String PASSWORD = "contract-test";
+
+    /**
+     * Name of the keystore of the server
+     */
+    private static final String KEYSTORE = "keystore.server";
+
+    private TestKeystore() {
+    }
+
+    /**
+     * Empties the {@code server} folder and creates the keystore of the
+     * server if needed, setting the properties the server reads it from
+     *
+     * @param root the working directory
+     * @throws IOException If an I/ O error occurs
+     * @throws InterruptedException If interrupted while keytool runs
+     */
+    public static void prepare(Path root) throws IOException, InterruptedException {
+        deleteRecursively(root.resolve("server"));
+        Files.createDirectories(root.resolve("server"));
+        Path keystore = root.resolve(KEYSTORE);
+        if (!Files.exists(keystore)) create(keystore);
+        System.setProperty("javax.net.ssl.keyStore", keystore.toString());
+        System.setProperty("javax.net.ssl.keyStorePassword", PASSWORD);
+    }
+
+    /**
+     * Creates the keystore of the server with the keytool of the running JDK
+     */
+    private static void create(Path keystore) throws IOException, InterruptedException {
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "ServerKeyPair",
+                "-keyalg", "RSA", "-keysize", "2048", "-storetype", "JKS", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD, "-dname", "CN=server", "-validity", "1")
+                .redirectErrorStream(true).start();
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        if (process.waitFor() != 0) throw new IOException("keytool failed");
+    }
+
+    private static void deleteRecursively(Path folder) throws IOException {
+        if (!Files.exists(folder)) return;
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+}
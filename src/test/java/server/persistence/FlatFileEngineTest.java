@@ -0,0 +1,19 @@
+package server.persistence;
+
+import server.persistence.engines.FlatFileEngine;
+
+/**
+ * Checks that the {@link FlatFileEngine} follows the contract of a {@link StorageEngine}
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+class FlatFileEngineTest extends StorageEngineContract {
+
+    @Override
+    protected String engineName() {
+        return FlatFileEngine.NAME;
+    }
+
+}
@@ -0,0 +1,19 @@
+package server.persistence;
+
+import server.persistence.engines.LsmEngine;
+
+/**
+ * Checks that the {@link LsmEngine} follows the contract of a {@link StorageEngine}
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+class LsmEngineTest extends StorageEngineContract {
+
+    @Override
+    protected String engineName() {
+        return LsmEngine.NAME;
+    }
+
+}
@@ -0,0 +1,24 @@
+package server.persistence;
+
+import server.persistence.engines.MemoryEngine;
+
+/**
+ * Checks that the {@link MemoryEngine} follows the contract of a {@link StorageEngine}
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+class MemoryEngineTest extends StorageEngineContract {
+
+    @Override
+    protected String engineName() {
+        return MemoryEngine.NAME;
+    }
+
+    @Override
+    protected boolean keepsData() {
+        return false;
+    }
+
+}
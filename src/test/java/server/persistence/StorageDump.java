@@ -0,0 +1,78 @@
+package server.persistence;
+
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.Base64;
+
+/**
+ * Opens the {@link Storage} of the working directory, as the server does
+ * when it starts, and writes what its engine loaded: the users given,
+ * with their public keys, and every domain, with its members, devices and
+ * temperatures. Run in a new JVM by {@link StorageEngineContract}, so that
+ * none of the singletons of the server survive from the storage that wrote
+ * the data.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+final class StorageDump {
+
+    private StorageDump() {
+    }
+
+    /**
+     * Writes the data of the storage to a file, one item per line, since
+     * the storage also prints to the standard output when it is opened
+     *
+     * @param args the file to write, the password of the storage and the names of the users to print
+     * @throws Exception If the storage cannot be read
+     */
+    public static void main(String[] args) throws Exception {
+        Storage storage = new Storage(args[1]);
+        StorageEngine engine = storage.getEngine();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Path.of(args[0]), StandardCharsets.UTF_8))) {
+            print(engine, out, args);
+        }
+        storage.close();
+    }
+
+    /**
+     * Writes the users given and every domain loaded by the engine
+     */
+    private static void print(StorageEngine engine, PrintWriter out, String[] args) throws Exception {
+        for (int i = 2; i < args.length; i++) {
+            User user = engine.getUser(args[i]);
+            if (user == null) continue;
+            out.println("user " + user.name() + " " + user.certificate());
+            PublicKey key = engine.getUserPubKey(user);
+            if (key != null) {
+                out.println("key " + user.name() + " "
+                        + Base64.getEncoder().encodeToString(key.getEncoded()));
+            }
+        }
+        for (Domain domain : engine.getDomains()) {
+            out.println("domain " + domain.getName() + " " + domain.getOwner().name());
+            for (User member : domain.getUsers()) {
+                out.println("member " + domain.getName() + " " + member.name());
+            }
+            for (Device device : domain.getDevices()) {
+                out.println("device " + domain.getName() + " " + device);
+            }
+            ByteBuffer temperatures = engine.getDomainTemperatures(domain);
+            if (temperatures == null) continue;
+            for (String line : StandardCharsets.UTF_8.decode(temperatures).toString().split("\n")) {
+                out.println("temperature " + domain.getName() + " " + line);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,303 @@
+package server.persistence;
+
+import common.Codes;
+import common.TemperatureColumns;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import server.TestKeystore;
+import server.components.Device;
+import server.components.Domain;
+import server.components.User;
+
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The behaviour every {@link StorageEngine} must have, checked by a
+ * subclass for each engine. The engine is chosen with the property
+ * {@code iot.storage.engine} and opened by a new {@link Storage}, with
+ * its files in the {@code server} folder of the working directory, which
+ * the pom sets to a folder of the build; each test class runs in its own
+ * JVM, since the managers of the server are singletons.
+ *
+ * <p>The last test closes the storage and checks that the data it wrote is
+ * loaded again by a {@link StorageDump} run in a new JVM, for the engines
+ * that keep their data.
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+abstract class StorageEngineContract {
+
+    /**
+     * Test parameters
+     */
+    private static final String PASSWORD = TestKeystore.PASSWORD;
+    private static final long DUMP_TIMEOUT = 60;              // seconds
+
+    /**
+     * The storage and the engine being tested
+     */
+    private Storage storage;
+    private StorageEngine engine;
+
+    /**
+     * Returns the name of the engine being tested
+     *
+     * @return the name of the engine
+     */
+    protected abstract String engineName();
+
+    /**
+     * Returns whether the engine being tested keeps its data when the
+     * storage is closed
+     *
+     * @return true if the data is loaded again when the storage is opened
+     */
+    protected boolean keepsData() {
+        return true;
+    }
+
+    @BeforeAll
+    void openStorage() throws Exception {
+        Path root = Path.of("").toAbsolutePath();
+        assumeTrue(root.endsWith(TestKeystore.WORKING_DIRECTORY), "Runs in the working directory set by the pom");
+        TestKeystore.prepare(root);
+        System.setProperty("iot.storage.engine", engineName());
+        storage = new Storage(PASSWORD);
+        engine = storage.getEngine();
+    }
+
+    @AfterAll
+    void closeStorage() {
+        if (storage != null) storage.close();
+    }
+
+    @Test
+    void usesTheEngineRequested() {
+        assertEquals(engineName(), engine.getName());
+    }
+
+    @Test
+    void savesUsersAndTheirPublicKeys() throws Exception {
+        User user = newUser("alice");
+        assertEquals(Codes.OK.toString(), engine.saveUser(user));
+        assertEquals(Codes.OK.toString(), engine.saveUser(user));
+
+        assertEquals(user, engine.getUser("alice"));
+        assertEquals("server/alice.cer", engine.getUser("alice").certificate());
+        assertNull(engine.getUser("nobody"));
+        PublicKey key = engine.getUserPubKey(user);
+        assertNotNull(key);
+        assertTrue(Arrays.equals(key.getEncoded(), engine.getUserPubKey(engine.getUser("alice")).getEncoded()));
+    }
+
+    @Test
+    void createsDomainsWithUniqueNames() throws Exception {
+        User owner = newUser("bob");
+        engine.saveUser(owner);
+
+        assertEquals(Codes.OK.toString(), engine.createDomain("kitchen", owner));
+        assertEquals(Codes.NOK.toString(), engine.createDomain("kitchen", owner));
+        assertEquals(Codes.NOK.toString(), engine.createDomain("garage", null));
+
+        Domain domain = engine.getDomain("kitchen");
+        assertNotNull(domain);
+        assertEquals("kitchen", domain.getName());
+        assertEquals(owner, domain.getOwner());
+        assertNull(engine.getDomain("garage"));
+        assertTrue(engine.getDomains().stream().anyMatch(d -> d.getName().equals("kitchen")));
+    }
+
+    @Test
+    void addsUsersToDomainsOnce() throws Exception {
+        User owner = newUser("carol");
+        User guest = newUser("dave");
+        engine.saveUser(owner);
+        engine.saveUser(guest);
+        engine.createDomain("office", owner);
+        Domain domain = engine.getDomain("office");
+
+        assertEquals(Codes.OK.toString(), engine.addUserToDomain(guest, domain));
+        assertEquals(Codes.NOK.toString(), engine.addUserToDomain(guest, domain));
+        assertTrue(engine.getDomain("office").getUsers().contains(guest));
+    }
+
+    @Test
+    void addsDevicesOfMembersToDomains() throws Exception {
+        User owner = newUser("erin");
+        User stranger = newUser("frank");
+        engine.saveUser(owner);
+        engine.saveUser(stranger);
+        engine.createDomain("cellar", owner);
+        Domain domain = engine.getDomain("cellar");
+        engine.addUserToDomain(owner, domain);
+        Device device = new Device("erin", 1);
+
+        assertEquals(Codes.NODM.toString(), engine.addDeviceToDomain(null, device, owner));
+        assertEquals(Codes.NOPERM.toString(), engine.addDeviceToDomain(domain, new Device("frank", 1), stranger));
+        assertEquals(Codes.OK.toString(), engine.addDeviceToDomain(domain, device, owner));
+        assertEquals(Codes.NOK.toString(), engine.addDeviceToDomain(domain, device, owner));
+        assertTrue(engine.getDomain("cellar").getDevices().contains(device));
+    }
+
+    @Test
+    void keepsTheLastTemperatureOfEachDevice() throws Exception {
+        User owner = newUser("grace");
+        engine.saveUser(owner);
+        engine.createDomain("attic", owner);
+        Domain domain = engine.getDomain("attic");
+        engine.addUserToDomain(owner, domain);
+        Device first = new Device("grace", 1);
+        Device second = new Device("grace", 2);
+        engine.addDeviceToDomain(domain, first, owner);
+        engine.addDeviceToDomain(domain, second, owner);
+
+        assertNull(engine.getDomainTemperatures(domain));
+        assertEquals(Codes.OK.toString(), engine.saveTemperature(first, encoded("20.5"), domain));
+        assertEquals(Codes.OK.toString(), engine.saveTemperature(second, encoded("18.0"), domain));
+        assertEquals(Codes.OK.toString(), engine.saveTemperature(first, encoded("21.0"), domain));
+
+        assertEquals(Set.of("grace:1," + encoded("21.0"), "grace:2," + encoded("18.0")),
+                lines(engine.getDomainTemperatures(domain)));
+    }
+
+    @Test
+    void returnsTheSameTemperaturesAsColumns() throws Exception {
+        User owner = newUser("heidi");
+        engine.saveUser(owner);
+        engine.createDomain("porch", owner);
+        Domain domain = engine.getDomain("porch");
+        engine.addUserToDomain(owner, domain);
+        for (int id = 1; id <= 3; id++) {
+            Device device = new Device("heidi", id);
+            engine.addDeviceToDomain(domain, device, owner);
+            engine.saveTemperature(device, encoded(id + "0.0"), domain);
+        }
+
+        ByteBuffer columns = engine.getDomainTemperatureColumns(domain);
+        assertNotNull(columns);
+        List<TemperatureColumns.Reading> readings = TemperatureColumns.decode(columns);
+        assertEquals(lines(engine.getDomainTemperatures(domain)), readings.stream()
+                .map(r -> r.device() + "," + Base64.getEncoder().encodeToString(r.ciphertext()))
+                .collect(Collectors.toSet()));
+    }
+
+    @Test
+    @Order(Integer.MAX_VALUE)   // closes the storage
+    void keepsTheDataWhenReopened() throws Exception {
+        assumeTrue(keepsData(), "The engine keeps no data");
+        User owner = newUser("ivan");
+        User guest = newUser("judy");
+        engine.saveUser(owner);
+        engine.saveUser(guest);
+        engine.createDomain("garden", owner);
+        Domain domain = engine.getDomain("garden");
+        engine.addUserToDomain(owner, domain);
+        engine.addUserToDomain(guest, domain);
+        Device first = new Device("ivan", 1);
+        Device second = new Device("judy", 1);
+        engine.addDeviceToDomain(domain, first, owner);
+        engine.addDeviceToDomain(domain, second, guest);
+        engine.saveTemperature(first, encoded("19.5"), domain);
+        engine.saveTemperature(second, encoded("17.0"), domain);
+        engine.saveTemperature(first, encoded("20.0"), domain);
+        String ownerKey = Base64.getEncoder().encodeToString(engine.getUserPubKey(owner).getEncoded());
+        String guestKey = Base64.getEncoder().encodeToString(engine.getUserPubKey(guest).getEncoded());
+        storage.close();
+        storage = null;
+
+        List<String> dump = dump("ivan", "judy");
+        Set<String> expected = Set.of(
+                "user ivan server/ivan.cer", "key ivan " + ownerKey,
+                "user judy server/judy.cer", "key judy " + guestKey,
+                "domain garden ivan", "member garden ivan", "member garden judy",
+                "device garden ivan:1", "device garden judy:1",
+                "temperature garden ivan:1," + encoded("20.0"),
+                "temperature garden judy:1," + encoded("17.0"));
+        assertTrue(dump.containsAll(expected), "Reopened storage has " + dump);
+        assertEquals(expected, dump.stream().filter(line -> Set.of("garden", "ivan", "judy")
+                .contains(line.split(" ")[1])).collect(Collectors.toSet()));
+    }
+
+    /**
+     * Runs a {@link StorageDump} of the working directory in a new JVM
+     * and returns the lines it printed
+     */
+    private List<String> dump(String... users) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-Diot.storage.engine=" + engineName(),
+                "-Djavax.net.ssl.keyStore=" + System.getProperty("javax.net.ssl.keyStore"),
+                "-Djavax.net.ssl.keyStorePassword=" + System.getProperty("javax.net.ssl.keyStorePassword"),
+                StorageDump.class.getName()));
+        Path output = Files.createTempFile("storage-dump", ".txt");
+        command.add(output.toString());
+        command.add(PASSWORD);
+        command.addAll(List.of(users));
+        try {
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (!process.waitFor(DUMP_TIMEOUT, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                fail("The storage did not close in " + DUMP_TIMEOUT + " seconds");
+            }
+            assertEquals(0, process.exitValue(), "The storage could not be reopened");
+            return Files.readAllLines(output, StandardCharsets.UTF_8);
+        } finally {
+            Files.delete(output);
+        }
+    }
+
+    /**
+     * Creates a user with a new public key in its certificate file
+     */
+    private static User newUser(String name) throws Exception {
+        String certificate = "server/" + name + ".cer";
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        try (OutputStream file = Files.newOutputStream(Path.of(certificate));
+             ObjectOutputStream out = new ObjectOutputStream(file)) {
+            out.writeObject(generator.generateKeyPair().getPublic());
+        }
+        return new User(name, certificate);
+    }
+
+    private static String encoded(String temperature) {
+        return Base64.getEncoder().encodeToString(temperature.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Set<String> lines(ByteBuffer temperatures) {
+        assertNotNull(temperatures);
+        return Set.of(StandardCharsets.UTF_8.decode(temperatures).toString().split("\n"));
+    }
+
+}
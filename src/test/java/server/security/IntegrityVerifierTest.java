@@ -0,0 +1,110 @@
+package server.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import server.TestKeystore;
+import server.persistence.PersistenceWriter;
+import server.persistence.PersistenceWriter.Durability;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the records of domains.txt kept by an {@link IntegrityVerifier}
+ * detect the changes made to the file by others
+ *
+ * @author Eduardo Proença (57551)
+ * @author Manuel Barral (52026)
+ * @author Tiago Oliveira (54979)
+ */
+class IntegrityVerifierTest {
+
+    /**
+     * File paths
+     */
+    private static final String DOMAINS = "server/domains.txt";
+    private static final String HMACS = "server/hmacs.txt";
+    private static final String HMACS_LOG = "server/hmacs.log";
+    private static final String RECOVERY = "server/recovery.log";
+
+    /**
+     * Records of domains.txt
+     */
+    private static final String KITCHEN = "kitchen,alice,[alice],[alice:1]";
+    private static final String GARAGE = "garage,bob,[bob],[]";
+
+    private PersistenceWriter writer;
+    private IntegrityVerifier verifier;
+
+    @BeforeEach
+    void createVerifier() throws Exception {
+        Path root = Path.of("").toAbsolutePath();
+        assumeTrue(root.endsWith(TestKeystore.WORKING_DIRECTORY), "Runs in the working directory set by the pom");
+        TestKeystore.prepare(root);
+        writer = new PersistenceWriter(RECOVERY, Durability.COMMIT, 1000, 16);
+        verifier = new IntegrityVerifier(HMACS, HMACS_LOG, TestKeystore.PASSWORD, 2, 0, writer);
+        verifier.init();
+        for (String record : List.of(KITCHEN, GARAGE)) {
+            String name = record.split(",")[0];
+            assertTrue(verifier.update(name, record, () -> writer.append(DOMAINS,
+                    (record + "\n").getBytes(StandardCharsets.UTF_8))).join());
+        }
+    }
+
+    @AfterEach
+    void closeVerifier() {
+        if (verifier != null) verifier.close();
+        if (writer != null) writer.close();
+    }
+
+    @Test
+    void acceptsTheRecordsItWrote() {
+        assertTrue(verifier.verify(DOMAINS));
+    }
+
+    @Test
+    void keepsTheJournalWhenSigningFails() throws Exception {
+        String porch = "porch,carol,[carol],[]";
+        assertTrue(verifier.update("porch", porch, () -> writer.append(DOMAINS,
+                (porch + "\n").getBytes(StandardCharsets.UTF_8))).join());
+        writer.close();
+        verifier.close();
+        assertTrue(Files.exists(Path.of(HMACS_LOG)));
+
+        writer = new PersistenceWriter(RECOVERY, Durability.COMMIT, 1000, 16);
+        verifier = new IntegrityVerifier(HMACS, HMACS_LOG, TestKeystore.PASSWORD, 2, 0, writer);
+        verifier.init();
+        assertTrue(verifier.verifyAll());
+    }
+
+    @Test
+    void rejectsAChangedRecord() throws Exception {
+        Files.writeString(Path.of(DOMAINS), KITCHEN + "\n" + "garage,mallory,[mallory],[]\n");
+
+        assertFalse(verifier.verify(DOMAINS));
+    }
+
+    @Test
+    void rejectsADomainRepeatedBeforeTheRealOne() throws Exception {
+        String forged = "kitchen,mallory,[mallory],[mallory:1]";
+        Files.writeString(Path.of(DOMAINS), forged + "\n" + KITCHEN + "\n" + GARAGE + "\n");
+
+        assertFalse(verifier.verify(DOMAINS));
+    }
+
+    @Test
+    void rejectsADomainRepeatedAfterTheRealOne() throws Exception {
+        String forged = "kitchen,mallory,[mallory],[mallory:1]";
+        Files.writeString(Path.of(DOMAINS), KITCHEN + "\n" + GARAGE + "\n" + forged + "\n");
+
+        assertFalse(verifier.verify(DOMAINS));
+    }
+
+}